@@ -0,0 +1,110 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test;
+
+import android.content.Intent;
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.jboss.aerogear.android.unifiedpush.DeferredDeliveryStats;
+import org.jboss.aerogear.android.unifiedpush.PushConstants;
+import org.jboss.aerogear.android.unifiedpush.RegistrarManager;
+import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
+import org.jboss.aerogear.android.unifiedpush.test.util.RecordingHandler;
+
+public class DeferredDeliveryTest extends PatchedActivityInstrumentationTestCase<MainActivity> {
+
+    public DeferredDeliveryTest() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        RegistrarManager.disableDeferredDelivery();
+        super.tearDown();
+    }
+
+    public void testLowPriorityMessagesRideOnTheNextUrgentMessage() throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler(4);
+        RegistrarManager.enableDeferredDelivery(getActivity(), TimeUnit.MINUTES.toMillis(10));
+        RegistrarManager.registerBackgroundThreadHandler(handler);
+        try {
+            for (int i = 0; i < 3; i++) {
+                RegistrarManager.notifyHandlers(getActivity(), message("sync-" + i, RegistrarManager.PRIORITY_LOW), null);
+            }
+            Thread.sleep(200);
+            assertTrue(handler.received.isEmpty());
+            assertEquals(3, RegistrarManager.getDeferredDeliveryStats().getPendingMessages());
+
+            RegistrarManager.notifyHandlers(getActivity(), message("chat", null), null);
+            assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+        }
+
+        assertTrue(handler.received.containsAll(Arrays.asList("sync-0", "sync-1", "sync-2", "chat")));
+        DeferredDeliveryStats stats = RegistrarManager.getDeferredDeliveryStats();
+        assertEquals(3, stats.getDeferredMessages());
+        assertEquals(0, stats.getPendingMessages());
+        assertEquals(1, stats.getBatches());
+        assertEquals(3, stats.getSavedWakeups());
+    }
+
+    public void testHeldMessagesAreDeliveredOnceTheIntervalElapses() throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler(2);
+        RegistrarManager.enableDeferredDelivery(getActivity(), 300);
+        RegistrarManager.registerBackgroundThreadHandler(handler);
+        try {
+            RegistrarManager.notifyHandlers(getActivity(), message("first", RegistrarManager.PRIORITY_LOW), null);
+            RegistrarManager.notifyHandlers(getActivity(), message("second", RegistrarManager.PRIORITY_LOW), null);
+            assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+        }
+
+        DeferredDeliveryStats stats = RegistrarManager.getDeferredDeliveryStats();
+        assertEquals(1, stats.getBatches());
+        assertEquals(1, stats.getSavedWakeups());
+    }
+
+    public void testDisablingDeliversHeldMessages() throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler(1);
+        RegistrarManager.enableDeferredDelivery(getActivity(), TimeUnit.MINUTES.toMillis(10));
+        RegistrarManager.registerBackgroundThreadHandler(handler);
+        try {
+            RegistrarManager.notifyHandlers(getActivity(), message("held", RegistrarManager.PRIORITY_LOW), null);
+            RegistrarManager.disableDeferredDelivery();
+            assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+        }
+
+        assertEquals("held", handler.received.get(0));
+        assertFalse(new File(getActivity().getFilesDir(), "aerogear-push-deferred.json").exists());
+    }
+
+    private static Intent message(String body, String priority) {
+        Intent message = new Intent()
+                .putExtra(PushConstants.MESSAGE, true)
+                .putExtra("body", body);
+        if (priority != null) {
+            message.putExtra(RegistrarManager.DEFAULT_PRIORITY_EXTRA, priority);
+        }
+        return message;
+    }
+
+}
@@ -0,0 +1,119 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test;
+
+import android.content.Context;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.jboss.aerogear.android.unifiedpush.RegistrarManager;
+import org.jboss.aerogear.android.unifiedpush.gcm.AeroGearGCMMessageReceiver;
+import org.jboss.aerogear.android.unifiedpush.test.util.LatencyRecorder;
+import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
+import org.jboss.aerogear.android.unifiedpush.test.util.PushLoadGenerator;
+
+public class DispatchThroughputTest extends PatchedActivityInstrumentationTestCase<MainActivity> {
+
+    private static final int MESSAGES = 1000;
+    private static final int HANDLERS = 8;
+
+    /**
+     * Lane threads the dispatcher may run for background handlers: one bulk
+     * lane per processor and at least two, and the two urgent lanes.
+     */
+    private static final int MAX_LANE_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors()) + 2;
+
+    private final List<LatencyRecorder> recorders = new ArrayList<LatencyRecorder>();
+
+    public DispatchThroughputTest() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (LatencyRecorder recorder : recorders) {
+            RegistrarManager.unregisterBackgroundThreadHandler(recorder);
+            RegistrarManager.unregisterMainThreadHandler(recorder);
+        }
+        super.tearDown();
+    }
+
+    public void testBackgroundHandlersKeepUpWith500MessagesPerSecond() throws InterruptedException {
+        for (int i = 0; i < HANDLERS; i++) {
+            LatencyRecorder recorder = new LatencyRecorder(MESSAGES);
+            recorders.add(recorder);
+            RegistrarManager.registerBackgroundThreadHandler(recorder);
+        }
+
+        generator().run(500, MESSAGES);
+
+        for (LatencyRecorder recorder : recorders) {
+            assertTrue(recorder.await(10, TimeUnit.SECONDS));
+            assertEquals(0, recorder.getLost());
+            assertEquals(0, recorder.getDuplicates());
+            assertTrue("p50 " + recorder.percentileMs(50), recorder.percentileMs(50) < 50);
+            assertTrue("p99 " + recorder.percentileMs(99), recorder.percentileMs(99) < 250);
+            assertTrue("max " + recorder.maxMs(), recorder.maxMs() < 1000);
+        }
+        List<String> threads = laneThreads();
+        assertTrue(threads.toString(), threads.size() <= MAX_LANE_THREADS);
+    }
+
+    public void testMainThreadHandlersAbsorbABurst() throws InterruptedException {
+        int messages = MESSAGES / 2;
+        for (int i = 0; i < HANDLERS / 2; i++) {
+            LatencyRecorder recorder = new LatencyRecorder(messages);
+            recorders.add(recorder);
+            RegistrarManager.registerMainThreadHandler(recorder);
+        }
+
+        generator().run(1000, messages);
+
+        for (LatencyRecorder recorder : recorders) {
+            assertTrue(recorder.await(10, TimeUnit.SECONDS));
+            assertEquals(0, recorder.getLost());
+            assertEquals(0, recorder.getDuplicates());
+            assertTrue("p99 " + recorder.percentileMs(99), recorder.percentileMs(99) < 500);
+            assertTrue("max " + recorder.maxMs(), recorder.maxMs() < 2000);
+        }
+    }
+
+    /**
+     * The lanes are shared by the whole process, so this counts every live
+     * lane thread rather than the ones started by a single test. Other
+     * library threads, such as the deferred delivery thread, are left out.
+     */
+    private static List<String> laneThreads() {
+        List<String> names = new ArrayList<String>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            String name = thread.getName();
+            if (thread.isAlive() && (name.startsWith("AeroGearPushLane-") || name.startsWith("AeroGearPushUrgentLane-"))) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private PushLoadGenerator generator() {
+        Context ctx = getActivity().getApplicationContext();
+        return new PushLoadGenerator(ctx, new AeroGearGCMMessageReceiver())
+                .withPayload(64, 70)
+                .withPayload(1024, 25)
+                .withPayload(3072, 5);
+    }
+
+}
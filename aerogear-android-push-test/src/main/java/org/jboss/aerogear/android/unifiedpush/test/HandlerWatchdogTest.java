@@ -0,0 +1,137 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.jboss.aerogear.android.unifiedpush.HandlerOverrun;
+import org.jboss.aerogear.android.unifiedpush.HandlerWatchdog;
+import org.jboss.aerogear.android.unifiedpush.MessageHandler;
+import org.jboss.aerogear.android.unifiedpush.OnHandlerOverrunListener;
+import org.jboss.aerogear.android.unifiedpush.PushConstants;
+import org.jboss.aerogear.android.unifiedpush.RegistrarManager;
+import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
+
+public class HandlerWatchdogTest extends PatchedActivityInstrumentationTestCase<MainActivity> {
+
+    public HandlerWatchdogTest() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        RegistrarManager.setHandlerWatchdog(null);
+        super.tearDown();
+    }
+
+    public void testOverrunningBackgroundHandlerIsReportedAndInterrupted() throws InterruptedException {
+        final CountDownLatch reported = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        final HandlerOverrun[] overrun = new HandlerOverrun[1];
+
+        RegistrarManager.setHandlerWatchdog(new HandlerWatchdog(50, 100)
+                .setInterruptOverruns(true)
+                .setDemotionThreshold(1)
+                .setOnHandlerOverrunListener(new OnHandlerOverrunListener() {
+
+                    @Override
+                    public void onHandlerOverrun(HandlerOverrun handlerOverrun) {
+                        overrun[0] = handlerOverrun;
+                        reported.countDown();
+                    }
+                }));
+
+        MessageHandler slowHandler = new MessageHandler() {
+
+            @Override
+            public void onDeleteMessage(Context context, Bundle message) {
+            }
+
+            @Override
+            public void onMessage(Context context, Bundle message) {
+                try {
+                    Thread.sleep(5000);
+                } catch (InterruptedException expected) {
+                    interrupted.countDown();
+                }
+            }
+
+            @Override
+            public void onError() {
+            }
+        };
+
+        RegistrarManager.registerBackgroundThreadHandler(slowHandler);
+        try {
+            RegistrarManager.notifyHandlers(getActivity(), new Intent().putExtra(PushConstants.MESSAGE, true), null);
+            assertTrue(reported.await(2, TimeUnit.SECONDS));
+            assertTrue(interrupted.await(2, TimeUnit.SECONDS));
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(slowHandler);
+        }
+
+        assertSame(slowHandler, overrun[0].getHandler());
+        assertFalse(overrun[0].isMainThread());
+        assertTrue(overrun[0].isInterrupted());
+        assertTrue(overrun[0].isDemoted());
+        assertEquals(1, overrun[0].getViolations());
+        assertTrue(overrun[0].getStackSample().length > 0);
+    }
+
+    public void testFastHandlerIsNotReported() throws InterruptedException {
+        final CountDownLatch reported = new CountDownLatch(1);
+        final CountDownLatch handled = new CountDownLatch(1);
+
+        RegistrarManager.setHandlerWatchdog(new HandlerWatchdog(50, 100)
+                .setOnHandlerOverrunListener(new OnHandlerOverrunListener() {
+
+                    @Override
+                    public void onHandlerOverrun(HandlerOverrun handlerOverrun) {
+                        reported.countDown();
+                    }
+                }));
+
+        MessageHandler fastHandler = new MessageHandler() {
+
+            @Override
+            public void onDeleteMessage(Context context, Bundle message) {
+            }
+
+            @Override
+            public void onMessage(Context context, Bundle message) {
+                handled.countDown();
+            }
+
+            @Override
+            public void onError() {
+            }
+        };
+
+        RegistrarManager.registerBackgroundThreadHandler(fastHandler);
+        try {
+            RegistrarManager.notifyHandlers(getActivity(), new Intent().putExtra(PushConstants.MESSAGE, true), null);
+            assertTrue(handled.await(1, TimeUnit.SECONDS));
+            assertFalse(reported.await(300, TimeUnit.MILLISECONDS));
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(fastHandler);
+        }
+    }
+
+}
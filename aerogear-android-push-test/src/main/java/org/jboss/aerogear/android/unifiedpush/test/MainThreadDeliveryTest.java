@@ -0,0 +1,91 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Looper;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.jboss.aerogear.android.unifiedpush.MainThreadDeliveryStats;
+import org.jboss.aerogear.android.unifiedpush.MessageHandler;
+import org.jboss.aerogear.android.unifiedpush.PushConstants;
+import org.jboss.aerogear.android.unifiedpush.RegistrarManager;
+import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
+
+public class MainThreadDeliveryTest extends PatchedActivityInstrumentationTestCase<MainActivity> {
+
+    private static final int MESSAGES = 5;
+
+    public MainThreadDeliveryTest() {
+        super(MainActivity.class);
+    }
+
+    public void testBurstIsSpreadOverSeveralBatches() throws InterruptedException {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch latch = new CountDownLatch(MESSAGES);
+        final boolean[] offMainThread = new boolean[1];
+        MessageHandler handler = new MessageHandler() {
+
+            @Override
+            public void onDeleteMessage(Context context, Bundle message) {
+            }
+
+            @Override
+            public void onMessage(Context context, Bundle message) {
+                if (Looper.myLooper() != Looper.getMainLooper()) {
+                    offMainThread[0] = true;
+                }
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ignore) {
+                }
+                received.add(message.getString("body"));
+                latch.countDown();
+            }
+
+            @Override
+            public void onError() {
+            }
+        };
+
+        MainThreadDeliveryStats before = RegistrarManager.getMainThreadDeliveryStats();
+        RegistrarManager.registerMainThreadHandler(handler);
+        try {
+            for (int i = 0; i < MESSAGES; i++) {
+                RegistrarManager.notifyHandlers(getActivity(),
+                        new Intent().putExtra(PushConstants.MESSAGE, true).putExtra("body", String.valueOf(i)), null);
+            }
+            assertTrue(latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            RegistrarManager.unregisterMainThreadHandler(handler);
+        }
+        MainThreadDeliveryStats after = RegistrarManager.getMainThreadDeliveryStats();
+
+        assertFalse(offMainThread[0]);
+        for (int i = 0; i < MESSAGES; i++) {
+            assertEquals(String.valueOf(i), received.get(i));
+        }
+        assertEquals(MESSAGES, after.getDeliveries() - before.getDeliveries());
+        assertTrue(after.getDeferredBatches() > before.getDeferredBatches());
+    }
+
+}
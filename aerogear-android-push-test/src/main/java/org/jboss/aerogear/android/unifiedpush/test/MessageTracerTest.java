@@ -0,0 +1,121 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Bundle;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.jboss.aerogear.android.unifiedpush.MessageHandler;
+import org.jboss.aerogear.android.unifiedpush.MessageTracer;
+import org.jboss.aerogear.android.unifiedpush.PushConstants;
+import org.jboss.aerogear.android.unifiedpush.RegistrarManager;
+import org.jboss.aerogear.android.unifiedpush.TraceSpan;
+import org.jboss.aerogear.android.unifiedpush.gcm.AeroGearGCMMessageReceiver;
+import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
+
+public class MessageTracerTest extends PatchedActivityInstrumentationTestCase<MainActivity> {
+
+    public MessageTracerTest() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        MessageTracer.clear();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        MessageTracer.setSamplingRate(0);
+        MessageTracer.clear();
+        super.tearDown();
+    }
+
+    public void testTracedMessageRecordsEveryStage() throws InterruptedException {
+        MessageTracer.setSamplingRate(1);
+        Context ctx = getActivity().getApplicationContext();
+        AeroGearGCMMessageReceiver receiver = new AeroGearGCMMessageReceiver();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final long[] traceId = new long[1];
+        MessageHandler handler = new MessageHandler() {
+
+            @Override
+            public void onDeleteMessage(Context context, Bundle message) {
+            }
+
+            @Override
+            public void onMessage(Context context, Bundle message) {
+                traceId[0] = message.getLong(PushConstants.TRACE_ID, 0);
+                latch.countDown();
+            }
+
+            @Override
+            public void onError() {
+            }
+        };
+        RegistrarManager.registerBackgroundThreadHandler(handler);
+        try {
+            ctx.registerReceiver(receiver, new IntentFilter("com.google.android.c2dm.intent.RECEIVE"));
+            ctx.sendBroadcast(new Intent("com.google.android.c2dm.intent.RECEIVE").putExtra("testKey", "testValue"));
+            assertTrue(latch.await(2, TimeUnit.SECONDS));
+            assertTrue(traceId[0] != 0);
+
+            Set<String> stages = new HashSet<String>();
+            long deadline = System.currentTimeMillis() + 1000;
+            while (!stages.contains(TraceSpan.STAGE_HANDLER) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+                stages.clear();
+                for (TraceSpan span : MessageTracer.dump(traceId[0])) {
+                    stages.add(span.getStage());
+                }
+            }
+
+            assertTrue(stages.contains(TraceSpan.STAGE_RECEIVE));
+            assertTrue(stages.contains(TraceSpan.STAGE_QUEUE));
+            assertTrue(stages.contains(TraceSpan.STAGE_HANDLER));
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+            ctx.unregisterReceiver(receiver);
+        }
+    }
+
+    public void testUnsampledMessagesAreNotTraced() {
+        MessageTracer.setSamplingRate(0);
+        assertEquals(0, MessageTracer.startTrace());
+        MessageTracer.record(0, TraceSpan.STAGE_RECEIVE, null, 0, 1);
+        assertTrue(MessageTracer.dump().isEmpty());
+    }
+
+    public void testRingBufferKeepsTheNewestSpans() {
+        for (int i = 0; i < MessageTracer.CAPACITY + 10; i++) {
+            MessageTracer.record(i + 1, TraceSpan.STAGE_RECEIVE, null, i, i + 1);
+        }
+
+        List<TraceSpan> spans = MessageTracer.dump();
+        assertEquals(MessageTracer.CAPACITY, spans.size());
+        assertEquals(11, spans.get(0).getTraceId());
+        assertEquals(MessageTracer.CAPACITY + 10, spans.get(spans.size() - 1).getTraceId());
+    }
+
+}
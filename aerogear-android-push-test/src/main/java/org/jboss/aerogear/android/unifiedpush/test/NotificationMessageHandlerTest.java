@@ -0,0 +1,110 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import java.io.ByteArrayOutputStream;
+import java.util.UUID;
+import org.jboss.aerogear.android.unifiedpush.NotificationMessageHandler;
+import org.jboss.aerogear.android.unifiedpush.test.util.LocalHttpServer;
+import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
+
+public class NotificationMessageHandlerTest extends PatchedActivityInstrumentationTestCase<MainActivity> {
+
+    private LocalHttpServer server;
+
+    public NotificationMessageHandlerTest() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        server = new LocalHttpServer();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        server.close();
+        super.tearDown();
+    }
+
+    public void testImageIsDownloadedOnce() throws Exception {
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        Bitmap.createBitmap(64, 64, Bitmap.Config.ARGB_8888).compress(Bitmap.CompressFormat.PNG, 100, png);
+        server.respond(200, "image/png", png.toByteArray());
+        Context context = getActivity().getApplicationContext();
+        NotificationMessageHandler handler = new NotificationMessageHandler(5000);
+        String image = imageUrl();
+
+        handler.onMessage(context, message(image));
+        handler.onMessage(context, message(image));
+
+        assertEquals(1, server.getRequestCount());
+    }
+
+    public void testSlowImageFallsBackToText() throws Exception {
+        server.stall();
+        Context context = getActivity().getApplicationContext();
+        NotificationMessageHandler handler = new NotificationMessageHandler(200);
+
+        long start = System.currentTimeMillis();
+        handler.onMessage(context, message(imageUrl()));
+
+        assertTrue(System.currentTimeMillis() - start < 2000);
+    }
+
+    public void testNotificationIdsFollowCollapseKeyAndMessageId() {
+        IdHandler handler = new IdHandler();
+        Bundle first = message(null);
+        first.putString("google.message_id", "0:1");
+        Bundle second = message(null);
+        second.putString("google.message_id", "0:2");
+        Bundle collapsed = message(null);
+        collapsed.putString("collapse_key", "score");
+        collapsed.putString("google.message_id", "0:3");
+        Bundle update = message(null);
+        update.putString("collapse_key", "score");
+        update.putString("google.message_id", "0:4");
+
+        assertFalse(handler.idOf(first) == handler.idOf(second));
+        assertEquals(handler.idOf(collapsed), handler.idOf(update));
+        assertFalse(handler.idOf(message(null)) == handler.idOf(message(null)));
+    }
+
+    private String imageUrl() {
+        return server.url("/" + UUID.randomUUID() + ".png");
+    }
+
+    private static Bundle message(String image) {
+        Bundle message = new Bundle();
+        message.putString(NotificationMessageHandler.EXTRA_TITLE, "title");
+        message.putString(NotificationMessageHandler.EXTRA_ALERT, "alert");
+        message.putString(NotificationMessageHandler.EXTRA_IMAGE, image);
+        return message;
+    }
+
+    private static final class IdHandler extends NotificationMessageHandler {
+
+        int idOf(Bundle message) {
+            return notificationId(message);
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test;
+
+import android.content.Intent;
+import java.util.concurrent.TimeUnit;
+import org.jboss.aerogear.android.unifiedpush.PushConstants;
+import org.jboss.aerogear.android.unifiedpush.RegistrarManager;
+import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
+import org.jboss.aerogear.android.unifiedpush.test.util.RecordingHandler;
+
+public class OrderedDispatchTest extends PatchedActivityInstrumentationTestCase<MainActivity> {
+
+    public OrderedDispatchTest() {
+        super(MainActivity.class);
+    }
+
+    public void testMessagesWithTheSameKeyKeepTheirOrder() throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler(2);
+        RegistrarManager.registerBackgroundThreadHandler(handler);
+        try {
+            RegistrarManager.notifyHandlers(getActivity(), message("conversation-1", "create", 200), null);
+            RegistrarManager.notifyHandlers(getActivity(), message("conversation-1", "edit", 0), null);
+            assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+        }
+
+        assertEquals("create", handler.received.get(0));
+        assertEquals("edit", handler.received.get(1));
+    }
+
+    public void testMessagesWithDifferentKeysRunInParallel() throws InterruptedException {
+        int fastMessages = 8;
+        RecordingHandler handler = new RecordingHandler(fastMessages + 1);
+        RegistrarManager.registerBackgroundThreadHandler(handler);
+        try {
+            RegistrarManager.notifyHandlers(getActivity(), message("slow", "slow", 1000), null);
+            for (int i = 0; i < fastMessages; i++) {
+                RegistrarManager.notifyHandlers(getActivity(), message("fast-" + i, "fast", 0), null);
+            }
+            assertTrue(handler.latch.await(3, TimeUnit.SECONDS));
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+        }
+
+        assertEquals("fast", handler.received.get(0));
+    }
+
+    public void testPendingMessagesWithTheSameKeyAreCoalesced() throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler(2);
+        RegistrarManager.setCoalescingKeyExtra(RegistrarManager.DEFAULT_ORDERING_KEY_EXTRA);
+        RegistrarManager.registerBackgroundThreadHandler(handler);
+        long coalescedBefore = RegistrarManager.getCoalescedMessageCount();
+        try {
+            RegistrarManager.notifyHandlers(getActivity(), message("badge", "first", 500), null);
+            Thread.sleep(100);
+            RegistrarManager.notifyHandlers(getActivity(), message("badge", "second", 0), null);
+            RegistrarManager.notifyHandlers(getActivity(), message("badge", "third", 0), null);
+            RegistrarManager.notifyHandlers(getActivity(), message("badge", "latest", 0), null);
+            assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+            Thread.sleep(100);
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+            RegistrarManager.setCoalescingKeyExtra(null);
+        }
+
+        assertEquals(2, handler.received.size());
+        assertEquals("first", handler.received.get(0));
+        assertEquals("latest", handler.received.get(1));
+        assertEquals(2, RegistrarManager.getCoalescedMessageCount() - coalescedBefore);
+    }
+
+    public void testCoalescingNeverOvertakesMessagesWithTheSameOrderingKey() throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler(4);
+        RegistrarManager.setCoalescingKeyExtra("state");
+        RegistrarManager.registerBackgroundThreadHandler(handler);
+        try {
+            RegistrarManager.notifyHandlers(getActivity(), message("conversation-1", "first", 500), null);
+            Thread.sleep(100);
+            RegistrarManager.notifyHandlers(getActivity(), message("conversation-1", "badge-1", 0).putExtra("state", "badge"), null);
+            RegistrarManager.notifyHandlers(getActivity(), message("conversation-1", "edit", 0).putExtra("state", "text"), null);
+            RegistrarManager.notifyHandlers(getActivity(), message("conversation-1", "badge-2", 0).putExtra("state", "badge"), null);
+            assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+            RegistrarManager.setCoalescingKeyExtra(null);
+        }
+
+        assertEquals("first", handler.received.get(0));
+        assertEquals("badge-1", handler.received.get(1));
+        assertEquals("edit", handler.received.get(2));
+        assertEquals("badge-2", handler.received.get(3));
+    }
+
+    private static Intent message(String collapseKey, String body, long delay) {
+        return new Intent()
+                .putExtra(PushConstants.MESSAGE, true)
+                .putExtra(RegistrarManager.DEFAULT_ORDERING_KEY_EXTRA, collapseKey)
+                .putExtra("body", body)
+                .putExtra("delay", String.valueOf(delay));
+    }
+
+}
@@ -0,0 +1,109 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test;
+
+import android.content.Intent;
+import android.util.Base64;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.jboss.aerogear.android.unifiedpush.PayloadDecryptor;
+import org.jboss.aerogear.android.unifiedpush.PushConstants;
+import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
+
+public class PayloadDecryptorTest extends PatchedActivityInstrumentationTestCase<MainActivity> {
+
+    private static final byte[] IV = "0123456789abcdef".getBytes();
+
+    public PayloadDecryptorTest() {
+        super(MainActivity.class);
+    }
+
+    public void testDecryptsWithSharedKey() throws Exception {
+        SecretKey key = new SecretKeySpec("fedcba9876543210".getBytes(), "AES");
+        PayloadDecryptor decryptor = new PayloadDecryptor(key);
+
+        for (String text : new String[] { "first secret", "second secret" }) {
+            Intent message = encrypted(key, text, null);
+            assertTrue(decryptor.decrypt(message));
+            assertEquals(text, message.getStringExtra(PushConstants.PLAINTEXT));
+            assertNull(message.getStringExtra(PayloadDecryptor.EXTRA_CIPHERTEXT));
+        }
+    }
+
+    public void testDecryptsWithDerivedKey() throws Exception {
+        char[] passphrase = "correct horse battery staple".toCharArray();
+        byte[] salt = "salt-0001".getBytes();
+        PBEKeySpec spec = new PBEKeySpec(passphrase, salt, 10000, 128);
+        SecretKey key = new SecretKeySpec(SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1").generateSecret(spec).getEncoded(), "AES");
+        PayloadDecryptor decryptor = new PayloadDecryptor(passphrase);
+
+        Intent message = encrypted(key, "derived secret", Base64.encodeToString(salt, Base64.NO_WRAP));
+        assertTrue(decryptor.requiresKeyDerivation(message));
+        assertTrue(decryptor.decrypt(message));
+        assertEquals("derived secret", message.getStringExtra(PushConstants.PLAINTEXT));
+
+        Intent next = encrypted(key, "next secret", Base64.encodeToString(salt, Base64.NO_WRAP));
+        assertFalse(decryptor.requiresKeyDerivation(next));
+    }
+
+    public void testMalformedMessagesAreRejected() throws Exception {
+        SecretKey key = new SecretKeySpec("fedcba9876543210".getBytes(), "AES");
+        Intent withoutIv = encrypted(key, "secret", null);
+        withoutIv.removeExtra(PayloadDecryptor.EXTRA_IV);
+        assertFalse(new PayloadDecryptor(key).decrypt(withoutIv));
+        assertNotNull(withoutIv.getStringExtra(PayloadDecryptor.EXTRA_CIPHERTEXT));
+
+        Intent withoutSalt = encrypted(key, "secret", null);
+        assertFalse(new PayloadDecryptor("passphrase".toCharArray()).decrypt(withoutSalt));
+        assertNull(withoutSalt.getStringExtra(PushConstants.PLAINTEXT));
+    }
+
+    public void testUndecryptablePayloadIsLeftInPlace() throws Exception {
+        SecretKey key = new SecretKeySpec("fedcba9876543210".getBytes(), "AES");
+        SecretKey otherKey = new SecretKeySpec("0000000000000000".getBytes(), "AES");
+        Intent message = encrypted(key, "secret", null);
+
+        assertFalse(new PayloadDecryptor(otherKey).decrypt(message));
+        assertNull(message.getStringExtra(PushConstants.PLAINTEXT));
+        assertNotNull(message.getStringExtra(PayloadDecryptor.EXTRA_CIPHERTEXT));
+    }
+
+    public void testPlainMessagesPassThrough() {
+        Intent message = new Intent().putExtra("alert", "hello");
+        SecretKey key = new SecretKeySpec("fedcba9876543210".getBytes(), "AES");
+
+        assertFalse(new PayloadDecryptor(key).decrypt(message));
+        assertEquals("hello", message.getStringExtra("alert"));
+    }
+
+    private static Intent encrypted(SecretKey key, String text, String salt) throws Exception {
+        Cipher cipher = Cipher.getInstance(PayloadDecryptor.DEFAULT_TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(IV));
+        Intent message = new Intent()
+                .putExtra(PayloadDecryptor.EXTRA_CIPHERTEXT, Base64.encodeToString(cipher.doFinal(text.getBytes("UTF-8")), Base64.NO_WRAP))
+                .putExtra(PayloadDecryptor.EXTRA_IV, Base64.encodeToString(IV, Base64.NO_WRAP));
+        if (salt != null) {
+            message.putExtra(PayloadDecryptor.EXTRA_SALT, salt);
+        }
+        return message;
+    }
+
+}
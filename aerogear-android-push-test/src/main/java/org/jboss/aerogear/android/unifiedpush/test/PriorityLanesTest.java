@@ -0,0 +1,117 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test;
+
+import android.content.Intent;
+import java.util.concurrent.TimeUnit;
+import org.jboss.aerogear.android.unifiedpush.PriorityLaneStats;
+import org.jboss.aerogear.android.unifiedpush.PushConstants;
+import org.jboss.aerogear.android.unifiedpush.RegistrarManager;
+import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
+import org.jboss.aerogear.android.unifiedpush.test.util.RecordingHandler;
+
+public class PriorityLanesTest extends PatchedActivityInstrumentationTestCase<MainActivity> {
+
+    public PriorityLanesTest() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        RegistrarManager.setBulkThrottle(250);
+        super.tearDown();
+    }
+
+    public void testUrgentMessageOvertakesABulkBurst() throws InterruptedException {
+        int bulkMessages = 4 * Math.max(2, Runtime.getRuntime().availableProcessors());
+        RecordingHandler handler = new RecordingHandler(bulkMessages + 1);
+        long urgentBefore = RegistrarManager.getUrgentLaneStats().getInvocations();
+        RegistrarManager.setBulkThrottle(0);
+        RegistrarManager.registerBackgroundThreadHandler(handler);
+        try {
+            for (int i = 0; i < bulkMessages; i++) {
+                RegistrarManager.notifyHandlers(getActivity(), message("bulk", null, 200), null);
+            }
+            RegistrarManager.notifyHandlers(getActivity(), message("urgent", RegistrarManager.PRIORITY_HIGH, 0), null);
+            assertTrue(handler.latch.await(5, TimeUnit.SECONDS));
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+        }
+
+        assertTrue(handler.received.indexOf("urgent") < bulkMessages / 2);
+        assertEquals(1, RegistrarManager.getUrgentLaneStats().getInvocations() - urgentBefore);
+    }
+
+    public void testBulkMessagesWaitForUrgentMessagesInFlight() throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler(2);
+        long throttledBefore = RegistrarManager.getBulkLaneStats().getThrottledInvocations();
+        RegistrarManager.setBulkThrottle(2000);
+        RegistrarManager.registerBackgroundThreadHandler(handler);
+        try {
+            RegistrarManager.notifyHandlers(getActivity(), message("urgent", RegistrarManager.PRIORITY_HIGH, 300), null);
+            RegistrarManager.notifyHandlers(getActivity(), message("bulk", null, 0), null);
+            assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+        }
+
+        assertEquals("urgent", handler.received.get(0));
+        assertEquals("bulk", handler.received.get(1));
+        PriorityLaneStats bulk = RegistrarManager.getBulkLaneStats();
+        assertEquals(1, bulk.getThrottledInvocations() - throttledBefore);
+        assertTrue(bulk.getMaxWaitMicros() >= TimeUnit.MILLISECONDS.toMicros(200));
+    }
+
+    public void testUrgentMessagesAreNeverCoalescedIntoBulkMessages() throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler(3);
+        long urgentBefore = RegistrarManager.getUrgentLaneStats().getInvocations();
+        long coalescedBefore = RegistrarManager.getCoalescedMessageCount();
+        RegistrarManager.setBulkThrottle(0);
+        RegistrarManager.setCoalescingKeyExtra("state");
+        RegistrarManager.registerBackgroundThreadHandler(handler);
+        try {
+            RegistrarManager.notifyHandlers(getActivity(), message("busy", null, 500)
+                    .putExtra(RegistrarManager.DEFAULT_ORDERING_KEY_EXTRA, "score"), null);
+            RegistrarManager.notifyHandlers(getActivity(), message("stale", null, 0)
+                    .putExtra(RegistrarManager.DEFAULT_ORDERING_KEY_EXTRA, "score")
+                    .putExtra("state", "score"), null);
+            RegistrarManager.notifyHandlers(getActivity(), message("fresh", RegistrarManager.PRIORITY_HIGH, 0)
+                    .putExtra(RegistrarManager.DEFAULT_ORDERING_KEY_EXTRA, "score")
+                    .putExtra("state", "score"), null);
+            assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+            RegistrarManager.setCoalescingKeyExtra(null);
+        }
+
+        assertEquals("fresh", handler.received.get(0));
+        assertEquals(1, RegistrarManager.getUrgentLaneStats().getInvocations() - urgentBefore);
+        assertEquals(coalescedBefore, RegistrarManager.getCoalescedMessageCount());
+    }
+
+    private static Intent message(String body, String priority, long delay) {
+        Intent message = new Intent()
+                .putExtra(PushConstants.MESSAGE, true)
+                .putExtra("body", body)
+                .putExtra("delay", String.valueOf(delay));
+        if (priority != null) {
+            message.putExtra(RegistrarManager.DEFAULT_PRIORITY_EXTRA, priority);
+        }
+        return message;
+    }
+
+}
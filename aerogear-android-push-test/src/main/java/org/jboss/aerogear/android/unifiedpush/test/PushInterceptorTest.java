@@ -0,0 +1,199 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test;
+
+import android.content.Intent;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.jboss.aerogear.android.unifiedpush.InterceptorStats;
+import org.jboss.aerogear.android.unifiedpush.PushConstants;
+import org.jboss.aerogear.android.unifiedpush.PushInterceptor;
+import org.jboss.aerogear.android.unifiedpush.PushMessage;
+import org.jboss.aerogear.android.unifiedpush.RegistrarManager;
+import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
+import org.jboss.aerogear.android.unifiedpush.test.util.RecordingHandler;
+
+public class PushInterceptorTest extends PatchedActivityInstrumentationTestCase<MainActivity> {
+
+    private final List<PushInterceptor> added = new ArrayList<PushInterceptor>();
+
+    public PushInterceptorTest() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        for (PushInterceptor interceptor : added) {
+            RegistrarManager.removeInterceptor(interceptor);
+        }
+        super.tearDown();
+    }
+
+    public void testInterceptorsTransformAndDropMessages() throws InterruptedException {
+        add(new PushInterceptor() {
+            @Override
+            public void intercept(PushMessage message, Chain chain) {
+                if (!"spam".equals(message.getString("body"))) {
+                    chain.proceed(message);
+                }
+            }
+        });
+        add(new PushInterceptor() {
+            @Override
+            public void intercept(PushMessage message, Chain chain) {
+                chain.proceed(message.putString("body", message.getString("body").toUpperCase()));
+            }
+        });
+
+        List<String> received = deliver(1, "spam", "hello");
+
+        assertEquals(Arrays.asList("HELLO"), received);
+    }
+
+    public void testInterceptorsFanMessagesOut() throws InterruptedException {
+        add(new PushInterceptor() {
+            @Override
+            public void intercept(PushMessage message, Chain chain) {
+                for (String part : message.getString("body").split(",")) {
+                    chain.proceed(message.copy().putString("body", part));
+                }
+            }
+        });
+
+        List<String> received = deliver(3, "a,b,c");
+
+        Collections.sort(received);
+        assertEquals(Arrays.asList("a", "b", "c"), received);
+    }
+
+    public void testInterceptorsMayProceedAsynchronously() throws InterruptedException {
+        add(new PushInterceptor() {
+            @Override
+            public void intercept(final PushMessage message, final Chain chain) {
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        chain.proceed(message.putString("body", "decoded"));
+                    }
+                }).start();
+            }
+        });
+
+        List<String> received = deliver(1, "encoded");
+
+        assertEquals(Arrays.asList("decoded"), received);
+    }
+
+    public void testCallersAreToldWhenAsynchronousInterceptorsAreDone() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        add(new PushInterceptor() {
+            @Override
+            public void intercept(final PushMessage message, final Chain chain) {
+                if (!"later".equals(message.getString("body"))) {
+                    chain.proceed(message);
+                    return;
+                }
+                new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            release.await();
+                        } catch (InterruptedException ignore) {
+                        }
+                        chain.proceed(message);
+                    }
+                }).start();
+            }
+        });
+        final CountDownLatch done = new CountDownLatch(1);
+        Runnable whenDone = new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        };
+
+        assertFalse(RegistrarManager.notifyHandlers(getActivity(), message("now"), null, whenDone));
+        assertTrue(RegistrarManager.notifyHandlers(getActivity(), message("later"), null, whenDone));
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+
+        release.countDown();
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+    }
+
+    public void testStatsExcludeLaterStages() throws InterruptedException {
+        PushInterceptor fast = new PushInterceptor() {
+            @Override
+            public void intercept(PushMessage message, Chain chain) {
+                chain.proceed(message);
+            }
+        };
+        PushInterceptor slow = new PushInterceptor() {
+            @Override
+            public void intercept(PushMessage message, Chain chain) {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignore) {
+                }
+                chain.proceed(message);
+            }
+        };
+        add(fast);
+        add(slow);
+
+        deliver(2, "one", "two");
+
+        List<InterceptorStats> stats = RegistrarManager.getInterceptorStats();
+        assertEquals(2, stats.size());
+        assertSame(fast, stats.get(0).getInterceptor());
+        assertEquals(2, stats.get(0).getInvocations());
+        assertEquals(2, stats.get(1).getInvocations());
+        assertTrue(stats.get(1).getMeanMicros() >= TimeUnit.MILLISECONDS.toMicros(50));
+        assertTrue(stats.get(0).getMaxMicros() < TimeUnit.MILLISECONDS.toMicros(50));
+    }
+
+    private void add(PushInterceptor interceptor) {
+        added.add(interceptor);
+        RegistrarManager.addInterceptor(interceptor);
+    }
+
+    private List<String> deliver(int expected, String... bodies) throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler(expected);
+        RegistrarManager.registerBackgroundThreadHandler(handler);
+        try {
+            for (String body : bodies) {
+                RegistrarManager.notifyHandlers(getActivity(), message(body), null);
+            }
+            assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+            Thread.sleep(100);
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+        }
+        return new ArrayList<String>(handler.received);
+    }
+
+    private static Intent message(String body) {
+        return new Intent()
+                .putExtra(PushConstants.MESSAGE, true)
+                .putExtra("body", body);
+    }
+
+}
@@ -0,0 +1,93 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test;
+
+import android.os.Debug;
+import android.util.Log;
+import java.util.ArrayList;
+import java.util.List;
+import org.jboss.aerogear.android.unifiedpush.PushLog;
+import org.jboss.aerogear.android.unifiedpush.PushLogSink;
+import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
+
+public class PushLogTest extends PatchedActivityInstrumentationTestCase<MainActivity> {
+
+    private final List<String> records = new ArrayList<String>();
+
+    public PushLogTest() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        PushLog.setSink(new PushLogSink() {
+
+            @Override
+            public void log(int level, String tag, String message, Throwable error) {
+                records.add(level + ":" + tag + ":" + message);
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        PushLog.setSink(null);
+        PushLog.setLevel(Log.INFO);
+        super.tearDown();
+    }
+
+    public void testRecordsBelowTheLevelAreDropped() {
+        PushLog.setLevel(Log.WARN);
+        PushLog.d("tag", "dropped {}", "arg");
+        PushLog.w("tag", "kept {}", "arg");
+
+        assertEquals(1, records.size());
+        assertEquals(Log.WARN + ":tag:kept arg", records.get(0));
+    }
+
+    public void testArgumentsReplacePlaceholders() {
+        PushLog.setLevel(Log.VERBOSE);
+        PushLog.d("tag", "{} and {}", "first", "second");
+        PushLog.v("tag", "version {}", 1234567L);
+        PushLog.i("tag", "no placeholder", "ignored");
+
+        assertEquals(Log.DEBUG + ":tag:first and second", records.get(0));
+        assertEquals(Log.VERBOSE + ":tag:version 1234567", records.get(1));
+        assertEquals(Log.INFO + ":tag:no placeholder", records.get(2));
+    }
+
+    @SuppressWarnings("deprecation")
+    public void testDisabledRecordsDoNotAllocate() {
+        PushLog.setLevel(Log.ERROR);
+        Object arg = new Object();
+        long value = System.currentTimeMillis();
+
+        Debug.resetThreadAllocCount();
+        Debug.startAllocCounting();
+        for (int i = 0; i < 1000; i++) {
+            PushLog.v("tag", "value {}", value);
+            PushLog.d("tag", "{} and {}", arg, arg);
+            PushLog.w("tag", "arg {}", arg);
+        }
+        Debug.stopAllocCounting();
+
+        assertEquals(0, Debug.getThreadAllocCount());
+        assertTrue(records.isEmpty());
+    }
+
+}
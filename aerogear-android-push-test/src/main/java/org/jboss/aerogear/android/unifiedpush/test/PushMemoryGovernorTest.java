@@ -0,0 +1,155 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.jboss.aerogear.android.unifiedpush.MemoryConsumer;
+import org.jboss.aerogear.android.unifiedpush.MessageHandler;
+import org.jboss.aerogear.android.unifiedpush.PushConstants;
+import org.jboss.aerogear.android.unifiedpush.PushMemoryGovernor;
+import org.jboss.aerogear.android.unifiedpush.RegistrarManager;
+import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
+
+public class PushMemoryGovernorTest extends PatchedActivityInstrumentationTestCase<MainActivity> {
+
+    private final PushMemoryGovernor governor = PushMemoryGovernor.getInstance();
+    private final FakeConsumer cache = new FakeConsumer();
+    private final FakeConsumer buffer = new FakeConsumer();
+    private final FakeConsumer queue = new FakeConsumer();
+
+    public PushMemoryGovernorTest() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        governor.register(cache, PushMemoryGovernor.RANK_CACHE);
+        governor.register(buffer, PushMemoryGovernor.RANK_BUFFER);
+        governor.register(queue, PushMemoryGovernor.RANK_QUEUE);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        governor.unregister(cache);
+        governor.unregister(buffer);
+        governor.unregister(queue);
+        RegistrarManager.disableDeferredDelivery();
+        RegistrarManager.setReplayBuffer(0, 0, 0);
+        super.tearDown();
+    }
+
+    public void testConsumersAreTrimmedInRankOrder() {
+        governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW);
+        assertEquals(500, cache.footprint);
+        assertEquals(1000, buffer.footprint);
+        assertEquals(1000, queue.footprint);
+
+        governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN);
+        assertEquals(0, cache.footprint);
+        assertEquals(500, buffer.footprint);
+        assertEquals(1000, queue.footprint);
+
+        governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+        assertEquals(0, buffer.footprint);
+        assertEquals(1000, queue.footprint);
+
+        governor.onLowMemory();
+        assertEquals(0, queue.footprint);
+    }
+
+    public void testFootprintIsReportedPerRank() {
+        assertTrue(governor.getFootprint() >= 3000);
+        assertTrue(governor.getFootprint(PushMemoryGovernor.RANK_QUEUE) >= 1000);
+    }
+
+    public void testSpilledDeferredMessagesAreStillDelivered() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(3);
+        MessageHandler handler = new MessageHandler() {
+
+            @Override
+            public void onDeleteMessage(Context context, Bundle message) {
+            }
+
+            @Override
+            public void onMessage(Context context, Bundle message) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onError() {
+            }
+        };
+        RegistrarManager.enableDeferredDelivery(getActivity(), TimeUnit.MINUTES.toMillis(10));
+        RegistrarManager.registerBackgroundThreadHandler(handler);
+        try {
+            RegistrarManager.notifyHandlers(getActivity(), message(RegistrarManager.PRIORITY_LOW), null);
+            RegistrarManager.notifyHandlers(getActivity(), message(RegistrarManager.PRIORITY_LOW), null);
+            long queued = governor.getFootprint(PushMemoryGovernor.RANK_QUEUE);
+
+            governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+            assertTrue(governor.getFootprint(PushMemoryGovernor.RANK_QUEUE) < queued);
+            assertEquals(2, RegistrarManager.getDeferredDeliveryStats().getPendingMessages());
+
+            RegistrarManager.notifyHandlers(getActivity(), message(RegistrarManager.PRIORITY_HIGH), null);
+            assertTrue(latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+        }
+    }
+
+    public void testReplayBufferIsEmptiedInTheBackground() {
+        RegistrarManager.setReplayBuffer(10, TimeUnit.MINUTES.toMillis(1), 64 * 1024);
+        RegistrarManager.notifyHandlers(getActivity(), message(null), null);
+        assertTrue(governor.getFootprint(PushMemoryGovernor.RANK_BUFFER) > 1000);
+
+        governor.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_BACKGROUND);
+
+        assertEquals(0, governor.getFootprint(PushMemoryGovernor.RANK_BUFFER));
+    }
+
+    private static Intent message(String priority) {
+        Intent message = new Intent()
+                .putExtra(PushConstants.MESSAGE, true)
+                .putExtra("body", "payload");
+        if (priority != null) {
+            message.putExtra(RegistrarManager.DEFAULT_PRIORITY_EXTRA, priority);
+        }
+        return message;
+    }
+
+    private static final class FakeConsumer implements MemoryConsumer {
+
+        long footprint = 1000;
+
+        @Override
+        public long getFootprint() {
+            return footprint;
+        }
+
+        @Override
+        public void trimToSize(long maxBytes) {
+            footprint = Math.min(footprint, maxBytes);
+        }
+    }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test;
+
+import android.util.Log;
+import dalvik.system.PathClassLoader;
+import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
+
+/**
+ * Loads RegistrarManager into a fresh class loader to measure its class
+ * loading cost and to verify which classes it pulls in.
+ */
+public class RegistrarManagerStartupTest extends PatchedActivityInstrumentationTestCase<MainActivity> {
+
+    private static final String TAG = RegistrarManagerStartupTest.class.getSimpleName();
+    private static final String REGISTRAR_MANAGER = "org.jboss.aerogear.android.unifiedpush.RegistrarManager";
+    private static final String GCM_CONFIGURATION = "org.jboss.aerogear.android.unifiedpush.gcm.AeroGearGCMPushConfiguration";
+    private static final String GCM_CONFIGURATION_PROVIDER = "org.jboss.aerogear.android.unifiedpush.gcm.AeroGearGCMPushConfigurationProvider";
+    private static final String GCM_REGISTRAR = "org.jboss.aerogear.android.unifiedpush.gcm.AeroGearGCMPushRegistrar";
+
+    public RegistrarManagerStartupTest() {
+        super(MainActivity.class);
+    }
+
+    public void testInitializationDoesNotLoadConfigurationProviders() throws Exception {
+        InspectableClassLoader loader = newLoader();
+
+        long start = System.nanoTime();
+        Class<?> registrarManager = Class.forName(REGISTRAR_MANAGER, true, loader);
+        registrarManager.getMethod("getRegistrar", String.class).invoke(null, "missing");
+        long elapsed = System.nanoTime() - start;
+        Log.i(TAG, "RegistrarManager class loading took " + (elapsed / 1000) + "us");
+
+        assertFalse(loader.isLoaded(GCM_CONFIGURATION_PROVIDER));
+        assertFalse(loader.isLoaded(GCM_CONFIGURATION));
+        assertFalse(loader.isLoaded(GCM_REGISTRAR));
+    }
+
+    public void testConfigLoadsTheDefaultProvider() throws Exception {
+        InspectableClassLoader loader = newLoader();
+        Class<?> registrarManager = Class.forName(REGISTRAR_MANAGER, true, loader);
+        Class<?> configurationClass = Class.forName(GCM_CONFIGURATION, true, loader);
+
+        long start = System.nanoTime();
+        Object config = registrarManager.getMethod("config", String.class, Class.class)
+                .invoke(null, "push", configurationClass);
+        long elapsed = System.nanoTime() - start;
+        Log.i(TAG, "First config() call took " + (elapsed / 1000) + "us");
+
+        assertTrue(configurationClass.isInstance(config));
+        assertTrue(loader.isLoaded(GCM_CONFIGURATION_PROVIDER));
+    }
+
+    private InspectableClassLoader newLoader() {
+        String apk = getInstrumentation().getTargetContext().getApplicationInfo().sourceDir;
+        return new InspectableClassLoader(apk, getClass().getClassLoader().getParent());
+    }
+
+    private static final class InspectableClassLoader extends PathClassLoader {
+
+        InspectableClassLoader(String path, ClassLoader parent) {
+            super(path, parent);
+        }
+
+        boolean isLoaded(String className) {
+            return findLoadedClass(className) != null;
+        }
+    }
+
+}
@@ -16,8 +16,13 @@
  */
 package org.jboss.aerogear.android.unifiedpush.test;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Map;
 import org.jboss.aerogear.android.core.ConfigurationProvider;
 import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
 import org.jboss.aerogear.android.unifiedpush.test.MainActivity;
@@ -35,6 +40,7 @@ public class RegistrationsTest extends PatchedActivityInstrumentationTestCase<Ma
     }
 
     private static final String PUSH = "push";
+    private static final String SNAPSHOT = "snapshot";
 
     public void testDefaultConfig() throws URISyntaxException {
 
@@ -74,6 +80,54 @@ public class RegistrationsTest extends PatchedActivityInstrumentationTestCase<Ma
 
     }
 
+    public void testRegistrarIsRebuiltFromSnapshot() throws Exception {
+        RegistrarManager
+                .config(SNAPSHOT, AeroGearGCMPushConfiguration.class)
+                .setSenderIds("TestID")
+                .setPushServerURI(new URI("http://testreg.com"))
+                .asRegistrar();
+        RegistrarManager.saveSnapshot(getActivity());
+        try {
+            forget(SNAPSHOT);
+            assertNull(RegistrarManager.getRegistrar(SNAPSHOT));
+
+            PushRegistrar registrar = RegistrarManager.getRegistrar(getActivity(), SNAPSHOT);
+            assertTrue(registrar instanceof AeroGearGCMPushRegistrar);
+            assertSame(registrar, RegistrarManager.getRegistrar(SNAPSHOT));
+        } finally {
+            RegistrarManager.clearSnapshot(getActivity());
+        }
+    }
+
+    public void testUnreadableSnapshotIsDiscarded() throws Exception {
+        File file = getActivity().getFileStreamPath("aerogear-push-registrars.ser");
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(file));
+        try {
+            out.writeObject("not a list of configurations");
+        } finally {
+            out.close();
+        }
+        forget(SNAPSHOT);
+
+        assertNull(RegistrarManager.getRegistrar(getActivity(), SNAPSHOT));
+        assertFalse(file.exists());
+    }
+
+    /**
+     * Makes RegistrarManager forget a registrar, as if the process was
+     * restarted.
+     */
+    private static void forget(String name) throws Exception {
+        for (String mapName : new String[] { "registrars", "configurations" }) {
+            Field field = RegistrarManager.class.getDeclaredField(mapName);
+            field.setAccessible(true);
+            ((Map<?, ?>) field.get(null)).remove(name);
+        }
+        Field snapshot = RegistrarManager.class.getDeclaredField("snapshot");
+        snapshot.setAccessible(true);
+        snapshot.set(null, null);
+    }
+
     private static final class BrokenConfig extends PushConfiguration<BrokenConfig> {
 
         @Override
@@ -0,0 +1,118 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test;
+
+import android.content.Intent;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.jboss.aerogear.android.unifiedpush.PushConstants;
+import org.jboss.aerogear.android.unifiedpush.RegistrarManager;
+import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
+import org.jboss.aerogear.android.unifiedpush.test.util.RecordingHandler;
+
+public class ReplayBufferTest extends PatchedActivityInstrumentationTestCase<MainActivity> {
+
+    public ReplayBufferTest() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        RegistrarManager.setReplayBuffer(10, TimeUnit.MINUTES.toMillis(1), 64 * 1024);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        RegistrarManager.setReplayBuffer(0, 0, 0);
+        super.tearDown();
+    }
+
+    public void testLateHandlerReceivesBufferedMessages() throws InterruptedException {
+        RegistrarManager.notifyHandlers(getActivity(), message("first"), null);
+        RegistrarManager.notifyHandlers(getActivity(), message("second"), null);
+
+        RecordingHandler handler = new RecordingHandler(2);
+        RegistrarManager.registerBackgroundThreadHandler(handler, true);
+        try {
+            assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+        }
+
+        assertEquals(Arrays.asList("first", "second"), handler.received);
+    }
+
+    public void testHandlerDoesNotReceiveAMessageTwice() throws InterruptedException {
+        RecordingHandler handler = new RecordingHandler(2);
+        RegistrarManager.registerBackgroundThreadHandler(handler, true);
+        RegistrarManager.notifyHandlers(getActivity(), message("live"), null);
+        RegistrarManager.unregisterBackgroundThreadHandler(handler);
+        RegistrarManager.notifyHandlers(getActivity(), message("missed"), null);
+
+        RegistrarManager.registerBackgroundThreadHandler(handler, true);
+        try {
+            assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+            Thread.sleep(200);
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+        }
+
+        assertEquals(Arrays.asList("live", "missed"), handler.received);
+    }
+
+    public void testBufferKeepsTheNewestMessages() throws InterruptedException {
+        RegistrarManager.setReplayBuffer(2, TimeUnit.MINUTES.toMillis(1), 64 * 1024);
+        for (int i = 0; i < 3; i++) {
+            RegistrarManager.notifyHandlers(getActivity(), message("message-" + i), null);
+        }
+
+        RecordingHandler handler = new RecordingHandler(2);
+        RegistrarManager.registerBackgroundThreadHandler(handler, true);
+        try {
+            assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+            Thread.sleep(200);
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+        }
+
+        assertEquals(Arrays.asList("message-1", "message-2"), handler.received);
+    }
+
+    public void testHandlersWithoutReplayOnlyReceiveNewMessages() throws InterruptedException {
+        RegistrarManager.notifyHandlers(getActivity(), message("old"), null);
+
+        RecordingHandler handler = new RecordingHandler(1);
+        RegistrarManager.registerBackgroundThreadHandler(handler);
+        try {
+            RegistrarManager.notifyHandlers(getActivity(), message("new"), null);
+            assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+        }
+
+        assertEquals(Arrays.asList("new"), handler.received);
+    }
+
+    private static Intent message(String body) {
+        return new Intent()
+                .putExtra(PushConstants.MESSAGE, true)
+                .putExtra(RegistrarManager.DEFAULT_ORDERING_KEY_EXTRA, "replay")
+                .putExtra("body", body);
+    }
+
+}
@@ -0,0 +1,86 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.jboss.aerogear.android.unifiedpush.MessageHandler;
+import org.jboss.aerogear.android.unifiedpush.PushConstants;
+import org.jboss.aerogear.android.unifiedpush.RegistrarManager;
+import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
+
+public class WeakHandlerRegistrationTest extends PatchedActivityInstrumentationTestCase<MainActivity> {
+
+    public WeakHandlerRegistrationTest() {
+        super(MainActivity.class);
+    }
+
+    public void testWeakHandlerIsNotified() throws InterruptedException {
+        LatchHandler handler = new LatchHandler();
+        RegistrarManager.registerWeakBackgroundThreadHandler(handler);
+        try {
+            RegistrarManager.notifyHandlers(getActivity(), message(), null);
+            assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+        } finally {
+            RegistrarManager.unregisterBackgroundThreadHandler(handler);
+        }
+    }
+
+    public void testCollectedWeakHandlerIsPurged() throws InterruptedException {
+        LatchHandler handler = new LatchHandler();
+        WeakReference<MessageHandler> probe = new WeakReference<MessageHandler>(handler);
+        RegistrarManager.registerWeakMainThreadHandler(handler);
+        handler = null;
+
+        for (int i = 0; i < 20 && probe.get() != null; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        assertNull(probe.get());
+
+        LatchHandler defaultHandler = new LatchHandler();
+        RegistrarManager.notifyHandlers(getActivity(), message(), defaultHandler);
+        assertTrue(defaultHandler.latch.await(2, TimeUnit.SECONDS));
+    }
+
+    private static Intent message() {
+        return new Intent().putExtra(PushConstants.MESSAGE, true);
+    }
+
+    private static final class LatchHandler implements MessageHandler {
+
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        @Override
+        public void onDeleteMessage(Context context, Bundle message) {
+        }
+
+        @Override
+        public void onMessage(Context context, Bundle message) {
+            latch.countDown();
+        }
+
+        @Override
+        public void onError() {
+        }
+    }
+
+}
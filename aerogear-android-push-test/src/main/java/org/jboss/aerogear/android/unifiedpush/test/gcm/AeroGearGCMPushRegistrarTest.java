@@ -17,16 +17,33 @@
 package org.jboss.aerogear.android.unifiedpush.test.gcm;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
 import android.util.Log;
 
 import com.google.android.gms.gcm.GoogleCloudMessaging;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertNull;
 
@@ -41,6 +58,8 @@ import org.jboss.aerogear.android.unifiedpush.test.util.VoidCallback;
 import org.jboss.aerogear.android.unifiedpush.test.MainActivity;
 import org.jboss.aerogear.android.unifiedpush.gcm.AeroGearGCMPushConfiguration;
 import org.jboss.aerogear.android.unifiedpush.gcm.AeroGearGCMPushRegistrar;
+import org.jboss.aerogear.android.unifiedpush.gcm.OnRegistrationStateChangedListener;
+import org.jboss.aerogear.android.unifiedpush.gcm.RegistrationState;
 import org.json.JSONObject;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mockito;
@@ -110,7 +129,7 @@ public class AeroGearGCMPushRegistrarTest extends PatchedActivityInstrumentation
         ArgumentCaptor<String> postCaptore = ArgumentCaptor.forClass(String.class);
         Mockito.verify(provider.mock).post(postCaptore.capture());
         JSONObject object = new JSONObject(postCaptore.getValue());
-        assertEquals(UnitTestUtils.getPrivateField(registrar, "deviceToken"), object.getString("deviceToken"));
+        assertEquals(deviceTokenOf(registrar), object.getString("deviceToken"));
     }
 
     public void testUnregister() throws Exception {
@@ -149,7 +168,141 @@ public class AeroGearGCMPushRegistrarTest extends PatchedActivityInstrumentation
         Mockito.verify(gcmProvider.mock).unregister();
         Mockito.verify(provider.mock).delete(Mockito.matches("tempId"));
         assertNull(callback.exception);
-        assertEquals("", UnitTestUtils.getPrivateField(registrar, "deviceToken"));
+        assertEquals("", deviceTokenOf(registrar));
+    }
+
+    public void testRegistrarsShareTokensPerSenderSet() throws Exception {
+        String senderA = UUID.randomUUID().toString();
+        String senderB = UUID.randomUUID().toString();
+
+        StubHttpProvider provider = new StubHttpProvider();
+        StubGCMProvider gcmProvider = new StubGCMProvider();
+        Mockito.doReturn("tokenA").when(gcmProvider.mock).register(senderA);
+        Mockito.doReturn("tokenB").when(gcmProvider.mock).register(senderB);
+
+        AeroGearGCMPushRegistrar first = newStubbedRegistrar(senderA, provider, gcmProvider);
+        AeroGearGCMPushRegistrar second = newStubbedRegistrar(senderA, provider, gcmProvider);
+        AeroGearGCMPushRegistrar other = newStubbedRegistrar(senderB, provider, gcmProvider);
+
+        for (AeroGearGCMPushRegistrar registrar : new AeroGearGCMPushRegistrar[] { first, second, other }) {
+            CountDownLatch latch = new CountDownLatch(1);
+            VoidCallback callback = new VoidCallback(latch);
+            registrar.register(getActivity(), callback);
+            latch.await(1, TimeUnit.SECONDS);
+            assertNull(callback.exception);
+        }
+
+        Mockito.verify(gcmProvider.mock, Mockito.times(1)).register(senderA);
+        Mockito.verify(gcmProvider.mock, Mockito.times(1)).register(senderB);
+        assertEquals("tokenA", first.getRegistrationId(getActivity()));
+        assertEquals("tokenA", second.getRegistrationId(getActivity()));
+        assertEquals("tokenB", other.getRegistrationId(getActivity()));
+    }
+
+    public void testTokensOfEarlierVersionsAreImported() throws Exception {
+        String sender = UUID.randomUUID().toString();
+        StubHttpProvider provider = new StubHttpProvider();
+        StubGCMProvider gcmProvider = new StubGCMProvider();
+        AeroGearGCMPushRegistrar registrar = newStubbedRegistrar(sender, provider, gcmProvider);
+
+        // the token as the registrar of an earlier version stored it
+        Context context = getActivity();
+        int appVersion = context.getPackageManager().getPackageInfo(context.getPackageName(), 0).versionCode;
+        SharedPreferences legacy = context.getSharedPreferences(AeroGearGCMPushRegistrar.class.getSimpleName(), Context.MODE_PRIVATE);
+        legacy.edit()
+                .putString(AeroGearGCMPushRegistrar.PROPERTY_REG_ID, "legacyToken")
+                .putInt("appVersion", appVersion)
+                .putLong("onServerExpirationTimeMs", System.currentTimeMillis() + 60000)
+                .commit();
+
+        CountDownLatch latch = new CountDownLatch(1);
+        VoidCallback callback = new VoidCallback(latch);
+        registrar.register(context, callback);
+        if (!latch.await(10, TimeUnit.SECONDS)) {
+            fail("Latch wasn't called");
+        }
+        assertNull(callback.exception);
+
+        Mockito.verify(gcmProvider.mock, Mockito.never()).register(sender);
+        assertEquals("legacyToken", registrar.getRegistrationId(context));
+        assertFalse(legacy.contains(AeroGearGCMPushRegistrar.PROPERTY_REG_ID));
+    }
+
+    public void testUpdatesAreCoalesced() throws Exception {
+        String sender = UUID.randomUUID().toString();
+        AeroGearGCMPushConfiguration config = new AeroGearGCMPushConfiguration()
+                .addSenderId(sender)
+                .setVariantID(UUID.randomUUID().toString())
+                .setSecret(TEST_SENDER_PASSWORD)
+                .setPushServerURI(new URI("https://testuri"));
+
+        AeroGearGCMPushRegistrar registrar = (AeroGearGCMPushRegistrar) config.asRegistrar();
+        StubHttpProvider provider = new StubHttpProvider();
+        UnitTestUtils.setPrivateField(registrar, "httpProviderProvider", provider);
+        StubGCMProvider gcmProvider = new StubGCMProvider();
+        Mockito.doReturn("tempId").when(gcmProvider.mock).register(sender);
+        UnitTestUtils.setPrivateField(registrar, "gcmProvider", gcmProvider);
+
+        CountDownLatch latch = new CountDownLatch(2);
+        VoidCallback aliasCallback = new VoidCallback(latch);
+        VoidCallback categoriesCallback = new VoidCallback(latch);
+        registrar.updateAlias(getActivity(), "alias", aliasCallback);
+        registrar.updateCategories(getActivity(), Arrays.asList("one", "two"), categoriesCallback);
+        if (!latch.await(5, TimeUnit.SECONDS)) {
+            fail("Latch wasn't called");
+        }
+        assertNull(aliasCallback.exception);
+        assertNull(categoriesCallback.exception);
+
+        ArgumentCaptor<String> postCaptor = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(provider.mock, Mockito.times(1)).post(postCaptor.capture());
+        JSONObject object = new JSONObject(postCaptor.getValue());
+        assertEquals("tempId", object.getString("deviceToken"));
+        assertEquals("alias", object.getString("alias"));
+        assertEquals(2, object.getJSONArray("categories").length());
+
+        latch = new CountDownLatch(1);
+        VoidCallback unchangedCallback = new VoidCallback(latch);
+        registrar.updateCategories(getActivity(), Arrays.asList("two", "one"), unchangedCallback);
+        if (!latch.await(5, TimeUnit.SECONDS)) {
+            fail("Latch wasn't called");
+        }
+        assertNull(unchangedCallback.exception);
+        Mockito.verify(provider.mock, Mockito.times(1)).post(Mockito.anyString());
+    }
+
+    public void testRegisterFailsOverToNextPushServer() throws Exception {
+        AeroGearGCMPushConfiguration config = new AeroGearGCMPushConfiguration()
+                .addSenderId(TEST_SENDER_ID)
+                .setVariantID(TEST_SENDER_VARIANT)
+                .setSecret(TEST_SENDER_PASSWORD)
+                .setPushServerURIs(new URI("https://down.testuri"), new URI("https://up.testuri"));
+
+        AeroGearGCMPushRegistrar registrar = (AeroGearGCMPushRegistrar) config.asRegistrar();
+        final StubHttpProvider healthy = new StubHttpProvider();
+        final HttpProvider broken = Mockito.mock(HttpProvider.class);
+        Mockito.doThrow(new RuntimeException("connection refused"))
+                .when(broken)
+                .post((String) Mockito.any());
+
+        UnitTestUtils.setPrivateField(registrar, "httpProviderProvider", new Provider<HttpProvider>() {
+
+            @Override
+            public HttpProvider get(Object... in) {
+                return ((URL) in[0]).getHost().startsWith("down") ? broken : healthy.mock;
+            }
+        });
+
+        CountDownLatch latch = new CountDownLatch(1);
+        VoidCallback callback = new VoidCallback(latch);
+        registrar.register(super.getActivity(), callback);
+        if (!latch.await(30, TimeUnit.SECONDS)) {
+            fail("Latch wasn't called");
+        }
+
+        assertNull(callback.exception);
+        Mockito.verify(broken).post(Mockito.anyString());
+        Mockito.verify(healthy.mock).post(Mockito.anyString());
     }
 
     public void testRegisterExceptionsAreCaught() throws Exception {
@@ -192,6 +345,264 @@ public class AeroGearGCMPushRegistrarTest extends PatchedActivityInstrumentation
         assertFalse(callback.exception instanceof IOException);
     }
 
+    public void testRegistrationStateFollowsRegister() throws Exception {
+        String sender = UUID.randomUUID().toString();
+        StubHttpProvider provider = new StubHttpProvider();
+        StubGCMProvider gcmProvider = new StubGCMProvider();
+        Mockito.doReturn("tempId").when(gcmProvider.mock).register(sender);
+        AeroGearGCMPushRegistrar registrar = newStubbedRegistrar(sender, provider, gcmProvider);
+        RecordingStateListener listener = new RecordingStateListener();
+        registrar.addOnRegistrationStateChangedListener(listener);
+        assertEquals(RegistrationState.Status.UNREGISTERED, registrar.getRegistrationState().getStatus());
+
+        CountDownLatch latch = new CountDownLatch(1);
+        VoidCallback callback = new VoidCallback(latch);
+        registrar.register(getActivity(), callback);
+        latch.await(1, TimeUnit.SECONDS);
+        assertNull(callback.exception);
+
+        assertEquals(Arrays.asList(RegistrationState.Status.TOKEN_FETCHING,
+                RegistrationState.Status.REGISTERING,
+                RegistrationState.Status.REGISTERED), listener.statuses);
+        RegistrationState state = registrar.getRegistrationState();
+        assertEquals(RegistrationState.Status.REGISTERED, state.getStatus());
+        assertTrue(state.getExpirationTime() > System.currentTimeMillis());
+    }
+
+    public void testRegistrationStateIsRestoredAfterColdStart() throws Exception {
+        String sender = UUID.randomUUID().toString();
+        String variant = UUID.randomUUID().toString();
+        StubHttpProvider provider = new StubHttpProvider();
+        StubGCMProvider gcmProvider = new StubGCMProvider();
+        Mockito.doReturn("tempId").when(gcmProvider.mock).register(sender);
+        AeroGearGCMPushRegistrar registrar = newStubbedRegistrar(sender, variant, provider, gcmProvider);
+
+        CountDownLatch latch = new CountDownLatch(1);
+        VoidCallback callback = new VoidCallback(latch);
+        registrar.register(getActivity(), callback);
+        latch.await(1, TimeUnit.SECONDS);
+        assertNull(callback.exception);
+
+        // a registrar of a later process, which did not run an operation yet
+        AeroGearGCMPushRegistrar restarted = newStubbedRegistrar(sender, variant, provider, gcmProvider);
+        RecordingStateListener listener = new RecordingStateListener();
+        restarted.addOnRegistrationStateChangedListener(listener);
+        RegistrationState state = restarted.getRegistrationState(getActivity());
+        assertEquals(RegistrationState.Status.REGISTERED, state.getStatus());
+        assertTrue(state.getExpirationTime() > System.currentTimeMillis());
+        assertEquals(Arrays.asList(RegistrationState.Status.REGISTERED), listener.statuses);
+
+        latch = new CountDownLatch(1);
+        VoidCallback updateCallback = new VoidCallback(latch);
+        restarted.updateAlias(getActivity(), null, updateCallback);
+        if (!latch.await(5, TimeUnit.SECONDS)) {
+            fail("Latch wasn't called");
+        }
+        assertNull(updateCallback.exception);
+        Mockito.verify(provider.mock, Mockito.times(1)).post(Mockito.anyString());
+        assertEquals(RegistrationState.Status.REGISTERED, restarted.getRegistrationState().getStatus());
+    }
+
+    public void testRegistrationStateReportsFailureCause() throws Exception {
+        String sender = UUID.randomUUID().toString();
+        StubGCMProvider gcmProvider = new StubGCMProvider();
+        Mockito.doReturn("tempId").when(gcmProvider.mock).register(sender);
+        AeroGearGCMPushRegistrar registrar = newStubbedRegistrar(sender, new StubHttpProvider(), gcmProvider);
+        UnitTestUtils.setPrivateField(registrar, "httpProviderProvider", new BrokenStubHttpProvider());
+
+        CountDownLatch latch = new CountDownLatch(1);
+        VoidCallback callback = new VoidCallback(latch);
+        registrar.register(getActivity(), callback);
+        latch.await(1, TimeUnit.SECONDS);
+
+        RegistrationState state = registrar.getRegistrationState();
+        assertEquals(RegistrationState.Status.FAILED, state.getStatus());
+        assertSame(callback.exception, state.getCause());
+    }
+
+    public void testConcurrentRegisterAndUnregisterNeverDeleteAnEmptyToken() throws Exception {
+        String sender = UUID.randomUUID().toString();
+        StubHttpProvider provider = new StubHttpProvider();
+        StubGCMProvider gcmProvider = new StubGCMProvider();
+        Mockito.doReturn("tempId").when(gcmProvider.mock).register(sender);
+        final AeroGearGCMPushRegistrar registrar = newStubbedRegistrar(sender, provider, gcmProvider);
+        // the serial executor would never let the operations overlap
+        UnitTestUtils.setPrivateField(registrar, "taskExecutor", AsyncTask.THREAD_POOL_EXECUTOR);
+        final Context context = getActivity();
+
+        final int rounds = 50;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(rounds * 2);
+        for (int i = 0; i < 4; i++) {
+            final boolean registering = i % 2 == 0;
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    for (int round = 0; round < rounds / 2; round++) {
+                        VoidCallback callback = new VoidCallback(done);
+                        if (registering) {
+                            registrar.register(context, callback);
+                        } else {
+                            registrar.unregister(context, callback);
+                        }
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+
+        Mockito.verify(provider.mock, Mockito.never()).delete("");
+        ArgumentCaptor<String> deleted = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(provider.mock, Mockito.atLeast(0)).delete(deleted.capture());
+        for (String token : deleted.getAllValues()) {
+            assertEquals("tempId", token);
+        }
+        String token = deviceTokenOf(registrar);
+        assertTrue("".equals(token) || "tempId".equals(token));
+    }
+
+    public void testConcurrentRegistrationsOfAVariantPostOnce() throws Exception {
+        String sender = UUID.randomUUID().toString();
+        String variant = UUID.randomUUID().toString();
+        SlowStubHttpProvider provider = new SlowStubHttpProvider();
+        StubGCMProvider gcmProvider = new StubGCMProvider();
+        Mockito.doReturn("tempId").when(gcmProvider.mock).register(sender);
+
+        // registrars of two processes, which only share the files of the application
+        AeroGearGCMPushRegistrar first = newStubbedRegistrar(sender, variant, provider, gcmProvider);
+        AeroGearGCMPushRegistrar second = newStubbedRegistrar(sender, variant, provider, gcmProvider);
+        // the serial executor would never let the registrations overlap
+        UnitTestUtils.setPrivateField(first, "taskExecutor", AsyncTask.THREAD_POOL_EXECUTOR);
+        UnitTestUtils.setPrivateField(second, "taskExecutor", AsyncTask.THREAD_POOL_EXECUTOR);
+
+        CountDownLatch latch = new CountDownLatch(2);
+        VoidCallback firstCallback = new VoidCallback(latch);
+        VoidCallback secondCallback = new VoidCallback(latch);
+        first.register(getActivity(), firstCallback);
+        second.register(getActivity(), secondCallback);
+        if (!latch.await(10, TimeUnit.SECONDS)) {
+            fail("Latch wasn't called");
+        }
+        assertNull(firstCallback.exception);
+        assertNull(secondCallback.exception);
+
+        Mockito.verify(gcmProvider.mock, Mockito.times(1)).register(sender);
+        Mockito.verify(provider.mock, Mockito.times(1)).post(Mockito.anyString());
+        assertEquals("tempId", first.getRegistrationId(getActivity()));
+        assertEquals("tempId", second.getRegistrationId(getActivity()));
+
+        latch = new CountDownLatch(1);
+        VoidCallback laterCallback = new VoidCallback(latch);
+        second.register(getActivity(), laterCallback);
+        if (!latch.await(10, TimeUnit.SECONDS)) {
+            fail("Latch wasn't called");
+        }
+        assertNull(laterCallback.exception);
+        Mockito.verify(provider.mock, Mockito.times(2)).post(Mockito.anyString());
+    }
+
+    public void testRegistrationWaitsForTheLeaseOfAnotherProcess() throws Exception {
+        String sender = UUID.randomUUID().toString();
+        String variant = UUID.randomUUID().toString();
+        StubHttpProvider provider = new StubHttpProvider();
+        StubGCMProvider gcmProvider = new StubGCMProvider();
+        Mockito.doReturn("tempId").when(gcmProvider.mock).register(sender);
+        AeroGearGCMPushRegistrar registrar = newStubbedRegistrar(sender, variant, provider, gcmProvider);
+
+        // another process holds the file lock of the registration lease
+        File leases = new File(getActivity().getFilesDir(), "aerogear-push-leases");
+        leases.mkdirs();
+        RandomAccessFile otherProcess = new RandomAccessFile(new File(leases, "gcm-registration-" + variant), "rw");
+        FileLock otherLease = otherProcess.getChannel().lock();
+        CountDownLatch latch = new CountDownLatch(1);
+        VoidCallback callback = new VoidCallback(latch);
+        try {
+            registrar.register(getActivity(), callback);
+            assertFalse(latch.await(500, TimeUnit.MILLISECONDS));
+            Mockito.verify(gcmProvider.mock, Mockito.never()).register(sender);
+            Mockito.verify(provider.mock, Mockito.never()).post(Mockito.anyString());
+        } finally {
+            otherLease.release();
+            otherProcess.close();
+        }
+
+        if (!latch.await(10, TimeUnit.SECONDS)) {
+            fail("Latch wasn't called");
+        }
+        assertNull(callback.exception);
+        Mockito.verify(provider.mock, Mockito.times(1)).post(Mockito.anyString());
+        assertEquals("tempId", registrar.getRegistrationId(getActivity()));
+    }
+
+    public void testTokensRewrittenWithinASecondAreReloaded() throws Exception {
+        String sender = UUID.randomUUID().toString();
+        StubHttpProvider provider = new StubHttpProvider();
+        StubGCMProvider gcmProvider = new StubGCMProvider();
+        Mockito.doReturn("tokenA").when(gcmProvider.mock).register(sender);
+        AeroGearGCMPushRegistrar registrar = newStubbedRegistrar(sender, provider, gcmProvider);
+
+        CountDownLatch latch = new CountDownLatch(1);
+        VoidCallback callback = new VoidCallback(latch);
+        registrar.register(getActivity(), callback);
+        latch.await(1, TimeUnit.SECONDS);
+        assertNull(callback.exception);
+        assertEquals("tokenA", registrar.getRegistrationId(getActivity()));
+
+        // another process replaces the token by one of the same length in the same second
+        File tokens = new File(getActivity().getFilesDir(), "aerogear-push-tokens.properties");
+        long modified = tokens.lastModified();
+        Properties values = new Properties();
+        InputStream in = new FileInputStream(tokens);
+        try {
+            values.load(in);
+        } finally {
+            in.close();
+        }
+        for (String key : values.stringPropertyNames()) {
+            if ("tokenA".equals(values.getProperty(key))) {
+                values.setProperty(key, "tokenB");
+            }
+        }
+        OutputStream out = new FileOutputStream(tokens);
+        try {
+            values.store(out, null);
+        } finally {
+            out.close();
+        }
+        tokens.setLastModified(modified);
+
+        assertEquals("tokenB", registrar.getRegistrationId(getActivity()));
+    }
+
+    private static String deviceTokenOf(AeroGearGCMPushRegistrar registrar) throws Exception {
+        AtomicReference<?> snapshot = (AtomicReference<?>) UnitTestUtils.getPrivateField(registrar, "snapshot");
+        return (String) UnitTestUtils.getPrivateField(snapshot.get(), "deviceToken");
+    }
+
+    private AeroGearGCMPushRegistrar newStubbedRegistrar(String senderId, StubHttpProvider provider, StubGCMProvider gcmProvider) throws Exception {
+        return newStubbedRegistrar(senderId, TEST_SENDER_VARIANT, provider, gcmProvider);
+    }
+
+    private AeroGearGCMPushRegistrar newStubbedRegistrar(String senderId, String variantId, StubHttpProvider provider, StubGCMProvider gcmProvider) throws Exception {
+        AeroGearGCMPushConfiguration config = new AeroGearGCMPushConfiguration()
+                .addSenderId(senderId)
+                .setVariantID(variantId)
+                .setSecret(TEST_SENDER_PASSWORD)
+                .setPushServerURI(new URI("https://testuri"));
+
+        AeroGearGCMPushRegistrar registrar = (AeroGearGCMPushRegistrar) config.asRegistrar();
+        UnitTestUtils.setPrivateField(registrar, "httpProviderProvider", provider);
+        UnitTestUtils.setPrivateField(registrar, "gcmProvider", gcmProvider);
+        return registrar;
+    }
+
     private class StubHttpProvider implements Provider<HttpProvider> {
 
         protected final HttpProvider mock = Mockito.mock(HttpProvider.class);
@@ -213,6 +624,18 @@ public class AeroGearGCMPushRegistrarTest extends PatchedActivityInstrumentation
         }
     }
 
+    private class SlowStubHttpProvider extends StubHttpProvider {
+
+        @Override
+        public HttpProvider get(Object... in) {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignore) {
+            }
+            return mock;
+        }
+    }
+
     private class BrokenStubHttpProvider implements Provider<HttpProvider> {
 
         protected final HttpProvider mock = Mockito.mock(HttpProvider.class);
@@ -234,6 +657,16 @@ public class AeroGearGCMPushRegistrarTest extends PatchedActivityInstrumentation
         }
     }
 
+    private static class RecordingStateListener implements OnRegistrationStateChangedListener {
+
+        final List<RegistrationState.Status> statuses = Collections.synchronizedList(new ArrayList<RegistrationState.Status>());
+
+        @Override
+        public void onRegistrationStateChanged(AeroGearGCMPushRegistrar registrar, RegistrationState previous, RegistrationState current) {
+            statuses.add(current.getStatus());
+        }
+    }
+
     private class StubGCMProvider implements Provider<GoogleCloudMessaging> {
 
         protected final GoogleCloudMessaging mock = Mockito.mock(GoogleCloudMessaging.class);
@@ -0,0 +1,134 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test.gcm;
+
+import android.content.Intent;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.jboss.aerogear.android.core.Provider;
+import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
+import org.jboss.aerogear.android.pipe.http.HttpProvider;
+import org.jboss.aerogear.android.unifiedpush.PushConstants;
+import org.jboss.aerogear.android.unifiedpush.gcm.AeroGearGCMPushConfiguration;
+import org.jboss.aerogear.android.unifiedpush.gcm.AeroGearGCMPushRegistrar;
+import org.jboss.aerogear.android.unifiedpush.gcm.PayloadPuller;
+import org.jboss.aerogear.android.unifiedpush.test.MainActivity;
+import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
+import org.jboss.aerogear.android.unifiedpush.test.util.RecordingHandler;
+import org.jboss.aerogear.android.unifiedpush.test.util.UnitTestUtils;
+import org.json.JSONObject;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+public class PayloadPullerTest extends PatchedActivityInstrumentationTestCase<MainActivity> {
+
+    private static final String PAYLOADS = "{\"1\":{\"alert\":\"one\"},\"2\":{\"alert\":\"two\"},\"3\":{\"alert\":\"three\"}}";
+
+    private final HttpProvider server = Mockito.mock(HttpProvider.class);
+    private volatile int lastTimeout;
+    private PayloadPuller puller;
+
+    public PayloadPullerTest() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        AeroGearGCMPushConfiguration config = new AeroGearGCMPushConfiguration()
+                .addSenderId("272275396485")
+                .setVariantID("Variant")
+                .setSecret("Password")
+                .setPushServerURI(new URI("https://testuri"));
+        AeroGearGCMPushRegistrar registrar = (AeroGearGCMPushRegistrar) config.asRegistrar();
+        UnitTestUtils.setPrivateField(registrar, "httpProviderProvider", new Provider<HttpProvider>() {
+
+            @Override
+            public HttpProvider get(Object... in) {
+                lastTimeout = (Integer) in[1];
+                return server;
+            }
+        });
+        puller = new PayloadPuller(registrar, "/rest/payloads", 100);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        puller.shutdown();
+        super.tearDown();
+    }
+
+    public void testIdsOfABurstAreFetchedInOneRequest() throws Exception {
+        Mockito.doReturn(new HeaderAndBody(PAYLOADS.getBytes("UTF-8"), new HashMap<String, Object>()))
+                .when(server).post(Mockito.anyString());
+        RecordingHandler handler = new RecordingHandler(3, "alert");
+
+        for (String id : new String[] { "1", "2", "3" }) {
+            puller.enqueue(getActivity(), message(id), null, handler);
+        }
+        assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+
+        ArgumentCaptor<String> request = ArgumentCaptor.forClass(String.class);
+        Mockito.verify(server, Mockito.times(1)).post(request.capture());
+        assertEquals(3, new JSONObject(request.getValue()).getJSONArray("ids").length());
+        assertTrue(handler.received.containsAll(Arrays.asList("one", "two", "three")));
+
+        assertTrue(puller.applyCached(message("2")));
+    }
+
+    public void testFailedFetchStillDeliversTheMessage() throws Exception {
+        Mockito.doThrow(new RuntimeException("offline")).when(server).post(Mockito.anyString());
+        RecordingHandler handler = new RecordingHandler(1, "alert");
+
+        puller.enqueue(getActivity(), message("4"), null, handler);
+        assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+
+        assertTrue(handler.anyFlagged(PayloadPuller.EXTRA_PULL_FAILED));
+    }
+
+    public void testFetchTimeoutStaysWithinTheHoldLimit() throws Exception {
+        Mockito.doReturn(new HeaderAndBody(PAYLOADS.getBytes("UTF-8"), new HashMap<String, Object>()))
+                .when(server).post(Mockito.anyString());
+        RecordingHandler handler = new RecordingHandler(1, "alert");
+
+        puller.enqueue(getActivity(), message("1"), null, handler);
+        assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+
+        assertTrue(lastTimeout > 0);
+        assertTrue(lastTimeout <= PayloadPuller.MAX_HOLD_MS);
+    }
+
+    public void testMessagesQueuedAfterShutdownAreDelivered() throws Exception {
+        RecordingHandler handler = new RecordingHandler(1, "alert");
+        puller.shutdown();
+
+        puller.enqueue(getActivity(), message("5"), null, handler);
+        assertTrue(handler.latch.await(2, TimeUnit.SECONDS));
+
+        assertTrue(handler.anyFlagged(PayloadPuller.EXTRA_PULL_FAILED));
+        Mockito.verify(server, Mockito.never()).post(Mockito.anyString());
+    }
+
+    private static Intent message(String id) {
+        return new Intent()
+                .putExtra(PushConstants.MESSAGE, true)
+                .putExtra(PayloadPuller.EXTRA_MESSAGE_ID, id);
+    }
+
+}
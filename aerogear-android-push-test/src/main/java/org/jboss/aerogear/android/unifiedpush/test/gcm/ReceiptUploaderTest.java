@@ -0,0 +1,157 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test.gcm;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.List;
+import org.jboss.aerogear.android.unifiedpush.gcm.AeroGearGCMPushConfiguration;
+import org.jboss.aerogear.android.unifiedpush.gcm.AeroGearGCMPushRegistrar;
+import org.jboss.aerogear.android.unifiedpush.gcm.ReceiptUploader;
+import org.jboss.aerogear.android.unifiedpush.test.MainActivity;
+import org.jboss.aerogear.android.unifiedpush.test.util.LocalHttpServer;
+import org.jboss.aerogear.android.unifiedpush.test.util.PatchedActivityInstrumentationTestCase;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+public class ReceiptUploaderTest extends PatchedActivityInstrumentationTestCase<MainActivity> {
+
+    private LocalHttpServer server;
+    private AeroGearGCMPushRegistrar registrar;
+    private ReceiptUploader uploader;
+
+    public ReceiptUploaderTest() {
+        super(MainActivity.class);
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        journal().delete();
+        server = new LocalHttpServer();
+        AeroGearGCMPushConfiguration config = new AeroGearGCMPushConfiguration()
+                .addSenderId("272275396485")
+                .setVariantID("Variant")
+                .setSecret("Password")
+                .setPushServerURI(new URI(server.url("")));
+        registrar = (AeroGearGCMPushRegistrar) config.asRegistrar();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (uploader != null) {
+            uploader.shutdown();
+        }
+        server.close();
+        journal().delete();
+        super.tearDown();
+    }
+
+    public void testAFullBatchIsUploadedInOneRequest() throws Exception {
+        uploader = new ReceiptUploader(getActivity(), registrar, "/rest/receipts", 3, 600000, 100);
+
+        uploader.recordReceipt("1");
+        uploader.recordReceipt("2");
+        uploader.recordOpen("1");
+        awaitUploaded(3);
+
+        List<String> requests = server.getRequestBodies();
+        assertEquals(1, requests.size());
+        JSONArray events = new JSONObject(requests.get(0)).getJSONArray("events");
+        assertEquals(3, events.length());
+        assertEquals(ReceiptUploader.EVENT_RECEIVED, events.getJSONObject(0).getString("type"));
+        assertEquals(ReceiptUploader.EVENT_OPENED, events.getJSONObject(2).getString("type"));
+        assertEquals("1", events.getJSONObject(2).getString("id"));
+        assertEquals(0, uploader.getPendingEvents());
+    }
+
+    public void testFailedUploadsAreRetried() throws Exception {
+        server.failNext(1);
+        uploader = new ReceiptUploader(getActivity(), registrar, "/rest/receipts", 1, 100, 100);
+
+        uploader.recordReceipt("1");
+        awaitUploaded(1);
+
+        assertEquals(2, server.getRequestCount());
+        assertEquals(1, server.getRequestBodies().size());
+    }
+
+    public void testJournalIsBoundedWhileOffline() throws Exception {
+        server.respond(503, "application/json", new byte[0]);
+        uploader = new ReceiptUploader(getActivity(), registrar, "/rest/receipts", 2, 600000, 8);
+
+        for (int i = 0; i < 20; i++) {
+            uploader.recordReceipt(String.valueOf(i));
+        }
+        long deadline = System.currentTimeMillis() + 2000;
+        while (uploader.getDroppedEvents() < 12 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertTrue(uploader.getDroppedEvents() >= 12);
+        assertTrue(uploader.getPendingEvents() <= 8);
+    }
+
+    public void testEventsSurviveTheUploader() throws Exception {
+        server.respond(503, "application/json", new byte[0]);
+        uploader = new ReceiptUploader(getActivity(), registrar, "/rest/receipts", 10, 600000, 100);
+        uploader.recordReceipt("1");
+        uploader.recordReceipt("2");
+        Thread.sleep(200);
+        uploader.shutdown();
+
+        server.respond(200, "application/json", new byte[0]);
+        uploader = new ReceiptUploader(getActivity(), registrar, "/rest/receipts", 10, 600000, 100);
+        Thread.sleep(200);
+        assertEquals(2, uploader.getPendingEvents());
+        uploader.flush();
+        awaitUploaded(2);
+    }
+
+    public void testDamagedJournalLinesAreSkipped() throws Exception {
+        OutputStream out = new FileOutputStream(journal());
+        try {
+            out.write("r\tnot-a-time\t1\nr\t1000\t2\n".getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        uploader = new ReceiptUploader(getActivity(), registrar, "/rest/receipts", 10, 600000, 100);
+
+        uploader.flush();
+        awaitUploaded(1);
+
+        JSONArray events = new JSONObject(server.getRequestBodies().get(0)).getJSONArray("events");
+        assertEquals(1, events.length());
+        assertEquals("2", events.getJSONObject(0).getString("id"));
+        assertEquals(0, uploader.getPendingEvents());
+    }
+
+    private void awaitUploaded(long events) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (uploader.getUploadedEvents() < events && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(events, uploader.getUploadedEvents());
+    }
+
+    private File journal() {
+        return new File(getActivity().getFilesDir(), "aerogear-push-receipts");
+    }
+
+}
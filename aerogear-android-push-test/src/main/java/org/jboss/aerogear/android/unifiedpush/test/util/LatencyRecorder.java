@@ -0,0 +1,109 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test.util;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.jboss.aerogear.android.unifiedpush.MessageHandler;
+
+/**
+ * A handler which records the delivery latency of the messages of a
+ * {@link PushLoadGenerator}, and which of them arrived.
+ */
+public class LatencyRecorder implements MessageHandler {
+
+    private final int expected;
+    private final long[] latencies;
+    private final BitSet seen;
+    private final CountDownLatch latch;
+    private int received;
+    private int duplicates;
+
+    /**
+     * @param expected the number of messages which will be generated
+     */
+    public LatencyRecorder(int expected) {
+        this.expected = expected;
+        this.latencies = new long[expected];
+        this.seen = new BitSet(expected);
+        this.latch = new CountDownLatch(expected);
+    }
+
+    @Override
+    public void onMessage(Context context, Bundle message) {
+        long now = System.nanoTime();
+        int sequence = Integer.parseInt(message.getString(PushLoadGenerator.EXTRA_SEQUENCE));
+        long sentAt = Long.parseLong(message.getString(PushLoadGenerator.EXTRA_SENT_AT));
+        synchronized (this) {
+            if (seen.get(sequence)) {
+                duplicates++;
+                return;
+            }
+            seen.set(sequence);
+            latencies[received++] = now - sentAt;
+        }
+        latch.countDown();
+    }
+
+    @Override
+    public void onDeleteMessage(Context context, Bundle message) {
+    }
+
+    @Override
+    public void onError() {
+    }
+
+    /**
+     * @return true if every expected message arrived in time
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return latch.await(timeout, unit);
+    }
+
+    public synchronized int getLost() {
+        return expected - received;
+    }
+
+    public synchronized int getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * @param percentile a value between 0 and 100
+     * @return the latency at percentile of the received messages, in
+     *         milliseconds
+     */
+    public synchronized long percentileMs(double percentile) {
+        if (received == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(latencies, received);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * received) - 1;
+        return TimeUnit.NANOSECONDS.toMillis(sorted[Math.max(0, Math.min(index, received - 1))]);
+    }
+
+    public long maxMs() {
+        return percentileMs(100);
+    }
+
+}
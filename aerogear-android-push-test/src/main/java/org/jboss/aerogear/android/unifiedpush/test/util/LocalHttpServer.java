@@ -0,0 +1,199 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A minimal HTTP/1.0 server on a local port which stands in for a push
+ * server or an image host. It answers every request with the same response,
+ * except for requests it was told to fail, and records the request bodies.
+ */
+public final class LocalHttpServer {
+
+    private final ServerSocket socket;
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private final List<String> bodies = Collections.synchronizedList(new ArrayList<String>());
+
+    private volatile int status = 200;
+    private volatile String contentType = "application/json";
+    private volatile byte[] body = new byte[0];
+    private volatile boolean stall;
+
+    /**
+     * Starts the server on a free port.
+     *
+     * @throws IOException if no port could be bound
+     */
+    public LocalHttpServer() throws IOException {
+        socket = new ServerSocket(0);
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket connection = socket.accept();
+                        requests.incrementAndGet();
+                        if (stall) {
+                            continue;
+                        }
+                        try {
+                            serve(connection);
+                        } catch (IOException ignore) {
+                            // the client gave up on this request
+                        }
+                    }
+                } catch (IOException closed) {
+                }
+            }
+        }, "LocalHttpServer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @param status the status of every later response
+     * @param contentType the content type of every later response
+     * @param body the body of every later response
+     */
+    public void respond(int status, String contentType, byte[] body) {
+        this.status = status;
+        this.contentType = contentType;
+        this.body = body;
+    }
+
+    /**
+     * Answers the next requests with 503 Service Unavailable.
+     *
+     * @param count the number of requests to fail
+     */
+    public void failNext(int count) {
+        failures.set(count);
+    }
+
+    /**
+     * Accepts every later request but never answers it.
+     */
+    public void stall() {
+        stall = true;
+    }
+
+    /**
+     * @param path an absolute path
+     * @return the URL of path on this server
+     */
+    public String url(String path) {
+        return "http://127.0.0.1:" + socket.getLocalPort() + path;
+    }
+
+    /**
+     * @return the number of requests accepted so far
+     */
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the bodies of the requests answered so far, oldest first
+     */
+    public List<String> getRequestBodies() {
+        synchronized (bodies) {
+            return new ArrayList<String>(bodies);
+        }
+    }
+
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private void serve(Socket connection) throws IOException {
+        try {
+            InputStream in = connection.getInputStream();
+            int contentLength = 0;
+            String line;
+            while ((line = readLine(in)).length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-Length")) {
+                    contentLength = Integer.parseInt(line.substring(colon + 1).trim());
+                }
+            }
+            byte[] request = new byte[contentLength];
+            int offset = 0;
+            while (offset < contentLength) {
+                int read = in.read(request, offset, contentLength - offset);
+                if (read == -1) {
+                    break;
+                }
+                offset += read;
+            }
+
+            int responseStatus = status;
+            byte[] responseBody = body;
+            if (takeFailure()) {
+                responseStatus = 503;
+                responseBody = new byte[0];
+            } else {
+                bodies.add(new String(request, 0, offset, "UTF-8"));
+            }
+
+            OutputStream out = connection.getOutputStream();
+            out.write(("HTTP/1.0 " + responseStatus + " Status\r\n"
+                    + "Content-Type: " + contentType + "\r\n"
+                    + "Content-Length: " + responseBody.length + "\r\n"
+                    + "Connection: close\r\n\r\n").getBytes("UTF-8"));
+            out.write(responseBody);
+            out.flush();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private boolean takeFailure() {
+        while (true) {
+            int left = failures.get();
+            if (left <= 0) {
+                return false;
+            }
+            if (failures.compareAndSet(left, left - 1)) {
+                return true;
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int current;
+        while ((current = in.read()) != -1 && current != '\n') {
+            if (current != '\r') {
+                line.write(current);
+            }
+        }
+        return line.toString("UTF-8");
+    }
+
+}
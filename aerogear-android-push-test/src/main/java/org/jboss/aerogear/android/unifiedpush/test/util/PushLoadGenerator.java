@@ -0,0 +1,122 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test.util;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Injects synthetic GCM messages into a receiver at a fixed rate.
+ *
+ * Every message carries its sequence number and the {@link System#nanoTime() }
+ * it was injected at, which {@link LatencyRecorder} uses to measure delivery
+ * latency and lost messages. Payload sizes are drawn from a weighted mix with
+ * a fixed seed, so runs are repeatable.
+ */
+public class PushLoadGenerator {
+
+    public static final String RECEIVE_ACTION = "com.google.android.c2dm.intent.RECEIVE";
+    public static final String EXTRA_SEQUENCE = "loadgen-sequence";
+    public static final String EXTRA_SENT_AT = "loadgen-sent-at";
+    public static final String EXTRA_PAYLOAD = "loadgen-payload";
+
+    private final Context context;
+    private final BroadcastReceiver receiver;
+    private final Random random = new Random(42);
+    private final List<Integer> sizes = new ArrayList<Integer>();
+    private final List<Integer> weights = new ArrayList<Integer>();
+    private int totalWeight;
+
+    /**
+     * @param context the context messages are received in
+     * @param receiver the receiver messages are injected into
+     */
+    public PushLoadGenerator(Context context, BroadcastReceiver receiver) {
+        this.context = context;
+        this.receiver = receiver;
+    }
+
+    /**
+     * Adds a payload size to the mix.
+     *
+     * @param payloadBytes the size of the payload extra
+     * @param weight the relative frequency of this size
+     * @return this generator
+     */
+    public PushLoadGenerator withPayload(int payloadBytes, int weight) {
+        sizes.add(payloadBytes);
+        weights.add(weight);
+        totalWeight += weight;
+        return this;
+    }
+
+    /**
+     * Injects messages on the calling thread, pacing them to the rate.
+     *
+     * @param messagesPerSecond the injection rate
+     * @param count the number of messages
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public void run(int messagesPerSecond, int count) throws InterruptedException {
+        long periodNanos = TimeUnit.SECONDS.toNanos(1) / messagesPerSecond;
+        long start = System.nanoTime();
+        for (int sequence = 0; sequence < count; sequence++) {
+            long due = start + sequence * periodNanos;
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            receiver.onReceive(context, newMessage(sequence));
+        }
+    }
+
+    private Intent newMessage(int sequence) {
+        return new Intent(RECEIVE_ACTION)
+                .putExtra(EXTRA_SEQUENCE, String.valueOf(sequence))
+                .putExtra(EXTRA_PAYLOAD, payload(nextSize()))
+                .putExtra(EXTRA_SENT_AT, String.valueOf(System.nanoTime()));
+    }
+
+    private int nextSize() {
+        if (totalWeight == 0) {
+            return 0;
+        }
+        int pick = random.nextInt(totalWeight);
+        for (int i = 0; i < sizes.size(); i++) {
+            pick -= weights.get(i);
+            if (pick < 0) {
+                return sizes.get(i);
+            }
+        }
+        return sizes.get(sizes.size() - 1);
+    }
+
+    private static String payload(int bytes) {
+        char[] payload = new char[bytes];
+        for (int i = 0; i < bytes; i++) {
+            payload[i] = (char) ('a' + i % 26);
+        }
+        return new String(payload);
+    }
+
+}
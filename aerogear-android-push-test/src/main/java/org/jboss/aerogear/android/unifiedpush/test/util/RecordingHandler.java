@@ -0,0 +1,94 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.test.util;
+
+import android.content.Context;
+import android.os.Bundle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.jboss.aerogear.android.unifiedpush.MessageHandler;
+
+/**
+ * Records one extra of every message it receives and counts a latch down.
+ * Messages with a "delay" extra keep the handler busy for that many
+ * milliseconds first.
+ */
+public final class RecordingHandler implements MessageHandler {
+
+    public final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+    public final List<Bundle> messages = Collections.synchronizedList(new ArrayList<Bundle>());
+    public final CountDownLatch latch;
+    private final String extra;
+
+    /**
+     * Records the "body" extra.
+     *
+     * @param expected the number of messages the latch waits for
+     */
+    public RecordingHandler(int expected) {
+        this(expected, "body");
+    }
+
+    /**
+     * @param expected the number of messages the latch waits for
+     * @param extra the extra to record
+     */
+    public RecordingHandler(int expected, String extra) {
+        this.latch = new CountDownLatch(expected);
+        this.extra = extra;
+    }
+
+    /**
+     * @param flag a boolean extra
+     * @return true if flag was set on any message received so far
+     */
+    public boolean anyFlagged(String flag) {
+        synchronized (messages) {
+            for (Bundle message : messages) {
+                if (message.getBoolean(flag, false)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void onDeleteMessage(Context context, Bundle message) {
+    }
+
+    @Override
+    public void onMessage(Context context, Bundle message) {
+        String delay = message.getString("delay");
+        if (delay != null) {
+            try {
+                Thread.sleep(Long.parseLong(delay));
+            } catch (InterruptedException ignore) {
+            }
+        }
+        messages.add(message);
+        received.add(message.getString(extra));
+        latch.countDown();
+    }
+
+    @Override
+    public void onError() {
+    }
+
+}
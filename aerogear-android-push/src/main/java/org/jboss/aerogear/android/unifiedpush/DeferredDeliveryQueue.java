@@ -0,0 +1,395 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+import android.app.Activity;
+import android.app.Application;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Holds deferrable messages until the next batching opportunity, see
+ * {@link RegistrarManager#enableDeferredDelivery(android.content.Context, long) }.
+ *
+ * Pending messages are appended to a file as one JSON object of String
+ * extras per line, so they survive the process. Only String extras are kept,
+ * which covers every GCM data message; extras of other types are dropped. A
+ * batch is delivered when the interval elapses, when a message which may not
+ * be deferred arrives, or when an Activity of the application starts.
+ *
+ * The file is only written on the queue's own thread, so queueing a message
+ * does no disk I/O on the receiver's thread. The interval is measured on the
+ * same thread's Handler and does not wake a sleeping device, a due batch is
+ * delivered once the device is awake for another reason.
+ *
+ * Under memory pressure the in memory copy of the pending messages is
+ * dropped and the next batch is read back from the file, on the queue's
+ * thread behind every queued write.
+ */
+final class DeferredDeliveryQueue implements MemoryConsumer {
+
+    private static final String TAG = DeferredDeliveryQueue.class.getSimpleName();
+    static final String FILE = "aerogear-push-deferred.json";
+    static final long SHUTDOWN_TIMEOUT_MS = 2000;
+
+    private final Context context;
+    private final File file;
+    private final long intervalMs;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Application application;
+    private final Application.ActivityLifecycleCallbacks foregroundCallbacks;
+
+    private final List<JsonObject> pending = new ArrayList<JsonObject>();
+    private int pendingCount;
+    private long pendingBytes;
+    private boolean spilled;
+    private boolean scheduled;
+    private volatile MessageHandler defaultHandler;
+
+    private long deferredMessages;
+    private long batches;
+    private long savedWakeups;
+
+    private final Runnable intervalFlush = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DeferredDeliveryQueue.this) {
+                scheduled = false;
+            }
+            flush(false);
+        }
+    };
+
+    private final Runnable foregroundFlush = new Runnable() {
+        @Override
+        public void run() {
+            flush(true);
+        }
+    };
+
+    /**
+     * Removes the lines of a delivered batch, queued behind their writes.
+     */
+    private final Runnable truncate = new Runnable() {
+        @Override
+        public void run() {
+            file.delete();
+        }
+    };
+
+    /**
+     * @param context the application's context
+     * @param intervalMs the longest time a message is held while the device
+     *            is awake
+     */
+    DeferredDeliveryQueue(Context context, long intervalMs) {
+        this.context = context.getApplicationContext();
+        this.file = new File(this.context.getFilesDir(), FILE);
+        this.intervalMs = intervalMs;
+        this.thread = new HandlerThread("AeroGearPushDeferred");
+        this.thread.start();
+        this.handler = new Handler(thread.getLooper());
+
+        if (this.context instanceof Application) {
+            application = (Application) this.context;
+            foregroundCallbacks = new ForegroundCallbacks();
+            application.registerActivityLifecycleCallbacks(foregroundCallbacks);
+        } else {
+            application = null;
+            foregroundCallbacks = null;
+        }
+
+        synchronized (this) {
+            read();
+            pendingCount = pending.size();
+            if (pendingCount > 0) {
+                schedule();
+            }
+        }
+        PushMemoryGovernor.getInstance().register(this, PushMemoryGovernor.RANK_QUEUE);
+    }
+
+    /**
+     * Queues a message which may be deferred.
+     *
+     * @param message the message to hold
+     * @param defaultHandler the default handler passed with the message, used
+     *            when the batch is delivered
+     */
+    void add(Intent message, MessageHandler defaultHandler) {
+        if (defaultHandler != null) {
+            this.defaultHandler = defaultHandler;
+        }
+        JsonObject entry = new JsonObject();
+        Bundle extras = message.getExtras();
+        if (extras != null) {
+            for (String key : extras.keySet()) {
+                Object value = extras.get(key);
+                if (value instanceof String) {
+                    entry.addProperty(key, (String) value);
+                }
+            }
+        }
+
+        final String line = entry.toString();
+        synchronized (this) {
+            if (!spilled) {
+                pending.add(entry);
+                pendingBytes += 2 * line.length();
+            }
+            pendingCount++;
+            deferredMessages++;
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    append(line);
+                }
+            });
+            schedule();
+        }
+    }
+
+    /**
+     * Delivers every pending message on the calling thread's dispatch path.
+     * Called when a message which may not be deferred arrives, so the batch
+     * rides on a wakeup which happens anyway.
+     *
+     * @param defaultHandler the default handler passed with that message
+     */
+    void flushWith(MessageHandler defaultHandler) {
+        if (defaultHandler != null) {
+            this.defaultHandler = defaultHandler;
+        }
+        flush(true);
+    }
+
+    /**
+     * Stops the interval and the foreground trigger, delivering any pending
+     * messages once the queued writes are done. Waits for the file to settle,
+     * so a queue created next reads what this one left.
+     */
+    void shutdown() {
+        PushMemoryGovernor.getInstance().unregister(this);
+        if (application != null) {
+            application.unregisterActivityLifecycleCallbacks(foregroundCallbacks);
+        }
+        handler.removeCallbacks(intervalFlush);
+        final CountDownLatch settled = new CountDownLatch(1);
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                flush(true);
+                // behind the truncate of the last batch
+                handler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        settled.countDown();
+                        thread.quit();
+                    }
+                });
+            }
+        });
+        try {
+            if (!settled.await(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                PushLog.w(TAG, "Deferred messages were still being written at shutdown");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    synchronized DeferredDeliveryStats getStats() {
+        return new DeferredDeliveryStats(deferredMessages, pendingCount, batches, savedWakeups);
+    }
+
+    @Override
+    public synchronized long getFootprint() {
+        return pendingBytes;
+    }
+
+    /**
+     * Pending messages are already on disk, so any trim drops all of them
+     * from memory.
+     */
+    @Override
+    public synchronized void trimToSize(long maxBytes) {
+        if (pendingBytes > maxBytes) {
+            pending.clear();
+            pendingBytes = 0;
+            spilled = true;
+        }
+    }
+
+    /**
+     * @param piggybacked true if the device is awake for another reason, in
+     *            which case every message of the batch saved a wakeup.
+     *            Otherwise the batch itself costs one.
+     */
+    private void flush(boolean piggybacked) {
+        List<JsonObject> batch;
+        synchronized (this) {
+            if (pendingCount == 0) {
+                return;
+            }
+            if (spilled) {
+                if (Looper.myLooper() != handler.getLooper()) {
+                    // the file is only complete behind the queued writes
+                    handler.post(foregroundFlush);
+                    return;
+                }
+                pending.clear();
+                pendingBytes = 0;
+                read();
+                file.delete();
+                batch = new ArrayList<JsonObject>(pending);
+                // messages whose writes are still queued wait for the next batch
+                pendingCount = Math.max(0, pendingCount - batch.size());
+                spilled = pendingCount > 0;
+            } else {
+                batch = new ArrayList<JsonObject>(pending);
+                pendingCount = 0;
+                handler.post(truncate);
+            }
+            pending.clear();
+            pendingBytes = 0;
+            if (scheduled) {
+                handler.removeCallbacks(intervalFlush);
+                scheduled = false;
+            }
+            if (pendingCount > 0) {
+                schedule();
+            }
+            if (batch.isEmpty()) {
+                return;
+            }
+            batches++;
+            savedWakeups += piggybacked ? batch.size() : batch.size() - 1;
+        }
+
+        MessageHandler currentDefaultHandler = defaultHandler;
+        for (JsonObject entry : batch) {
+            Intent message = new Intent().putExtra(PushConstants.MESSAGE, true);
+            for (Map.Entry<String, JsonElement> extra : entry.entrySet()) {
+                message.putExtra(extra.getKey(), extra.getValue().getAsString());
+            }
+            RegistrarManager.dispatchMessage(context, message, currentDefaultHandler);
+        }
+    }
+
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            handler.postDelayed(intervalFlush, intervalMs);
+        }
+    }
+
+    private void append(String line) {
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+            try {
+                out.write(line);
+                out.write('\n');
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            PushLog.e(TAG, "Could not persist deferred message", ex);
+        }
+    }
+
+    private void read() {
+        if (!file.exists()) {
+            return;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                JsonParser parser = new JsonParser();
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.length() > 0) {
+                        pending.add(parser.parse(line).getAsJsonObject());
+                        pendingBytes += 2 * line.length();
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            PushLog.e(TAG, "Could not read deferred messages", ex);
+        } catch (RuntimeException ex) {
+            // a line cut short by the process dying, keep what was read
+            PushLog.w(TAG, "Dropped a damaged deferred message", ex);
+        }
+    }
+
+    private final class ForegroundCallbacks implements Application.ActivityLifecycleCallbacks {
+
+        @Override
+        public void onActivityStarted(Activity activity) {
+            handler.post(foregroundFlush);
+        }
+
+        @Override
+        public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+        }
+
+        @Override
+        public void onActivityResumed(Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+        }
+
+        @Override
+        public void onActivityDestroyed(Activity activity) {
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+/**
+ * Counters describing deferred delivery, see
+ * {@link RegistrarManager#getDeferredDeliveryStats() }.
+ */
+public final class DeferredDeliveryStats {
+
+    private final long deferredMessages;
+    private final long pendingMessages;
+    private final long batches;
+    private final long savedWakeups;
+
+    DeferredDeliveryStats(long deferredMessages, long pendingMessages, long batches, long savedWakeups) {
+        this.deferredMessages = deferredMessages;
+        this.pendingMessages = pendingMessages;
+        this.batches = batches;
+        this.savedWakeups = savedWakeups;
+    }
+
+    /**
+     * @return the number of messages which were held instead of delivered
+     *         on arrival
+     */
+    public long getDeferredMessages() {
+        return deferredMessages;
+    }
+
+    /**
+     * @return the number of messages currently held
+     */
+    public long getPendingMessages() {
+        return pendingMessages;
+    }
+
+    /**
+     * @return the number of batches held messages were delivered in
+     */
+    public long getBatches() {
+        return batches;
+    }
+
+    /**
+     * @return the number of handler wakeups avoided. A batch delivered by
+     *         the interval costs one wakeup for all of its messages, a batch
+     *         delivered alongside an urgent message or on app foreground
+     *         costs none.
+     */
+    public long getSavedWakeups() {
+        return savedWakeups;
+    }
+
+}
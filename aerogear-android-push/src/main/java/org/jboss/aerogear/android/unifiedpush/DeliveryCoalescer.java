@@ -0,0 +1,152 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Keeps at most one pending delivery per handler and coalescing key.
+ *
+ * A delivery submitted while an older delivery with the same key is still
+ * waiting for its handler replaces the older one in place, so the handler
+ * only processes the latest state. Once a delivery has started, newer ones
+ * are queued normally.
+ *
+ * Replacing a delivery moves the newer message to the queue position of the
+ * older one, so it only happens if both share their ordering key and no
+ * other delivery of that ordering key was queued in between. Otherwise the
+ * newer message would overtake messages it must follow. Urgent and bulk
+ * deliveries never replace each other, as they run on different lanes.
+ */
+final class DeliveryCoalescer {
+
+    private final Map<SlotKey, Slot> pending = new HashMap<SlotKey, Slot>();
+    private final Map<SlotKey, Slot> lastByOrderingKey = new HashMap<SlotKey, Slot>();
+
+    /**
+     * @param orderingKey the ordering key of the message, may be null
+     * @param coalescingKey the coalescing key of the message, may be null
+     * @param handler the handler which will process the message
+     * @param mainThread true if handler is a main thread handler
+     * @param urgent true if the message has a high priority
+     * @param invocation the handler invocation
+     * @param executor the executor which runs invocation if it is not
+     *            replaced
+     *
+     * @return true if invocation replaced a pending invocation
+     */
+    boolean submit(String orderingKey, String coalescingKey, MessageHandler handler, boolean mainThread, boolean urgent, Runnable invocation, Executor executor) {
+        SlotKey key = coalescingKey == null ? null : new SlotKey(coalescingKey, handler, mainThread, urgent);
+        SlotKey orderKey = orderingKey == null ? null : new SlotKey(orderingKey, handler, mainThread, urgent);
+        Slot slot;
+        synchronized (pending) {
+            if (key != null) {
+                slot = pending.get(key);
+                if (slot != null && isSame(slot.orderKey, orderKey)
+                        && (orderKey == null || lastByOrderingKey.get(orderKey) == slot)) {
+                    slot.invocation = invocation;
+                    return true;
+                }
+            }
+            slot = new Slot(key, orderKey, invocation);
+            if (key != null) {
+                pending.put(key, slot);
+            }
+            if (orderKey != null) {
+                lastByOrderingKey.put(orderKey, slot);
+            }
+        }
+        executor.execute(slot);
+        return false;
+    }
+
+    /**
+     * @return the number of deliveries waiting for their handler
+     */
+    int size() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    private static boolean isSame(SlotKey first, SlotKey second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    private final class Slot implements Runnable {
+
+        private final SlotKey key;
+        private final SlotKey orderKey;
+        private Runnable invocation;
+
+        Slot(SlotKey key, SlotKey orderKey, Runnable invocation) {
+            this.key = key;
+            this.orderKey = orderKey;
+            this.invocation = invocation;
+        }
+
+        @Override
+        public void run() {
+            Runnable latest;
+            synchronized (pending) {
+                if (key != null && pending.get(key) == this) {
+                    pending.remove(key);
+                }
+                if (orderKey != null && lastByOrderingKey.get(orderKey) == this) {
+                    lastByOrderingKey.remove(orderKey);
+                }
+                latest = invocation;
+            }
+            latest.run();
+        }
+    }
+
+    private static final class SlotKey {
+
+        private final String key;
+        private final MessageHandler handler;
+        private final boolean mainThread;
+        private final boolean urgent;
+
+        SlotKey(String key, MessageHandler handler, boolean mainThread, boolean urgent) {
+            this.key = key;
+            this.handler = handler;
+            this.mainThread = mainThread;
+            this.urgent = urgent;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof SlotKey)) {
+                return false;
+            }
+            SlotKey other = (SlotKey) obj;
+            return handler == other.handler
+                    && mainThread == other.mainThread
+                    && urgent == other.urgent
+                    && key.equals(other.key);
+        }
+
+        @Override
+        public int hashCode() {
+            return (key.hashCode() * 31 + System.identityHashCode(handler)) * 4 + (mainThread ? 2 : 0) + (urgent ? 1 : 0);
+        }
+    }
+
+}
@@ -0,0 +1,103 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+/**
+ * Describes a {@link MessageHandler} which exceeded its time budget.
+ */
+public final class HandlerOverrun {
+
+    private final MessageHandler handler;
+    private final boolean mainThread;
+    private final long budgetMs;
+    private final long elapsedMs;
+    private final StackTraceElement[] stackSample;
+    private final int violations;
+    private final boolean interrupted;
+    private final boolean demoted;
+
+    HandlerOverrun(MessageHandler handler, boolean mainThread, long budgetMs, long elapsedMs,
+            StackTraceElement[] stackSample, int violations, boolean interrupted, boolean demoted) {
+        this.handler = handler;
+        this.mainThread = mainThread;
+        this.budgetMs = budgetMs;
+        this.elapsedMs = elapsedMs;
+        this.stackSample = stackSample;
+        this.violations = violations;
+        this.interrupted = interrupted;
+        this.demoted = demoted;
+    }
+
+    /**
+     * @return the handler which exceeded its budget
+     */
+    public MessageHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * @return true if the handler is running on the main thread
+     */
+    public boolean isMainThread() {
+        return mainThread;
+    }
+
+    /**
+     * @return the budget the handler exceeded, in milliseconds
+     */
+    public long getBudgetMs() {
+        return budgetMs;
+    }
+
+    /**
+     * @return how long the handler had been running when the overrun was
+     *         detected, in milliseconds
+     */
+    public long getElapsedMs() {
+        return elapsedMs;
+    }
+
+    /**
+     * @return the stack of the handler thread when the overrun was detected
+     */
+    public StackTraceElement[] getStackSample() {
+        return stackSample;
+    }
+
+    /**
+     * @return how many times this handler has exceeded its budget, including
+     *         this time
+     */
+    public int getViolations() {
+        return violations;
+    }
+
+    /**
+     * @return true if the handler thread was interrupted
+     */
+    public boolean isInterrupted() {
+        return interrupted;
+    }
+
+    /**
+     * @return true if the handler now runs with a lowered priority
+     */
+    public boolean isDemoted() {
+        return demoted;
+    }
+
+}
@@ -0,0 +1,122 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The handlers of one kind (main thread or background) registered with
+ * {@link RegistrarManager}.
+ *
+ * Dispatch reads an immutable snapshot which is rebuilt on every change, so
+ * delivering a message neither locks nor copies. Handlers may be held
+ * weakly; once one is collected its reference is enqueued and the next
+ * snapshot read rebuilds the snapshot without it.
+ */
+final class HandlerRegistry {
+
+    static final Entry[] EMPTY = new Entry[0];
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final ReferenceQueue<MessageHandler> collected = new ReferenceQueue<MessageHandler>();
+    private volatile Entry[] snapshot = EMPTY;
+
+    /**
+     * @param handler the handler to add
+     * @param weak true if the registration should not keep handler in memory
+     */
+    void add(MessageHandler handler, boolean weak) {
+        synchronized (entries) {
+            entries.add(weak ? new Entry(new WeakReference<MessageHandler>(handler, collected)) : new Entry(handler));
+            rebuild();
+        }
+    }
+
+    /**
+     * Removes the first registration of a handler equal to handler.
+     *
+     * @param handler the handler to remove
+     */
+    void remove(MessageHandler handler) {
+        synchronized (entries) {
+            Iterator<Entry> iterator = entries.iterator();
+            while (iterator.hasNext()) {
+                MessageHandler registered = iterator.next().get();
+                if (registered != null && registered.equals(handler)) {
+                    iterator.remove();
+                    break;
+                }
+            }
+            rebuild();
+        }
+    }
+
+    /**
+     * @return the current registrations. {@link Entry#get() } returns null
+     *         for handlers collected since the snapshot was built.
+     */
+    Entry[] snapshot() {
+        if (collected.poll() != null) {
+            synchronized (entries) {
+                while (collected.poll() != null) {
+                    // drained, the rebuild below drops every cleared entry
+                }
+                rebuild();
+            }
+        }
+        return snapshot;
+    }
+
+    private void rebuild() {
+        Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().get() == null) {
+                iterator.remove();
+            }
+        }
+        snapshot = entries.isEmpty() ? EMPTY : entries.toArray(new Entry[entries.size()]);
+    }
+
+    static final class Entry {
+
+        private final MessageHandler handler;
+        private final Reference<MessageHandler> reference;
+
+        Entry(MessageHandler handler) {
+            this.handler = handler;
+            this.reference = null;
+        }
+
+        Entry(Reference<MessageHandler> reference) {
+            this.handler = null;
+            this.reference = reference;
+        }
+
+        /**
+         * @return the handler, or null if a weakly held handler was collected
+         */
+        MessageHandler get() {
+            return reference == null ? handler : reference.get();
+        }
+    }
+
+}
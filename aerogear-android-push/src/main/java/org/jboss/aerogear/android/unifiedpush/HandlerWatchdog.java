@@ -0,0 +1,220 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * 
+ * Enforces time budgets on {@link MessageHandler} invocations.
+ * 
+ * Main thread and background handlers have separate budgets. Every handler
+ * invocation schedules a check on the watchdog thread which is cancelled when
+ * the handler returns, so a handler that finishes in time costs one scheduled
+ * message. A handler that overruns is reported to the
+ * {@link OnHandlerOverrunListener} with a stack sample of its thread.
+ * Background handlers may additionally be interrupted, and handlers which
+ * overrun repeatedly are demoted to the lowest thread priority.
+ * 
+ * Install a watchdog with {@link RegistrarManager#setHandlerWatchdog(org.jboss.aerogear.android.unifiedpush.HandlerWatchdog) }.
+ */
+public final class HandlerWatchdog {
+
+    /**
+     * Default main thread budget, a few frames.
+     */
+    public static final long DEFAULT_MAIN_THREAD_BUDGET_MS = 50;
+
+    /**
+     * Default background budget.
+     */
+    public static final long DEFAULT_BACKGROUND_BUDGET_MS = 10000;
+
+    /**
+     * Default number of overruns after which a handler is demoted.
+     */
+    public static final int DEFAULT_DEMOTION_THRESHOLD = 3;
+
+    private final long mainThreadBudgetMs;
+    private final long backgroundBudgetMs;
+    private final HandlerThread thread;
+    private final Handler handler;
+    private final Map<MessageHandler, Integer> violations = Collections.synchronizedMap(new WeakHashMap<MessageHandler, Integer>());
+
+    private volatile OnHandlerOverrunListener listener;
+    private volatile boolean interruptOverruns = false;
+    private volatile int demotionThreshold = DEFAULT_DEMOTION_THRESHOLD;
+
+    public HandlerWatchdog() {
+        this(DEFAULT_MAIN_THREAD_BUDGET_MS, DEFAULT_BACKGROUND_BUDGET_MS);
+    }
+
+    /**
+     * @param mainThreadBudgetMs the budget of main thread handlers
+     * @param backgroundBudgetMs the budget of background handlers
+     */
+    public HandlerWatchdog(long mainThreadBudgetMs, long backgroundBudgetMs) {
+        if (mainThreadBudgetMs <= 0 || backgroundBudgetMs <= 0) {
+            throw new IllegalArgumentException("Budgets must be positive");
+        }
+        this.mainThreadBudgetMs = mainThreadBudgetMs;
+        this.backgroundBudgetMs = backgroundBudgetMs;
+        this.thread = new HandlerThread(HandlerWatchdog.class.getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND);
+        this.thread.start();
+        this.handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * @param listener notified of every overrun, may be null
+     * @return this watchdog
+     */
+    public HandlerWatchdog setOnHandlerOverrunListener(OnHandlerOverrunListener listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * If enabled, background handlers which exceed their budget are
+     * interrupted. Main thread handlers are never interrupted.
+     * 
+     * @param interruptOverruns whether to interrupt, defaults to false
+     * @return this watchdog
+     */
+    public HandlerWatchdog setInterruptOverruns(boolean interruptOverruns) {
+        this.interruptOverruns = interruptOverruns;
+        return this;
+    }
+
+    /**
+     * Background handlers which exceeded their budget this many times run
+     * with the lowest thread priority from then on.
+     * 
+     * @param demotionThreshold a number of overruns, 0 disables demotion
+     * @return this watchdog
+     */
+    public HandlerWatchdog setDemotionThreshold(int demotionThreshold) {
+        this.demotionThreshold = demotionThreshold;
+        return this;
+    }
+
+    /**
+     * @param messageHandler a handler
+     * @return true if messageHandler overran often enough to be demoted
+     */
+    public boolean isDemoted(MessageHandler messageHandler) {
+        int threshold = demotionThreshold;
+        if (threshold <= 0) {
+            return false;
+        }
+        Integer count = violations.get(messageHandler);
+        return count != null && count >= threshold;
+    }
+
+    /**
+     * Stops the watchdog thread. Invocations still being watched are no
+     * longer checked.
+     */
+    public void shutdown() {
+        thread.quit();
+    }
+
+    /**
+     * Starts watching an invocation on the current thread.
+     */
+    Watch begin(MessageHandler messageHandler, boolean mainThread) {
+        Watch watch = new Watch(messageHandler, mainThread, Thread.currentThread());
+        handler.postDelayed(watch, mainThread ? mainThreadBudgetMs : backgroundBudgetMs);
+        return watch;
+    }
+
+    /**
+     * Stops watching an invocation and clears an interrupt the watchdog may
+     * have raised on the current thread.
+     */
+    void end(Watch watch) {
+        handler.removeCallbacks(watch);
+        synchronized (watch) {
+            watch.finished = true;
+        }
+        if (watch.interrupted) {
+            Thread.interrupted();
+        }
+    }
+
+    private void onOverrun(Watch watch) {
+        boolean interrupt;
+        StackTraceElement[] stack;
+        synchronized (watch) {
+            if (watch.finished) {
+                return;
+            }
+            stack = watch.thread.getStackTrace();
+            interrupt = interruptOverruns && !watch.mainThread;
+            if (interrupt) {
+                watch.interrupted = true;
+                watch.thread.interrupt();
+            }
+        }
+
+        int count;
+        synchronized (violations) {
+            Integer previous = violations.get(watch.messageHandler);
+            count = previous == null ? 1 : previous + 1;
+            violations.put(watch.messageHandler, count);
+        }
+
+        OnHandlerOverrunListener currentListener = listener;
+        if (currentListener != null) {
+            long budget = watch.mainThread ? mainThreadBudgetMs : backgroundBudgetMs;
+            currentListener.onHandlerOverrun(new HandlerOverrun(watch.messageHandler, watch.mainThread, budget,
+                    SystemClock.uptimeMillis() - watch.startedAt, stack, count, interrupt,
+                    !watch.mainThread && isDemoted(watch.messageHandler)));
+        }
+    }
+
+    /**
+     * A single watched handler invocation.
+     */
+    final class Watch implements Runnable {
+
+        final MessageHandler messageHandler;
+        final boolean mainThread;
+        final Thread thread;
+        final long startedAt = SystemClock.uptimeMillis();
+        boolean finished;
+        volatile boolean interrupted;
+
+        Watch(MessageHandler messageHandler, boolean mainThread, Thread thread) {
+            this.messageHandler = messageHandler;
+            this.mainThread = mainThread;
+            this.thread = thread;
+        }
+
+        @Override
+        public void run() {
+            onOverrun(this);
+        }
+    }
+
+}
@@ -0,0 +1,276 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ordered {@link PushInterceptor}s of {@link RegistrarManager}.
+ *
+ * Like {@link HandlerRegistry}, the pipeline is read through an immutable
+ * array which is replaced on every change, so an empty pipeline is detected
+ * with a single volatile read. Every stage measures the time spent in its
+ * interceptor, less the time spent in later stages it called on the same
+ * thread, and records an intercept span for traced messages.
+ *
+ * A run is done once every interceptor has passed the message on at least
+ * once and every call to the next stage has returned. An interceptor which
+ * drops a message can not be told from one which passes it on later, so a
+ * run which is not done after {@link #MAX_HOLD_MS} counts as done.
+ */
+final class InterceptorPipeline {
+
+    /**
+     * The longest time a run which was not done on return keeps its
+     * broadcast open, well within the ten seconds Android allows a receiver.
+     */
+    static final long MAX_HOLD_MS = 7000;
+
+    /**
+     * The end of the chain, which delivers messages to the handlers.
+     */
+    interface Terminal {
+
+        void deliver(PushMessage message, MessageHandler defaultHandler);
+    }
+
+    private static final Stage[] EMPTY = new Stage[0];
+    private static final Handler timeouts = new Handler(Looper.getMainLooper());
+
+    private volatile Stage[] stages = EMPTY;
+
+    boolean isEmpty() {
+        return stages.length == 0;
+    }
+
+    synchronized void add(PushInterceptor interceptor) {
+        Stage[] current = stages;
+        Stage[] next = new Stage[current.length + 1];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = new Stage(interceptor);
+        stages = next;
+    }
+
+    synchronized void remove(PushInterceptor interceptor) {
+        Stage[] current = stages;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].interceptor == interceptor) {
+                Stage[] next = new Stage[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                stages = next;
+                return;
+            }
+        }
+    }
+
+    List<InterceptorStats> getStats() {
+        Stage[] current = stages;
+        List<InterceptorStats> stats = new ArrayList<InterceptorStats>(current.length);
+        for (Stage stage : current) {
+            stats.add(stage.snapshot());
+        }
+        return stats;
+    }
+
+    /**
+     * Runs message through every interceptor and hands the surviving
+     * messages to terminal.
+     *
+     * @param whenDone runs once the run is done, if it was not done on return;
+     *            may be null
+     * @return true if the run was not done on return, in which case whenDone
+     *         runs exactly once, on any thread
+     */
+    boolean run(PushMessage message, MessageHandler defaultHandler, Terminal terminal, Runnable whenDone) {
+        Run run = new Run();
+        new Link(run, stages, 0, defaultHandler, terminal).proceed(message);
+        return run.await(whenDone);
+    }
+
+    /**
+     * Counts the links waiting for their first proceed and the proceed calls
+     * in progress of one message.
+     */
+    private static final class Run implements Runnable {
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private boolean done;
+        private Runnable whenDone;
+
+        void hold() {
+            outstanding.incrementAndGet();
+        }
+
+        void release() {
+            if (outstanding.decrementAndGet() == 0) {
+                complete();
+            }
+        }
+
+        /**
+         * @return false if the run is done already
+         */
+        boolean await(Runnable callback) {
+            synchronized (this) {
+                if (done) {
+                    return false;
+                }
+                if (callback == null) {
+                    return true;
+                }
+                whenDone = callback;
+            }
+            timeouts.postDelayed(this, MAX_HOLD_MS);
+            return true;
+        }
+
+        /**
+         * Gives up on interceptors which did not proceed in time.
+         */
+        @Override
+        public void run() {
+            complete();
+        }
+
+        private void complete() {
+            Runnable callback;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                done = true;
+                callback = whenDone;
+            }
+            if (callback != null) {
+                timeouts.removeCallbacks(this);
+                callback.run();
+            }
+        }
+    }
+
+    /**
+     * The chain as seen by the interceptor before position.
+     */
+    private static final class Link implements PushInterceptor.Chain {
+
+        private final Run run;
+        private final AtomicInteger proceeded = new AtomicInteger();
+        private final Stage[] stages;
+        private final int position;
+        private final MessageHandler defaultHandler;
+        private final Terminal terminal;
+
+        /**
+         * Time spent in later stages while the interceptor which owns this
+         * link was running on callingThread.
+         */
+        private Thread callingThread;
+        private long nestedNanos;
+
+        Link(Run run, Stage[] stages, int position, MessageHandler defaultHandler, Terminal terminal) {
+            this.run = run;
+            this.stages = stages;
+            this.position = position;
+            this.defaultHandler = defaultHandler;
+            this.terminal = terminal;
+            // released by the first proceed
+            run.hold();
+        }
+
+        @Override
+        public void proceed(PushMessage message) {
+            run.hold();
+            long start = System.nanoTime();
+            try {
+                if (position == stages.length) {
+                    terminal.deliver(message, defaultHandler);
+                } else {
+                    stages[position].intercept(message, new Link(run, stages, position + 1, defaultHandler, terminal));
+                }
+            } finally {
+                synchronized (this) {
+                    if (callingThread == Thread.currentThread()) {
+                        nestedNanos += System.nanoTime() - start;
+                    }
+                }
+                if (proceeded.getAndIncrement() == 0) {
+                    run.release();
+                }
+                run.release();
+            }
+        }
+
+        synchronized void enter() {
+            callingThread = Thread.currentThread();
+        }
+
+        synchronized long exit() {
+            callingThread = null;
+            return nestedNanos;
+        }
+    }
+
+    private static final class Stage {
+
+        final PushInterceptor interceptor;
+        private final AtomicLong invocations = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        Stage(PushInterceptor interceptor) {
+            this.interceptor = interceptor;
+        }
+
+        void intercept(PushMessage message, Link next) {
+            long traceId = message.getIntent().getLongExtra(PushConstants.TRACE_ID, 0);
+            next.enter();
+            long start = System.nanoTime();
+            try {
+                interceptor.intercept(message, next);
+            } finally {
+                long end = System.nanoTime();
+                record(end - start - next.exit());
+                MessageTracer.record(traceId, TraceSpan.STAGE_INTERCEPT, interceptor.getClass().getName(), start, end);
+            }
+        }
+
+        private void record(long nanos) {
+            invocations.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        InterceptorStats snapshot() {
+            long count = invocations.get();
+            long mean = count == 0 ? 0 : totalNanos.get() / count;
+            return new InterceptorStats(interceptor, count,
+                    TimeUnit.NANOSECONDS.toMicros(mean), TimeUnit.NANOSECONDS.toMicros(maxNanos.get()));
+        }
+    }
+
+}
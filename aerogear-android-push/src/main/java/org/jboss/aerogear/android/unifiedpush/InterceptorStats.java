@@ -0,0 +1,64 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+/**
+ * Counters describing one {@link PushInterceptor}, see
+ * {@link RegistrarManager#getInterceptorStats() }.
+ */
+public final class InterceptorStats {
+
+    private final PushInterceptor interceptor;
+    private final long invocations;
+    private final long meanMicros;
+    private final long maxMicros;
+
+    InterceptorStats(PushInterceptor interceptor, long invocations, long meanMicros, long maxMicros) {
+        this.interceptor = interceptor;
+        this.invocations = invocations;
+        this.meanMicros = meanMicros;
+        this.maxMicros = maxMicros;
+    }
+
+    public PushInterceptor getInterceptor() {
+        return interceptor;
+    }
+
+    /**
+     * @return the number of messages the interceptor was called with
+     */
+    public long getInvocations() {
+        return invocations;
+    }
+
+    /**
+     * @return the mean time spent in the interceptor, excluding the later
+     *         stages it called synchronously, in microseconds
+     */
+    public long getMeanMicros() {
+        return meanMicros;
+    }
+
+    /**
+     * @return the longest time spent in the interceptor, excluding the later
+     *         stages it called synchronously, in microseconds
+     */
+    public long getMaxMicros() {
+        return maxMicros;
+    }
+
+}
@@ -0,0 +1,67 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+/**
+ * Counters describing how main thread handlers were delivered to, see
+ * {@link RegistrarManager#getMainThreadDeliveryStats() }.
+ */
+public final class MainThreadDeliveryStats {
+
+    private final long deliveries;
+    private final long batches;
+    private final long deferredBatches;
+    private final long droppedFrames;
+
+    MainThreadDeliveryStats(long deliveries, long batches, long deferredBatches, long droppedFrames) {
+        this.deliveries = deliveries;
+        this.batches = batches;
+        this.deferredBatches = deferredBatches;
+        this.droppedFrames = droppedFrames;
+    }
+
+    /**
+     * @return the number of main thread handler invocations
+     */
+    public long getDeliveries() {
+        return deliveries;
+    }
+
+    /**
+     * @return the number of Looper messages the invocations were batched into
+     */
+    public long getBatches() {
+        return batches;
+    }
+
+    /**
+     * @return the number of batches which spent their frame budget and left
+     *         invocations for a later batch
+     */
+    public long getDeferredBatches() {
+        return deferredBatches;
+    }
+
+    /**
+     * @return an estimate of the frames dropped because a batch held the
+     *         main thread for longer than a 16ms frame
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+}
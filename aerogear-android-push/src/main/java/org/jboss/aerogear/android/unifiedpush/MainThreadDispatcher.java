@@ -0,0 +1,114 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs main thread handler invocations in batches.
+ *
+ * Invocations are queued and drained by a single Looper message, which runs
+ * them until the queue is empty or the frame budget is spent. Whatever is
+ * left is drained by a new Looper message posted behind the ones already
+ * waiting, so rendering gets the main thread in between.
+ */
+final class MainThreadDispatcher implements Executor {
+
+    static final long DEFAULT_FRAME_BUDGET_MS = 4;
+
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(16);
+
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile long frameBudgetNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_FRAME_BUDGET_MS);
+
+    private final AtomicLong deliveries = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong deferredBatches = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    private final Runnable drain = new Runnable() {
+
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    @Override
+    public void execute(Runnable invocation) {
+        pending.add(invocation);
+        schedule();
+    }
+
+    void setFrameBudget(long frameBudgetMs) {
+        if (frameBudgetMs <= 0) {
+            throw new IllegalArgumentException("frameBudgetMs must be positive");
+        }
+        frameBudgetNanos = TimeUnit.MILLISECONDS.toNanos(frameBudgetMs);
+    }
+
+    MainThreadDeliveryStats getStats() {
+        return new MainThreadDeliveryStats(deliveries.get(), batches.get(), deferredBatches.get(), droppedFrames.get());
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            mainHandler.post(drain);
+        }
+    }
+
+    private void drain() {
+        long start = System.nanoTime();
+        long deadline = start + frameBudgetNanos;
+        boolean budgetSpent = false;
+        try {
+            Runnable invocation;
+            while (!budgetSpent && (invocation = pending.poll()) != null) {
+                deliveries.incrementAndGet();
+                invocation.run();
+                budgetSpent = System.nanoTime() - deadline >= 0;
+            }
+        } finally {
+            long elapsed = System.nanoTime() - start;
+            batches.incrementAndGet();
+            if (elapsed > FRAME_NANOS) {
+                droppedFrames.addAndGet(elapsed / FRAME_NANOS);
+            }
+
+            if (budgetSpent && !pending.isEmpty()) {
+                deferredBatches.incrementAndGet();
+                mainHandler.post(drain);
+            } else {
+                scheduled.set(false);
+                if (!pending.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,39 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+/**
+ * A part of the push library which holds memory it can give back, see
+ * {@link PushMemoryGovernor}.
+ */
+public interface MemoryConsumer {
+
+    /**
+     * @return an estimate of the heap memory held, in bytes
+     */
+    long getFootprint();
+
+    /**
+     * Releases memory until at most maxBytes are held. Caches drop entries,
+     * queues move their contents to disk.
+     * 
+     * @param maxBytes the memory which may remain held, 0 to release
+     *            everything
+     */
+    void trimToSize(long maxBytes);
+
+}
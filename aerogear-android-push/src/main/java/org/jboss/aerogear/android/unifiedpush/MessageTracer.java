@@ -0,0 +1,182 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Traces push messages from the receiver through every handler.
+ *
+ * A sampled message carries a trace id in the {@link PushConstants#TRACE_ID}
+ * extra. Every stage of its delivery records a {@link TraceSpan} into a fixed
+ * size, lock free ring buffer which keeps the last {@link #CAPACITY} spans.
+ * Messages which are not sampled carry no trace id and cost a single counter
+ * increment.
+ *
+ * Tracing is off until a sampling rate is set.
+ */
+public final class MessageTracer {
+
+    /**
+     * The number of spans kept in the ring buffer.
+     */
+    public static final int CAPACITY = 1024;
+
+    private static final int MASK = CAPACITY - 1;
+
+    private static final AtomicReferenceArray<TraceSpan> spans = new AtomicReferenceArray<TraceSpan>(CAPACITY);
+    private static final AtomicLong nextSequence = new AtomicLong();
+    private static final AtomicLong nextTraceId = new AtomicLong(1);
+    private static final AtomicLong messageCount = new AtomicLong();
+    private static volatile long samplingPeriod = 0;
+
+    private static final Comparator<TraceSpan> BY_SEQUENCE = new Comparator<TraceSpan>() {
+
+        @Override
+        public int compare(TraceSpan lhs, TraceSpan rhs) {
+            return lhs.getSequence() < rhs.getSequence() ? -1 : (lhs.getSequence() == rhs.getSequence() ? 0 : 1);
+        }
+    };
+
+    private MessageTracer() {
+    }
+
+    /**
+     * Sets the fraction of messages which will be traced. 0 turns tracing off,
+     * 1 traces every message and 0.01 traces every hundredth message.
+     *
+     * @param samplingRate a value between 0 and 1
+     */
+    public static void setSamplingRate(double samplingRate) {
+        if (samplingRate < 0 || samplingRate > 1) {
+            throw new IllegalArgumentException("samplingRate must be between 0 and 1");
+        }
+        samplingPeriod = samplingRate == 0 ? 0 : Math.round(1 / samplingRate);
+    }
+
+    /**
+     * @return true if at least some messages are traced
+     */
+    public static boolean isEnabled() {
+        return samplingPeriod != 0;
+    }
+
+    /**
+     * Decides whether a newly received message is traced.
+     *
+     * @return a new trace id, or 0 if the message is not sampled
+     */
+    public static long startTrace() {
+        long period = samplingPeriod;
+        if (period == 0 || messageCount.getAndIncrement() % period != 0) {
+            return 0;
+        }
+        return nextTraceId.getAndIncrement();
+    }
+
+    /**
+     * Records a span of a traced message. Does nothing if traceId is 0.
+     *
+     * @param traceId the trace id of the message
+     * @param stage one of the TraceSpan STAGE constants
+     * @param detail additional information, may be null
+     * @param startNanos the start of the span in {@link System#nanoTime() } units
+     * @param endNanos the end of the span in {@link System#nanoTime() } units
+     */
+    public static void record(long traceId, String stage, String detail, long startNanos, long endNanos) {
+        if (traceId == 0) {
+            return;
+        }
+        long sequence = nextSequence.getAndIncrement();
+        spans.set((int) (sequence & MASK),
+                new TraceSpan(sequence, traceId, stage, detail, startNanos, endNanos, Thread.currentThread().getName()));
+    }
+
+    /**
+     * Records the processing of a traced message by a handler. Does nothing
+     * if traceId is 0.
+     *
+     * @param traceId the trace id of the message
+     * @param handler the handler
+     * @param startNanos when the handler was called
+     * @param endNanos when the handler returned
+     */
+    static void recordHandler(long traceId, MessageHandler handler, long startNanos, long endNanos) {
+        if (traceId != 0) {
+            record(traceId, TraceSpan.STAGE_HANDLER, handler.getClass().getName(), startNanos, endNanos);
+        }
+    }
+
+    /**
+     * @return the spans currently in the ring buffer, oldest first
+     */
+    public static List<TraceSpan> dump() {
+        List<TraceSpan> result = new ArrayList<TraceSpan>();
+        for (int i = 0; i < CAPACITY; i++) {
+            TraceSpan span = spans.get(i);
+            if (span != null) {
+                result.add(span);
+            }
+        }
+        Collections.sort(result, BY_SEQUENCE);
+        return result;
+    }
+
+    /**
+     * @param traceId a trace id
+     * @return the spans of a single message currently in the ring buffer,
+     *         oldest first
+     */
+    public static List<TraceSpan> dump(long traceId) {
+        List<TraceSpan> result = new ArrayList<TraceSpan>();
+        for (TraceSpan span : dump()) {
+            if (span.getTraceId() == traceId) {
+                result.add(span);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the spans currently in the ring buffer, one tab separated line
+     * per span: trace id, stage, detail, start, duration (ns) and thread.
+     *
+     * @param out the destination
+     * @throws IOException if out can not be written
+     */
+    public static void export(Appendable out) throws IOException {
+        for (TraceSpan span : dump()) {
+            out.append(span.toString()).append('\n');
+        }
+    }
+
+    /**
+     * Empties the ring buffer.
+     */
+    public static void clear() {
+        for (int i = 0; i < CAPACITY; i++) {
+            spans.set(i, null);
+        }
+    }
+
+}
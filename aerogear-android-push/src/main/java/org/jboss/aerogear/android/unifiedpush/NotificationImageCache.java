@@ -0,0 +1,315 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Process;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Loads notification images.
+ *
+ * Decoded, downsampled bitmaps are kept in a memory cache bounded by their
+ * size in bytes, and downloaded files in a size bounded disk cache in the
+ * application's cache directory. Concurrent requests for the same URL share
+ * one download. Images larger than {@link #MAX_DOWNLOAD_BYTES} are
+ * rejected. The memory cache is trimmed by the {@link PushMemoryGovernor}.
+ */
+final class NotificationImageCache implements MemoryConsumer {
+
+    static final int MAX_IMAGE_SIZE_PX = 512;
+    static final long MAX_DISK_CACHE_BYTES = 10 * 1024 * 1024;
+    static final long MAX_DOWNLOAD_BYTES = MAX_DISK_CACHE_BYTES / 5;
+
+    private static final String TAG = NotificationImageCache.class.getSimpleName();
+    private static final String DIRECTORY = "aerogear-push-images";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int CONNECT_TIMEOUT_MS = 10000;
+    private static final int READ_TIMEOUT_MS = 15000;
+
+    private static volatile NotificationImageCache instance;
+
+    private final File directory;
+    private final LruCache<String, Bitmap> memory;
+    private final ConcurrentMap<String, Future<Bitmap>> inFlight = new ConcurrentHashMap<String, Future<Bitmap>>();
+    private final ExecutorService downloads = Executors.newFixedThreadPool(2,
+            new PushThreadFactory("AeroGearPushNotificationImages", Process.THREAD_PRIORITY_BACKGROUND));
+
+    NotificationImageCache(File directory, int maxMemoryBytes) {
+        this.directory = directory;
+        this.memory = new LruCache<String, Bitmap>(maxMemoryBytes) {
+
+            @Override
+            protected int sizeOf(String url, Bitmap bitmap) {
+                return bitmap.getRowBytes() * bitmap.getHeight();
+            }
+        };
+    }
+
+    /**
+     * @return the process wide cache, using an eighth of the heap at most
+     */
+    static NotificationImageCache getInstance(Context context) {
+        NotificationImageCache cache = instance;
+        if (cache == null) {
+            synchronized (NotificationImageCache.class) {
+                cache = instance;
+                if (cache == null) {
+                    int maxMemoryBytes = (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8);
+                    cache = new NotificationImageCache(new File(context.getCacheDir(), DIRECTORY), maxMemoryBytes);
+                    PushMemoryGovernor.getInstance().register(cache, PushMemoryGovernor.RANK_CACHE);
+                    instance = cache;
+                }
+            }
+        }
+        return cache;
+    }
+
+    @Override
+    public long getFootprint() {
+        return memory.size();
+    }
+
+    /**
+     * Drops decoded bitmaps, downloaded files stay in the disk cache.
+     * {@link LruCache#trimToSize(int) } is not public before API 17, so
+     * entries are evicted through the public API, least recently used first.
+     */
+    @Override
+    public void trimToSize(long maxBytes) {
+        if (maxBytes <= 0) {
+            memory.evictAll();
+            return;
+        }
+        for (String url : memory.snapshot().keySet()) {
+            if (memory.size() <= maxBytes) {
+                break;
+            }
+            memory.remove(url);
+        }
+    }
+
+    /**
+     * Returns the image of url, waiting at most budgetMs for it to be
+     * downloaded. A download which exceeds the budget continues, so later
+     * messages with the same image find it cached.
+     *
+     * @param url the image URL
+     * @param budgetMs the longest time to wait
+     * @return the image, or null if it could not be loaded in time
+     */
+    Bitmap get(final String url, long budgetMs) {
+        Bitmap bitmap = memory.get(url);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        Future<Bitmap> load = inFlight.get(url);
+        if (load == null) {
+            FutureTask<Bitmap> task = new FutureTask<Bitmap>(new Callable<Bitmap>() {
+
+                @Override
+                public Bitmap call() throws IOException {
+                    try {
+                        return load(url);
+                    } finally {
+                        inFlight.remove(url);
+                    }
+                }
+            });
+            load = inFlight.putIfAbsent(url, task);
+            if (load == null) {
+                load = task;
+                downloads.execute(task);
+            }
+        }
+
+        try {
+            return load.get(budgetMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            PushLog.d(TAG, "Image {} is not loaded yet", url);
+        } catch (ExecutionException ex) {
+            PushLog.w(TAG, "Could not load image " + url, ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    private Bitmap load(String url) throws IOException {
+        File file = new File(directory, fileName(url));
+        if (!file.exists()) {
+            download(url, file);
+            trimDiskCache();
+        } else {
+            file.setLastModified(System.currentTimeMillis());
+        }
+
+        Bitmap bitmap = decode(file);
+        if (bitmap == null) {
+            file.delete();
+            throw new IOException("Could not decode " + url);
+        }
+        memory.put(url, bitmap);
+        return bitmap;
+    }
+
+    private void download(String url, File file) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        File temp = new File(directory, file.getName() + TEMP_SUFFIX);
+        try {
+            if (connection.getContentLength() > MAX_DOWNLOAD_BYTES) {
+                throw new IOException(url + " is larger than " + MAX_DOWNLOAD_BYTES + " bytes");
+            }
+            InputStream in = connection.getInputStream();
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                byte[] buffer = new byte[8192];
+                long total = 0;
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    total += read;
+                    if (total > MAX_DOWNLOAD_BYTES) {
+                        throw new IOException(url + " is larger than " + MAX_DOWNLOAD_BYTES + " bytes");
+                    }
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                out.close();
+                in.close();
+            }
+        } catch (IOException ex) {
+            temp.delete();
+            throw ex;
+        } finally {
+            connection.disconnect();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Could not store " + url);
+        }
+    }
+
+    /**
+     * Decodes a file at the smallest power of two sample size which keeps
+     * both sides at least {@link #MAX_IMAGE_SIZE_PX} / 2.
+     */
+    private static Bitmap decode(File file) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+
+        int sampleSize = 1;
+        while (options.outWidth / (sampleSize * 2) >= MAX_IMAGE_SIZE_PX / 2
+                && options.outHeight / (sampleSize * 2) >= MAX_IMAGE_SIZE_PX / 2) {
+            sampleSize *= 2;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    /**
+     * Deletes the least recently used files until the cache fits
+     * {@link #MAX_DISK_CACHE_BYTES}. Downloads in progress and the files of
+     * loads which have not been decoded yet are never deleted.
+     */
+    private void trimDiskCache() {
+        Set<String> inUse = new HashSet<String>();
+        for (String url : inFlight.keySet()) {
+            inUse.add(fileName(url));
+        }
+        List<File> files = new ArrayList<File>();
+        File[] listed = directory.listFiles();
+        if (listed == null) {
+            return;
+        }
+        long total = 0;
+        for (File file : listed) {
+            total += file.length();
+            if (!file.getName().endsWith(TEMP_SUFFIX) && !inUse.contains(file.getName())) {
+                files.add(file);
+            }
+        }
+        if (total <= MAX_DISK_CACHE_BYTES) {
+            return;
+        }
+        Collections.sort(files, new Comparator<File>() {
+
+            @Override
+            public int compare(File lhs, File rhs) {
+                long left = lhs.lastModified();
+                long right = rhs.lastModified();
+                return left < right ? -1 : (left == right ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.size() && total > MAX_DISK_CACHE_BYTES; i++) {
+            total -= files.get(i).length();
+            files.get(i).delete();
+        }
+    }
+
+    private static String fileName(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(url.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return name.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link MessageHandler} which posts a notification for every push
+ * message.
+ *
+ * The notification shows the {@link #EXTRA_TITLE} and {@link #EXTRA_ALERT}
+ * extras of the message. If the message has an {@link #EXTRA_IMAGE} URL, the
+ * image is loaded through a shared memory and disk cache and shown as the
+ * big picture. Loading is bounded by the image budget; when it runs out a
+ * text only notification is posted instead.
+ *
+ * Each message gets its own notification, unless it shares its collapse key
+ * with an earlier message, whose notification it then replaces; see
+ * {@link #notificationId(android.os.Bundle) }.
+ *
+ * Notifications are always built off the main thread. Register this handler
+ * as a background thread handler or as the default handler; if it is called
+ * on the main thread it hands the work to a background thread.
+ *
+ * Subclasses may customize the notification with
+ * {@link #customize(android.app.Notification.Builder, android.content.Context, android.os.Bundle) }.
+ */
+public class NotificationMessageHandler implements MessageHandler {
+
+    public static final String EXTRA_TITLE = "title";
+    public static final String EXTRA_ALERT = "alert";
+    public static final String EXTRA_IMAGE = "image";
+
+    private static final String EXTRA_COLLAPSE_KEY = "collapse_key";
+    private static final String EXTRA_MESSAGE_ID = "google.message_id";
+    private static final int NOTIFICATION_ID_BASE = 1;
+
+    /**
+     * The default time to wait for an image, in milliseconds.
+     */
+    public static final long DEFAULT_IMAGE_BUDGET_MS = 2000;
+
+    private static final Executor OFF_MAIN_THREAD = Executors.newSingleThreadExecutor(
+            new PushThreadFactory("AeroGearPushNotifications", Process.THREAD_PRIORITY_BACKGROUND));
+    private static final AtomicInteger unidentifiedMessages = new AtomicInteger();
+
+    private final long imageBudgetMs;
+
+    public NotificationMessageHandler() {
+        this(DEFAULT_IMAGE_BUDGET_MS);
+    }
+
+    /**
+     * @param imageBudgetMs how long to wait for an image before falling back
+     *            to a text only notification
+     */
+    public NotificationMessageHandler(long imageBudgetMs) {
+        this.imageBudgetMs = imageBudgetMs;
+    }
+
+    @Override
+    public void onMessage(final Context context, final Bundle message) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            OFF_MAIN_THREAD.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    post(context, message);
+                }
+            });
+        } else {
+            post(context, message);
+        }
+    }
+
+    @Override
+    public void onDeleteMessage(Context context, Bundle message) {
+    }
+
+    @Override
+    public void onError() {
+    }
+
+    private void post(Context context, Bundle message) {
+        NotificationManager manager = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        manager.notify(notificationId(message), build(context, message));
+    }
+
+    /**
+     * Returns the id the notification of a message is posted with. Messages
+     * with the same collapse key share an id, other messages get the id of
+     * their GCM message id, and messages without either a fresh one.
+     *
+     * @param message the push message
+     * @return the notification id
+     */
+    protected int notificationId(Bundle message) {
+        String key = message.getString(EXTRA_COLLAPSE_KEY);
+        if (key == null) {
+            key = message.getString(EXTRA_MESSAGE_ID);
+        }
+        if (key == null) {
+            return NOTIFICATION_ID_BASE + unidentifiedMessages.incrementAndGet();
+        }
+        return NOTIFICATION_ID_BASE + key.hashCode();
+    }
+
+    /**
+     * Builds the notification of a message. Blocks for at most the image
+     * budget.
+     *
+     * @param context the application context
+     * @param message the push message
+     * @return the notification
+     */
+    Notification build(Context context, Bundle message) {
+        String alert = message.getString(EXTRA_ALERT);
+        Notification.Builder builder = new Notification.Builder(context)
+                .setSmallIcon(context.getApplicationInfo().icon)
+                .setContentTitle(message.getString(EXTRA_TITLE))
+                .setContentText(alert)
+                .setAutoCancel(true)
+                .setWhen(System.currentTimeMillis());
+
+        Intent launch = context.getPackageManager().getLaunchIntentForPackage(context.getPackageName());
+        if (launch != null) {
+            builder.setContentIntent(PendingIntent.getActivity(context, 0, launch, PendingIntent.FLAG_UPDATE_CURRENT));
+        }
+
+        String image = message.getString(EXTRA_IMAGE);
+        Bitmap bitmap = image == null ? null : NotificationImageCache.getInstance(context).get(image, imageBudgetMs);
+        if (bitmap != null) {
+            builder.setLargeIcon(bitmap)
+                    .setStyle(new Notification.BigPictureStyle().bigPicture(bitmap).setSummaryText(alert));
+        }
+
+        customize(builder, context, message);
+        return builder.build();
+    }
+
+    /**
+     * Called before a notification is built. Does nothing by default.
+     *
+     * @param builder the builder, already filled from the message
+     * @param context the application context
+     * @param message the push message
+     */
+    protected void customize(Notification.Builder builder, Context context, Bundle message) {
+    }
+
+}
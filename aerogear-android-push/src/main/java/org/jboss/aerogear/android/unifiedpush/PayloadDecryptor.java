@@ -0,0 +1,233 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+import android.content.Intent;
+import android.util.Base64;
+
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Decrypts end to end encrypted push payloads once per message, before any
+ * handler sees the message.
+ *
+ * An encrypted message carries a Base64 encoded ciphertext in
+ * {@link #EXTRA_CIPHERTEXT}, its IV in {@link #EXTRA_IV} and, for keys derived
+ * from a passphrase, the PBKDF2 salt in {@link #EXTRA_SALT}. The plaintext is
+ * stored in {@link PushConstants#PLAINTEXT} of the same Intent, which every
+ * handler shares. Messages without a ciphertext pass through unchanged.
+ *
+ * The salt identifies the derived key, not the message: a sender uses one
+ * salt for all its messages and changes it only to rotate the key, while the
+ * IV is new for every message. Each thread keeps its own Cipher instance, and
+ * derived keys are cached per salt, so only the first message after a
+ * rotation derives a key. Deriving a key runs
+ * {@value #KEY_DERIVATION_ITERATIONS} PBKDF2 iterations, which takes far too
+ * long for the main thread; see
+ * {@link #requiresKeyDerivation(android.content.Intent) }.
+ */
+public final class PayloadDecryptor {
+
+    /**
+     * The extra with the Base64 encoded ciphertext of an encrypted message.
+     */
+    public static final String EXTRA_CIPHERTEXT = "aerogear-ciphertext";
+
+    /**
+     * The extra with the Base64 encoded IV of an encrypted message, which is
+     * new for every message.
+     */
+    public static final String EXTRA_IV = "aerogear-iv";
+
+    /**
+     * The extra with the Base64 encoded PBKDF2 salt of the derived key, which
+     * stays the same until the sender rotates its key.
+     */
+    public static final String EXTRA_SALT = "aerogear-salt";
+
+    /**
+     * The Cipher transformation used unless another one is given.
+     */
+    public static final String DEFAULT_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+
+    /**
+     * The PBKDF2 iterations which derive a key from a passphrase.
+     */
+    public static final int KEY_DERIVATION_ITERATIONS = 10000;
+
+    private static final String TAG = PayloadDecryptor.class.getSimpleName();
+    private static final String KEY_DERIVATION_ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final int KEY_LENGTH_BITS = 128;
+    private static final int DERIVED_KEY_CACHE_SIZE = 16;
+
+    private final String transformation;
+    private final SecretKey key;
+    private final char[] passphrase;
+
+    private final Map<String, SecretKey> derivedKeys = new LinkedHashMap<String, SecretKey>(DERIVED_KEY_CACHE_SIZE, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, SecretKey> eldest) {
+            return size() > DERIVED_KEY_CACHE_SIZE;
+        }
+    };
+
+    private final ThreadLocal<Cipher> ciphers = new ThreadLocal<Cipher>() {
+
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance(transformation);
+            } catch (GeneralSecurityException ex) {
+                throw new IllegalStateException(ex);
+            }
+        }
+    };
+
+    /**
+     * Decrypts payloads encrypted with an AES key shared with the sender.
+     *
+     * @param key the AES key
+     */
+    public PayloadDecryptor(SecretKey key) {
+        this(key, null, DEFAULT_TRANSFORMATION);
+    }
+
+    /**
+     * Decrypts payloads encrypted with AES keys derived from a passphrase and
+     * the sender's salt in {@link #EXTRA_SALT} using PBKDF2.
+     *
+     * @param passphrase the passphrase shared with the sender
+     */
+    public PayloadDecryptor(char[] passphrase) {
+        this(null, passphrase == null ? null : passphrase.clone(), DEFAULT_TRANSFORMATION);
+    }
+
+    /**
+     * @param key the AES key
+     * @param transformation a Cipher transformation which takes an IV
+     */
+    public PayloadDecryptor(SecretKey key, String transformation) {
+        this(key, null, transformation);
+    }
+
+    private PayloadDecryptor(SecretKey key, char[] passphrase, String transformation) {
+        if (key == null && passphrase == null) {
+            throw new IllegalArgumentException("key may not be null");
+        }
+        if (transformation == null) {
+            throw new IllegalArgumentException("transformation may not be null");
+        }
+        this.key = key;
+        this.passphrase = passphrase;
+        this.transformation = transformation;
+    }
+
+    /**
+     * Decrypts the payload of message into {@link PushConstants#PLAINTEXT}.
+     * A payload which can not be decrypted is logged and left in place.
+     *
+     * @param message a received push message
+     * @return true if the message carried a payload which was decrypted
+     */
+    public boolean decrypt(Intent message) {
+        String ciphertext = message.getStringExtra(EXTRA_CIPHERTEXT);
+        if (ciphertext == null) {
+            return false;
+        }
+        String encodedIv = message.getStringExtra(EXTRA_IV);
+        if (encodedIv == null) {
+            PushLog.e(TAG, "Could not decrypt push payload, missing " + EXTRA_IV);
+            return false;
+        }
+        if (passphrase != null && message.getStringExtra(EXTRA_SALT) == null) {
+            PushLog.e(TAG, "Could not decrypt push payload, missing " + EXTRA_SALT);
+            return false;
+        }
+        try {
+            byte[] iv = Base64.decode(encodedIv, Base64.DEFAULT);
+            Cipher cipher = ciphers.get();
+            cipher.init(Cipher.DECRYPT_MODE, keyFor(message.getStringExtra(EXTRA_SALT)), new IvParameterSpec(iv));
+            byte[] plaintext = cipher.doFinal(Base64.decode(ciphertext, Base64.DEFAULT));
+            message.putExtra(PushConstants.PLAINTEXT, new String(plaintext, "UTF-8"));
+            message.removeExtra(EXTRA_CIPHERTEXT);
+            return true;
+        } catch (GeneralSecurityException ex) {
+            PushLog.e(TAG, "Could not decrypt push payload", ex);
+        } catch (UnsupportedEncodingException ex) {
+            PushLog.e(TAG, "Could not decrypt push payload", ex);
+        } catch (IllegalArgumentException ex) {
+            PushLog.e(TAG, "Could not decrypt push payload", ex);
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether decrypting message first has to derive a key from the
+     * passphrase, because no key for its salt is cached. Callers on the main
+     * thread should decrypt such messages on a background thread.
+     *
+     * @param message a received push message
+     * @return true if {@link #decrypt(android.content.Intent) } would derive a
+     *         key
+     */
+    public boolean requiresKeyDerivation(Intent message) {
+        if (passphrase == null || message.getStringExtra(EXTRA_CIPHERTEXT) == null) {
+            return false;
+        }
+        String salt = message.getStringExtra(EXTRA_SALT);
+        if (salt == null) {
+            return false;
+        }
+        synchronized (derivedKeys) {
+            return !derivedKeys.containsKey(salt);
+        }
+    }
+
+    private SecretKey keyFor(String salt) throws GeneralSecurityException {
+        if (passphrase == null) {
+            return key;
+        }
+        if (salt == null) {
+            throw new GeneralSecurityException("Missing " + EXTRA_SALT);
+        }
+        synchronized (derivedKeys) {
+            SecretKey derived = derivedKeys.get(salt);
+            if (derived != null) {
+                return derived;
+            }
+        }
+        PBEKeySpec spec = new PBEKeySpec(passphrase, Base64.decode(salt, Base64.DEFAULT), KEY_DERIVATION_ITERATIONS, KEY_LENGTH_BITS);
+        byte[] encoded = SecretKeyFactory.getInstance(KEY_DERIVATION_ALGORITHM).generateSecret(spec).getEncoded();
+        spec.clearPassword();
+        SecretKey derived = new SecretKeySpec(encoded, "AES");
+        synchronized (derivedKeys) {
+            derivedKeys.put(salt, derived);
+        }
+        return derived;
+    }
+
+}
@@ -0,0 +1,69 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+/**
+ * Counters describing one set of background lanes, see
+ * {@link RegistrarManager#getUrgentLaneStats() } and
+ * {@link RegistrarManager#getBulkLaneStats() }.
+ */
+public final class PriorityLaneStats {
+
+    private final long invocations;
+    private final long throttledInvocations;
+    private final long meanWaitMicros;
+    private final long maxWaitMicros;
+
+    PriorityLaneStats(long invocations, long throttledInvocations, long meanWaitMicros, long maxWaitMicros) {
+        this.invocations = invocations;
+        this.throttledInvocations = throttledInvocations;
+        this.meanWaitMicros = meanWaitMicros;
+        this.maxWaitMicros = maxWaitMicros;
+    }
+
+    /**
+     * @return the number of handler invocations started on these lanes
+     */
+    public long getInvocations() {
+        return invocations;
+    }
+
+    /**
+     * @return the number of invocations which waited for urgent invocations
+     *         before they started, always 0 for the urgent lanes
+     */
+    public long getThrottledInvocations() {
+        return throttledInvocations;
+    }
+
+    /**
+     * @return the mean time between dispatching an invocation and starting
+     *         it, in microseconds
+     */
+    public long getMeanWaitMicros() {
+        return meanWaitMicros;
+    }
+
+    /**
+     * @return the longest time between dispatching an invocation and
+     *         starting it, in microseconds
+     */
+    public long getMaxWaitMicros() {
+        return maxWaitMicros;
+    }
+
+}
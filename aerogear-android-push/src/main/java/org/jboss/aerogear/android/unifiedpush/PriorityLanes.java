@@ -0,0 +1,183 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs background handler invocations on two sets of
+ * {@link StripedDispatcher} lanes, urgent and bulk.
+ *
+ * Urgent lanes are reserved for high priority messages and run at a higher
+ * thread priority, so a burst of bulk messages neither occupies their
+ * threads nor outcompetes them for the CPU. While an urgent invocation is
+ * queued or running, bulk invocations wait up to the throttle before they
+ * start. Both sets of lanes measure the time invocations wait for a lane.
+ */
+final class PriorityLanes {
+
+    /**
+     * Default number of urgent lanes.
+     */
+    static final int URGENT_LANES = 2;
+
+    /**
+     * Default time a bulk invocation waits for urgent invocations.
+     */
+    static final long DEFAULT_THROTTLE_MS = 250;
+
+    private final StripedDispatcher urgentLanes;
+    private final StripedDispatcher bulkLanes;
+    private final Metrics urgentMetrics = new Metrics();
+    private final Metrics bulkMetrics = new Metrics();
+
+    private final Object gate = new Object();
+    private int urgentInFlight;
+    private volatile long throttleMs = DEFAULT_THROTTLE_MS;
+
+    PriorityLanes() {
+        urgentLanes = new StripedDispatcher("AeroGearPushUrgentLane", URGENT_LANES, Process.THREAD_PRIORITY_DEFAULT);
+        bulkLanes = StripedDispatcher.withDefaultLanes("AeroGearPushLane", Process.THREAD_PRIORITY_BACKGROUND);
+    }
+
+    /**
+     * @param key the ordering key of a message, may be null
+     * @param handler the handler which will process the message
+     * @param urgent true if the message has a high priority
+     * @return the lane which processes the message for handler
+     */
+    Executor lane(String key, MessageHandler handler, boolean urgent) {
+        if (urgent) {
+            return new Lane(urgentLanes.lane(key, handler), urgentMetrics, true);
+        }
+        return new Lane(bulkLanes.lane(key, handler), bulkMetrics, false);
+    }
+
+    /**
+     * @param throttleMs the longest time a bulk invocation waits for urgent
+     *            invocations, 0 to never wait
+     */
+    void setThrottle(long throttleMs) {
+        this.throttleMs = throttleMs;
+    }
+
+    PriorityLaneStats getUrgentStats() {
+        return urgentMetrics.snapshot();
+    }
+
+    PriorityLaneStats getBulkStats() {
+        return bulkMetrics.snapshot();
+    }
+
+    /**
+     * @return true if the invocation had to wait
+     */
+    private boolean awaitUrgent() {
+        long remaining = throttleMs;
+        if (remaining <= 0) {
+            return false;
+        }
+        synchronized (gate) {
+            if (urgentInFlight == 0) {
+                return false;
+            }
+            long deadline = System.currentTimeMillis() + remaining;
+            try {
+                while (urgentInFlight > 0 && remaining > 0) {
+                    gate.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return true;
+        }
+    }
+
+    private final class Lane implements Executor {
+
+        private final Executor lane;
+        private final Metrics metrics;
+        private final boolean urgent;
+
+        Lane(Executor lane, Metrics metrics, boolean urgent) {
+            this.lane = lane;
+            this.metrics = metrics;
+            this.urgent = urgent;
+        }
+
+        @Override
+        public void execute(final Runnable invocation) {
+            final long enqueuedAt = System.nanoTime();
+            if (urgent) {
+                synchronized (gate) {
+                    urgentInFlight++;
+                }
+            }
+            lane.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean throttled = !urgent && awaitUrgent();
+                    metrics.record(System.nanoTime() - enqueuedAt, throttled);
+                    try {
+                        invocation.run();
+                    } finally {
+                        if (urgent) {
+                            synchronized (gate) {
+                                if (--urgentInFlight == 0) {
+                                    gate.notifyAll();
+                                }
+                            }
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    private static final class Metrics {
+
+        private final AtomicLong invocations = new AtomicLong();
+        private final AtomicLong throttled = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicLong maxWaitNanos = new AtomicLong();
+
+        void record(long waitNanos, boolean wasThrottled) {
+            invocations.incrementAndGet();
+            totalWaitNanos.addAndGet(waitNanos);
+            if (wasThrottled) {
+                throttled.incrementAndGet();
+            }
+            long max = maxWaitNanos.get();
+            while (waitNanos > max && !maxWaitNanos.compareAndSet(max, waitNanos)) {
+                max = maxWaitNanos.get();
+            }
+        }
+
+        PriorityLaneStats snapshot() {
+            long count = invocations.get();
+            long mean = count == 0 ? 0 : totalWaitNanos.get() / count;
+            return new PriorityLaneStats(count, throttled.get(),
+                    TimeUnit.NANOSECONDS.toMicros(mean), TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get()));
+        }
+    }
+
+}
@@ -16,6 +16,7 @@
  */
 package org.jboss.aerogear.android.unifiedpush;
 
+import java.io.Serializable;
 import java.util.Collection;
 import java.util.HashSet;
 import org.jboss.aerogear.android.core.Config;
@@ -23,13 +24,18 @@ import org.jboss.aerogear.android.core.Config;
 /**
  * The configuration builder for push registrars.
  * 
+ * Configurations are Serializable so {@link RegistrarManager} can persist
+ * them, listeners are not persisted.
+ * 
  * @param <CONFIGURATION> The concrete implementation of the PushConfiguration
  */
-public abstract class PushConfiguration<CONFIGURATION extends PushConfiguration> implements Config<CONFIGURATION> {
+public abstract class PushConfiguration<CONFIGURATION extends PushConfiguration> implements Config<CONFIGURATION>, Serializable {
+
+    private static final long serialVersionUID = 1L;
 
     private String name;
 
-    private Collection<OnPushRegistrarCreatedListener> listeners = new HashSet<OnPushRegistrarCreatedListener>();
+    private transient Collection<OnPushRegistrarCreatedListener> listeners = new HashSet<OnPushRegistrarCreatedListener>();
 
     @Override
     public String getName() {
@@ -49,6 +55,9 @@ public abstract class PushConfiguration<CONFIGURATION extends PushConfiguration>
      * @return the current collection.
      */
     public Collection<OnPushRegistrarCreatedListener> getOnAuthenticationCreatedListeners() {
+        if (listeners == null) {
+            listeners = new HashSet<OnPushRegistrarCreatedListener>();
+        }
         return listeners;
     }
 
@@ -60,7 +69,7 @@ public abstract class PushConfiguration<CONFIGURATION extends PushConfiguration>
      * @return this configuration
      */
     public CONFIGURATION addOnPushRegistrarCreatedListener(OnPushRegistrarCreatedListener listener) {
-        this.listeners.add(listener);
+        getOnAuthenticationCreatedListeners().add(listener);
         return (CONFIGURATION) this;
     }
 
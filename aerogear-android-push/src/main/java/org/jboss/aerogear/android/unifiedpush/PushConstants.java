@@ -50,4 +50,16 @@ public final class PushConstants {
      */
     public static final String DELETED = "org.jboss.aerogear.android.unifiedpush.DELETED";
 
+    /**
+     * Intents with this long extra are traced by {@link MessageTracer}. The
+     * value is the trace id shared by all spans of the message.
+     */
+    public static final String TRACE_ID = "org.jboss.aerogear.android.unifiedpush.TRACE_ID";
+
+    /**
+     * Intents with this String extra carried an encrypted payload which a
+     * {@link PayloadDecryptor} decrypted before any handler was notified.
+     */
+    public static final String PLAINTEXT = "org.jboss.aerogear.android.unifiedpush.PLAINTEXT";
+
 }
@@ -0,0 +1,57 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+/**
+ * A stage between receiving a push message and notifying its handlers, see
+ * {@link RegistrarManager#addInterceptor(org.jboss.aerogear.android.unifiedpush.PushInterceptor) }.
+ *
+ * An interceptor passes a message on by calling
+ * {@link Chain#proceed(org.jboss.aerogear.android.unifiedpush.PushMessage) }.
+ * Not calling it drops the message, calling it several times fans the
+ * message out, and calling it later from another thread makes the stage
+ * asynchronous. Interceptors run on the thread which received the message,
+ * usually the main thread, and should hand slow work to another thread.
+ *
+ * While an asynchronous stage has not called proceed, the receiver keeps its
+ * broadcast open with {@code goAsync()} so the process is not killed, for at
+ * most seven seconds. A stage which drops a message therefore holds the
+ * broadcast until then, and a stage which proceeds later than that may find
+ * the process gone.
+ */
+public interface PushInterceptor {
+
+    /**
+     * @param message the message, which may be modified
+     * @param chain the rest of the chain
+     */
+    void intercept(PushMessage message, Chain chain);
+
+    /**
+     * The stages after an interceptor, ending with the handlers.
+     */
+    interface Chain {
+
+        /**
+         * Hands a message to the next stage. May be called from any thread.
+         *
+         * @param message the message to pass on
+         */
+        void proceed(PushMessage message);
+    }
+
+}
@@ -0,0 +1,196 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+import android.util.Log;
+
+/**
+ * The logging facade of the push library.
+ *
+ * Records below the current level return after a single comparison. Messages
+ * take up to two arguments which replace the {} placeholders of the format
+ * only once the record is known to be logged, and the fixed arity overloads
+ * avoid varargs arrays, so disabled records allocate nothing. Long arguments
+ * have their own overload to avoid boxing.
+ *
+ * Records go to {@link Log} unless another {@link PushLogSink} is set. The
+ * default level is {@link #INFO}.
+ */
+public final class PushLog {
+
+    /** The priority of verbose records, same as {@link Log#VERBOSE}. */
+    public static final int VERBOSE = Log.VERBOSE;
+
+    /** The priority of debug records, same as {@link Log#DEBUG}. */
+    public static final int DEBUG = Log.DEBUG;
+
+    /** The priority of info records, same as {@link Log#INFO}. */
+    public static final int INFO = Log.INFO;
+
+    /** The priority of warnings, same as {@link Log#WARN}. */
+    public static final int WARN = Log.WARN;
+
+    /** The priority of errors, same as {@link Log#ERROR}. */
+    public static final int ERROR = Log.ERROR;
+
+    private static final PushLogSink ANDROID_SINK = new PushLogSink() {
+
+        @Override
+        public void log(int level, String tag, String message, Throwable error) {
+            if (error != null) {
+                message = message + '\n' + Log.getStackTraceString(error);
+            }
+            Log.println(level, tag, message);
+        }
+    };
+
+    private static volatile int level = Log.INFO;
+    private static volatile PushLogSink sink = ANDROID_SINK;
+
+    private PushLog() {
+    }
+
+    /**
+     * @param minimumLevel the lowest {@link Log} priority which is logged
+     */
+    public static void setLevel(int minimumLevel) {
+        level = minimumLevel;
+    }
+
+    /**
+     * @param logSink the sink which receives records, or null to log to
+     *            {@link Log}
+     */
+    public static void setSink(PushLogSink logSink) {
+        sink = logSink == null ? ANDROID_SINK : logSink;
+    }
+
+    /**
+     * @param priority a {@link Log} priority
+     * @return true if records of this priority are logged
+     */
+    public static boolean isLoggable(int priority) {
+        return priority >= level;
+    }
+
+    public static void v(String tag, String message) {
+        if (Log.VERBOSE >= level) {
+            sink.log(Log.VERBOSE, tag, message, null);
+        }
+    }
+
+    public static void v(String tag, String format, Object arg) {
+        if (Log.VERBOSE >= level) {
+            sink.log(Log.VERBOSE, tag, format(format, arg, null), null);
+        }
+    }
+
+    public static void v(String tag, String format, long arg) {
+        if (Log.VERBOSE >= level) {
+            sink.log(Log.VERBOSE, tag, format(format, String.valueOf(arg), null), null);
+        }
+    }
+
+    public static void d(String tag, String message) {
+        if (Log.DEBUG >= level) {
+            sink.log(Log.DEBUG, tag, message, null);
+        }
+    }
+
+    public static void d(String tag, String format, Object arg) {
+        if (Log.DEBUG >= level) {
+            sink.log(Log.DEBUG, tag, format(format, arg, null), null);
+        }
+    }
+
+    public static void d(String tag, String format, Object arg1, Object arg2) {
+        if (Log.DEBUG >= level) {
+            sink.log(Log.DEBUG, tag, format(format, arg1, arg2), null);
+        }
+    }
+
+    public static void i(String tag, String message) {
+        if (Log.INFO >= level) {
+            sink.log(Log.INFO, tag, message, null);
+        }
+    }
+
+    public static void i(String tag, String format, Object arg) {
+        if (Log.INFO >= level) {
+            sink.log(Log.INFO, tag, format(format, arg, null), null);
+        }
+    }
+
+    public static void w(String tag, String message) {
+        if (Log.WARN >= level) {
+            sink.log(Log.WARN, tag, message, null);
+        }
+    }
+
+    public static void w(String tag, String format, Object arg) {
+        if (Log.WARN >= level) {
+            sink.log(Log.WARN, tag, format(format, arg, null), null);
+        }
+    }
+
+    public static void w(String tag, String format, long arg) {
+        if (Log.WARN >= level) {
+            sink.log(Log.WARN, tag, format(format, String.valueOf(arg), null), null);
+        }
+    }
+
+    public static void w(String tag, String message, Throwable error) {
+        if (Log.WARN >= level) {
+            sink.log(Log.WARN, tag, message, error);
+        }
+    }
+
+    public static void e(String tag, String message) {
+        if (Log.ERROR >= level) {
+            sink.log(Log.ERROR, tag, message, null);
+        }
+    }
+
+    public static void e(String tag, String format, Object arg) {
+        if (Log.ERROR >= level) {
+            sink.log(Log.ERROR, tag, format(format, arg, null), null);
+        }
+    }
+
+    public static void e(String tag, String message, Throwable error) {
+        if (Log.ERROR >= level) {
+            sink.log(Log.ERROR, tag, message, error);
+        }
+    }
+
+    /**
+     * Replaces the first two {} placeholders of format with arg1 and arg2.
+     */
+    static String format(String format, Object arg1, Object arg2) {
+        StringBuilder message = new StringBuilder(format.length() + 32);
+        int start = 0;
+        int argument = 0;
+        int placeholder;
+        while (argument < 2 && (placeholder = format.indexOf("{}", start)) >= 0) {
+            message.append(format, start, placeholder).append(argument == 0 ? arg1 : arg2);
+            start = placeholder + 2;
+            argument++;
+        }
+        return message.append(format, start, format.length()).toString();
+    }
+
+}
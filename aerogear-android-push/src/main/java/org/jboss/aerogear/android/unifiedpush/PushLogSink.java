@@ -0,0 +1,35 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+/**
+ * Receives the log records of the push library, see
+ * {@link PushLog#setSink(org.jboss.aerogear.android.unifiedpush.PushLogSink) }.
+ */
+public interface PushLogSink {
+
+    /**
+     * Called only for records at or above the level of {@link PushLog}.
+     * 
+     * @param level one of the {@link android.util.Log} priorities
+     * @param tag the tag of the logging class
+     * @param message the formatted message
+     * @param error an error attached to the record, may be null
+     */
+    void log(int level, String tag, String message, Throwable error);
+
+}
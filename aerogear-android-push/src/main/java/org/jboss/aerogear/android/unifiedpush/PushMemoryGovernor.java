@@ -0,0 +1,183 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 
+ * Shrinks the memory held by the push library when the system asks the
+ * application to trim memory.
+ * 
+ * Every {@link MemoryConsumer} is registered with a rank. Caches, which are
+ * cheap to rebuild, give memory back first. Buffers of messages already
+ * delivered follow, and pending work is only moved to disk once the process
+ * is likely to be killed:
+ * 
+ * <ul>
+ * <li>running low: caches are halved</li>
+ * <li>running critical or UI hidden: caches are emptied, buffers halved</li>
+ * <li>background: caches and buffers are emptied</li>
+ * <li>moderate, complete or low memory: queues are moved to disk as well</li>
+ * </ul>
+ * 
+ * Install the governor with
+ * {@link #install(android.content.Context) }, usually from
+ * Application.onCreate.
+ */
+public final class PushMemoryGovernor implements ComponentCallbacks2 {
+
+    private static final String TAG = PushMemoryGovernor.class.getSimpleName();
+
+    /**
+     * Consumers which can rebuild their contents, such as decoded images.
+     */
+    public static final int RANK_CACHE = 0;
+
+    /**
+     * Consumers whose contents were delivered but would be missed, such as
+     * the replay buffer.
+     */
+    public static final int RANK_BUFFER = 1;
+
+    /**
+     * Consumers which hold work not done yet, such as deferred messages.
+     */
+    public static final int RANK_QUEUE = 2;
+
+    private static final PushMemoryGovernor INSTANCE = new PushMemoryGovernor();
+
+    private final Map<MemoryConsumer, Integer> consumers = new ConcurrentHashMap<MemoryConsumer, Integer>();
+    private volatile boolean installed;
+
+    private PushMemoryGovernor() {
+    }
+
+    /**
+     * @return the governor of this process
+     */
+    public static PushMemoryGovernor getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Starts receiving trim memory callbacks for the application.
+     * 
+     * @param context the application's context
+     */
+    public void install(Context context) {
+        synchronized (this) {
+            if (installed) {
+                return;
+            }
+            installed = true;
+        }
+        context.getApplicationContext().registerComponentCallbacks(this);
+    }
+
+    /**
+     * @param consumer the consumer to trim
+     * @param rank one of {@link #RANK_CACHE}, {@link #RANK_BUFFER} or
+     *            {@link #RANK_QUEUE}
+     */
+    public void register(MemoryConsumer consumer, int rank) {
+        if (rank < RANK_CACHE || rank > RANK_QUEUE) {
+            throw new IllegalArgumentException("Unknown rank " + rank);
+        }
+        consumers.put(consumer, rank);
+    }
+
+    /**
+     * @param consumer a consumer which no longer holds memory
+     */
+    public void unregister(MemoryConsumer consumer) {
+        consumers.remove(consumer);
+    }
+
+    /**
+     * @return the estimated heap memory held by every registered consumer,
+     *         in bytes
+     */
+    public long getFootprint() {
+        long footprint = 0;
+        for (MemoryConsumer consumer : consumers.keySet()) {
+            footprint += consumer.getFootprint();
+        }
+        return footprint;
+    }
+
+    /**
+     * @param rank one of {@link #RANK_CACHE}, {@link #RANK_BUFFER} or
+     *            {@link #RANK_QUEUE}
+     * @return the estimated heap memory held by the consumers of rank, in
+     *         bytes
+     */
+    public long getFootprint(int rank) {
+        long footprint = 0;
+        for (Map.Entry<MemoryConsumer, Integer> entry : consumers.entrySet()) {
+            if (entry.getValue() == rank) {
+                footprint += entry.getKey().getFootprint();
+            }
+        }
+        return footprint;
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        if (level >= TRIM_MEMORY_MODERATE) {
+            trim(RANK_CACHE, false);
+            trim(RANK_BUFFER, false);
+            trim(RANK_QUEUE, false);
+        } else if (level >= TRIM_MEMORY_BACKGROUND) {
+            trim(RANK_CACHE, false);
+            trim(RANK_BUFFER, false);
+        } else if (level >= TRIM_MEMORY_RUNNING_CRITICAL) {
+            trim(RANK_CACHE, false);
+            trim(RANK_BUFFER, true);
+        } else if (level >= TRIM_MEMORY_RUNNING_LOW) {
+            trim(RANK_CACHE, true);
+        }
+        if (PushLog.isLoggable(PushLog.DEBUG)) {
+            // the footprint walks every consumer
+            PushLog.d(TAG, "Trimmed to {} bytes at level {}", getFootprint(), level);
+        }
+    }
+
+    @Override
+    public void onLowMemory() {
+        onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+    }
+
+    private void trim(int rank, boolean half) {
+        for (Map.Entry<MemoryConsumer, Integer> entry : consumers.entrySet()) {
+            if (entry.getValue() == rank) {
+                MemoryConsumer consumer = entry.getKey();
+                consumer.trimToSize(half ? consumer.getFootprint() / 2 : 0);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+
+/**
+ * A push message on its way through the {@link PushInterceptor} chain.
+ *
+ * The message wraps the Intent handed to
+ * {@link RegistrarManager#notifyHandlers(android.content.Context, android.content.Intent, org.jboss.aerogear.android.unifiedpush.MessageHandler) },
+ * changes to its extras are seen by later interceptors and the handlers.
+ */
+public final class PushMessage {
+
+    private final Context context;
+    private final Intent intent;
+
+    /**
+     * @param context the context the message was received in
+     * @param intent the message, see {@link PushConstants}
+     */
+    public PushMessage(Context context, Intent intent) {
+        this.context = context;
+        this.intent = intent;
+    }
+
+    public Context getContext() {
+        return context;
+    }
+
+    public Intent getIntent() {
+        return intent;
+    }
+
+    /**
+     * @return the extras of the message, may be null
+     */
+    public Bundle getExtras() {
+        return intent.getExtras();
+    }
+
+    /**
+     * @param key the name of a String extra
+     * @return the value of the extra, or null
+     */
+    public String getString(String key) {
+        return intent.getStringExtra(key);
+    }
+
+    /**
+     * @param key the name of a String extra
+     * @param value the new value
+     * @return this message
+     */
+    public PushMessage putString(String key, String value) {
+        intent.putExtra(key, value);
+        return this;
+    }
+
+    /**
+     * @return true if this is a message for
+     *         {@link MessageHandler#onMessage(android.content.Context, android.os.Bundle) }
+     *         rather than an error or deletion notice
+     */
+    public boolean isMessage() {
+        return !intent.getBooleanExtra(PushConstants.ERROR, false)
+                && !intent.getBooleanExtra(PushConstants.DELETED, false);
+    }
+
+    /**
+     * @return an independent copy, for interceptors which fan a message out
+     *         into several
+     */
+    public PushMessage copy() {
+        return new PushMessage(context, new Intent(intent));
+    }
+
+}
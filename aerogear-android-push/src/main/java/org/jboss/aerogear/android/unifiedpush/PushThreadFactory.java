@@ -0,0 +1,54 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+import android.os.Process;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the named daemon threads of the push library, which run at a
+ * {@link Process} priority instead of the priority of their creator.
+ */
+final class PushThreadFactory implements ThreadFactory {
+
+    private final String name;
+    private final int threadPriority;
+
+    /**
+     * @param name the name of every thread, starting with AeroGearPush
+     * @param threadPriority the {@link Process} priority of the threads
+     */
+    PushThreadFactory(String name, int threadPriority) {
+        this.name = name;
+        this.threadPriority = threadPriority;
+    }
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(threadPriority);
+                runnable.run();
+            }
+        }, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+}
@@ -16,17 +16,28 @@
  */
 package org.jboss.aerogear.android.unifiedpush;
 
-import org.jboss.aerogear.android.unifiedpush.gcm.AeroGearGCMPushConfigurationProvider;
-import org.jboss.aerogear.android.unifiedpush.gcm.AeroGearGCMPushConfiguration;
+import android.app.Activity;
+import android.app.Application;
 import android.content.Context;
 import android.content.Intent;
-import android.os.Handler;
-import android.os.Looper;
+import android.os.Bundle;
+import android.os.Process;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import org.jboss.aerogear.android.core.ConfigurationProvider;
 
 /**
@@ -34,24 +45,87 @@ import org.jboss.aerogear.android.core.ConfigurationProvider;
  */
 public class RegistrarManager {
 
-    private static final Map<String, PushRegistrar> registrars = new HashMap<String, PushRegistrar>();
+    private static final String TAG = RegistrarManager.class.getSimpleName();
+    private static final String SNAPSHOT_FILE = "aerogear-push-registrars.ser";
 
-    private static final List<MessageHandler> mainThreadHandlers = new ArrayList<MessageHandler>();
-    private static final List<MessageHandler> backgroundThreadHandlers = new ArrayList<MessageHandler>();
+    private static final Map<String, PushRegistrar> registrars = new ConcurrentHashMap<String, PushRegistrar>();
+    private static final Map<String, PushConfiguration<?>> configurations = new ConcurrentHashMap<String, PushConfiguration<?>>();
 
-    private static Map<Class<? extends PushConfiguration<?>>, ConfigurationProvider<?>> configurationProviderMap = new HashMap<Class<? extends PushConfiguration<?>>, ConfigurationProvider<?>>();
+    /**
+     * Configurations read from the snapshot whose registrars have not been
+     * looked up yet, null until the snapshot is read.
+     */
+    private static Map<String, PushConfiguration<?>> snapshot;
+
+    private static final HandlerRegistry mainThreadHandlers = new HandlerRegistry();
+    private static final HandlerRegistry backgroundThreadHandlers = new HandlerRegistry();
+
+    private static Map<Class<? extends PushConfiguration<?>>, ConfigurationProvider<?>> configurationProviderMap = new ConcurrentHashMap<Class<? extends PushConfiguration<?>>, ConfigurationProvider<?>>();
+
+    /**
+     * Configuration class names mapped to the class names of their default
+     * providers. Providers are only loaded by the first
+     * {@link #config(java.lang.String, java.lang.Class) } call for their
+     * configuration, so code which only registers handlers never loads them.
+     */
+    private static final Map<String, String> defaultProviderIndex = new HashMap<String, String>();
+
+    private static volatile HandlerWatchdog watchdog;
+
+    /**
+     * The default extra whose value orders background deliveries, the GCM
+     * collapse key.
+     */
+    public static final String DEFAULT_ORDERING_KEY_EXTRA = "collapse_key";
+
+    private static volatile String orderingKeyExtra = DEFAULT_ORDERING_KEY_EXTRA;
+
+    private static volatile String coalescingKeyExtra;
+    private static final DeliveryCoalescer coalescer = new DeliveryCoalescer();
+    private static final AtomicLong coalescedMessages = new AtomicLong();
+
+    /**
+     * The default extra whose value is the priority of a message.
+     */
+    public static final String DEFAULT_PRIORITY_EXTRA = "aerogear-priority";
+
+    /**
+     * The priority of messages which may be deferred, see
+     * {@link #enableDeferredDelivery(android.content.Context, long) }.
+     */
+    public static final String PRIORITY_LOW = "low";
+
+    /**
+     * The priority of urgent messages, which background handlers process on
+     * reserved lanes, see {@link #setBulkThrottle(long) }.
+     */
+    public static final String PRIORITY_HIGH = "high";
+
+    private static volatile String priorityExtra = DEFAULT_PRIORITY_EXTRA;
+    private static volatile DeferredDeliveryQueue deferredDelivery;
+    private static volatile ReplayBuffer replayBuffer;
+
+    private static final InterceptorPipeline interceptors = new InterceptorPipeline();
+    private static final InterceptorPipeline.Terminal ROUTE = new InterceptorPipeline.Terminal() {
+
+        @Override
+        public void deliver(PushMessage message, MessageHandler defaultHandler) {
+            route(message.getContext(), message.getIntent(), defaultHandler);
+        }
+    };
 
     private static OnPushRegistrarCreatedListener onPushRegistrarCreatedListener = new OnPushRegistrarCreatedListener() {
 
         @Override
         public void onPushRegistrarCreated(PushConfiguration<?> configuration, PushRegistrar registrar) {
             registrars.put(configuration.getName(), registrar);
+            configurations.put(configuration.getName(), configuration);
         }
     };
 
     static {
-        AeroGearGCMPushConfigurationProvider basicConfigurationProvider = new AeroGearGCMPushConfigurationProvider();
-        RegistrarManager.registerConfigurationProvider(AeroGearGCMPushConfiguration.class, basicConfigurationProvider);
+        defaultProviderIndex.put("org.jboss.aerogear.android.unifiedpush.gcm.AeroGearGCMPushConfiguration",
+                "org.jboss.aerogear.android.unifiedpush.gcm.AeroGearGCMPushConfigurationProvider");
     }
 
     /**
@@ -85,6 +159,10 @@ public class RegistrarManager {
         ConfigurationProvider<? extends PushConfiguration<CFG>> provider = (ConfigurationProvider<? extends PushConfiguration<CFG>>) configurationProviderMap
                 .get(pushConfigurationClass);
 
+        if (provider == null) {
+            provider = loadDefaultProvider(pushConfigurationClass);
+        }
+
         if (provider == null) {
             throw new IllegalArgumentException("Configuration not registered!");
         }
@@ -95,6 +173,45 @@ public class RegistrarManager {
 
     }
 
+    /**
+     * Looks the default provider of a configuration class up in the provider
+     * index and registers it.
+     * 
+     * @return the default provider or null if the class has none
+     */
+    private static <CFG extends PushConfiguration<CFG>> ConfigurationProvider<CFG> loadDefaultProvider(Class<CFG> pushConfigurationClass) {
+        String providerClassName = defaultProviderIndex.get(pushConfigurationClass.getName());
+        if (providerClassName == null) {
+            return null;
+        }
+
+        try {
+            @SuppressWarnings("unchecked")
+            ConfigurationProvider<CFG> provider = (ConfigurationProvider<CFG>) Class
+                    .forName(providerClassName, true, pushConfigurationClass.getClassLoader())
+                    .newInstance();
+            registerConfigurationProvider(pushConfigurationClass, provider);
+            return provider;
+        } catch (Exception ex) {
+            throw new IllegalStateException("Could not load " + providerClassName, ex);
+        }
+    }
+
+    /**
+     * Installs a watchdog which enforces time budgets on every handler
+     * invocation. Replaces and shuts down the previous watchdog.
+     * 
+     * @param handlerWatchdog the new watchdog, or null to stop watching
+     *            handlers
+     */
+    public static void setHandlerWatchdog(HandlerWatchdog handlerWatchdog) {
+        HandlerWatchdog previous = watchdog;
+        watchdog = handlerWatchdog;
+        if (previous != null && previous != handlerWatchdog) {
+            previous.shutdown();
+        }
+    }
+
     /**
      * Fetches a named registrar
      * 
@@ -107,6 +224,132 @@ public class RegistrarManager {
         return registrars.get(name);
     }
 
+    /**
+     * Fetches a named registrar, rebuilding it from the snapshot written by
+     * {@link #saveSnapshot(android.content.Context) } if it has not been
+     * configured in this process. A process started by a push message can
+     * therefore look registrars up without configuring them first.
+     * 
+     * @param context the application's context
+     * @param name the name of the {@link PushRegistrar} given in {@link RegistrarManager#config(java.lang.String, java.lang.Class)
+     * }
+     * 
+     * @return the named {@link PushRegistrar} or null
+     */
+    public static PushRegistrar getRegistrar(Context context, String name) {
+        PushRegistrar registrar = registrars.get(name);
+        if (registrar != null) {
+            return registrar;
+        }
+
+        synchronized (RegistrarManager.class) {
+            registrar = registrars.get(name);
+            if (registrar != null) {
+                return registrar;
+            }
+            if (snapshot == null) {
+                snapshot = readSnapshot(context);
+            }
+            PushConfiguration<?> configuration = snapshot.remove(name);
+            if (configuration == null) {
+                return null;
+            }
+            registrar = configuration.buildRegistrar();
+            registrars.put(name, registrar);
+            configurations.put(name, configuration);
+            return registrar;
+        }
+    }
+
+    /**
+     * Persists the configurations of every registrar created so far, and of
+     * every snapshot entry not looked up yet, so
+     * {@link #getRegistrar(android.content.Context, java.lang.String) } can
+     * rebuild them in a later process. Listeners are not persisted.
+     * 
+     * Call this after configuring registrars, off the startup path.
+     * 
+     * @param context the application's context
+     * @throws IOException if the snapshot can not be written
+     */
+    public static void saveSnapshot(Context context) throws IOException {
+        ArrayList<PushConfiguration<?>> entries;
+        synchronized (RegistrarManager.class) {
+            entries = new ArrayList<PushConfiguration<?>>(configurations.values());
+            if (snapshot != null) {
+                for (PushConfiguration<?> configuration : snapshot.values()) {
+                    if (!configurations.containsKey(configuration.getName())) {
+                        entries.add(configuration);
+                    }
+                }
+            }
+        }
+
+        File file = new File(context.getFilesDir(), SNAPSHOT_FILE);
+        File temp = new File(context.getFilesDir(), SNAPSHOT_FILE + ".tmp");
+        ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeObject(entries);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    /**
+     * Deletes the snapshot written by
+     * {@link #saveSnapshot(android.content.Context) }.
+     * 
+     * @param context the application's context
+     */
+    public static void clearSnapshot(Context context) {
+        synchronized (RegistrarManager.class) {
+            snapshot = new HashMap<String, PushConfiguration<?>>();
+            new File(context.getFilesDir(), SNAPSHOT_FILE).delete();
+        }
+    }
+
+    private static Map<String, PushConfiguration<?>> readSnapshot(Context context) {
+        Map<String, PushConfiguration<?>> result = new HashMap<String, PushConfiguration<?>>();
+        File file = new File(context.getFilesDir(), SNAPSHOT_FILE);
+        if (!file.exists()) {
+            return result;
+        }
+        try {
+            ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                @SuppressWarnings("unchecked")
+                List<PushConfiguration<?>> entries = (List<PushConfiguration<?>>) in.readObject();
+                for (PushConfiguration<?> configuration : entries) {
+                    result.put(configuration.getName(), configuration);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            PushLog.e(TAG, "Could not read registrar snapshot", ex);
+            discardSnapshot(file, result);
+        } catch (ClassNotFoundException ex) {
+            PushLog.e(TAG, "Could not read registrar snapshot", ex);
+            discardSnapshot(file, result);
+        } catch (RuntimeException ex) {
+            // truncated files and snapshots of other versions end up here
+            PushLog.e(TAG, "Could not read registrar snapshot", ex);
+            discardSnapshot(file, result);
+        }
+        return result;
+    }
+
+    /**
+     * Deletes an unreadable snapshot, so it does not fail every later start.
+     */
+    private static void discardSnapshot(File file, Map<String, PushConfiguration<?>> result) {
+        result.clear();
+        file.delete();
+    }
+
     /**
      * 
      * When a push message is received, all main thread handlers will be
@@ -116,7 +359,359 @@ public class RegistrarManager {
      * @param handler a handler to added to the list of handlers to be notified.
      */
     public static void registerMainThreadHandler(MessageHandler handler) {
-        mainThreadHandlers.add(handler);
+        mainThreadHandlers.add(handler, false);
+    }
+
+    /**
+     * 
+     * Registers a main thread handler without keeping it in memory. The
+     * handler stops receiving messages once it is garbage collected, so an
+     * Activity or Fragment which forgets to unregister does not leak.
+     * 
+     * @param handler a handler to added to the list of handlers to be notified.
+     */
+    public static void registerWeakMainThreadHandler(MessageHandler handler) {
+        mainThreadHandlers.add(handler, true);
+    }
+
+    /**
+     * 
+     * Registers a main thread handler until owner is destroyed, at which
+     * point it is unregistered automatically.
+     * 
+     * @param owner the Activity whose lifecycle bounds the registration
+     * @param handler a handler to added to the list of handlers to be notified.
+     */
+    public static void registerMainThreadHandler(final Activity owner, final MessageHandler handler) {
+        final Application application = owner.getApplication();
+        mainThreadHandlers.add(handler, false);
+        application.registerActivityLifecycleCallbacks(new Application.ActivityLifecycleCallbacks() {
+
+            @Override
+            public void onActivityDestroyed(Activity activity) {
+                if (activity == owner) {
+                    unregister(mainThreadHandlers, handler);
+                    application.unregisterActivityLifecycleCallbacks(this);
+                }
+            }
+
+            @Override
+            public void onActivityCreated(Activity activity, Bundle savedInstanceState) {
+            }
+
+            @Override
+            public void onActivityStarted(Activity activity) {
+            }
+
+            @Override
+            public void onActivityResumed(Activity activity) {
+            }
+
+            @Override
+            public void onActivityPaused(Activity activity) {
+            }
+
+            @Override
+            public void onActivityStopped(Activity activity) {
+            }
+
+            @Override
+            public void onActivitySaveInstanceState(Activity activity, Bundle outState) {
+            }
+        });
+    }
+
+    /**
+     * 
+     * Registers a main thread handler, optionally replaying the messages it
+     * missed from the replay buffer, see
+     * {@link #setReplayBuffer(int, long, long) }. Replayed messages are
+     * delivered before any message which arrives after registration.
+     * 
+     * @param handler a handler to added to the list of handlers to be notified.
+     * @param replay true to deliver buffered messages handler has not seen
+     */
+    public static void registerMainThreadHandler(MessageHandler handler, boolean replay) {
+        registerWithReplay(mainThreadHandlers, handler, true, replay);
+    }
+
+    /**
+     * 
+     * Registers a background thread handler, optionally replaying the
+     * messages it missed from the replay buffer, see
+     * {@link #setReplayBuffer(int, long, long) }.
+     * 
+     * @param handler a handler to added to the list of handlers to be notified.
+     * @param replay true to deliver buffered messages handler has not seen
+     */
+    public static void registerBackgroundThreadHandler(MessageHandler handler, boolean replay) {
+        registerWithReplay(backgroundThreadHandlers, handler, false, replay);
+    }
+
+    private static void registerWithReplay(HandlerRegistry registry, final MessageHandler handler, final boolean mainThread, boolean replay) {
+        ReplayBuffer buffer = replayBuffer;
+        if (!replay || buffer == null) {
+            registry.add(handler, false);
+            return;
+        }
+        synchronized (buffer) {
+            registry.add(handler, false);
+            for (final ReplayBuffer.Entry entry : buffer.replayFor(handler)) {
+                dispatch(entry.message.getStringExtra(orderingKeyExtra), coalescingKeyExtra != null, null, false, handler, mainThread, new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(handler, entry.context, entry.message, 0, 0, mainThread);
+                    }
+                });
+            }
+        }
+    }
+
+    private static void unregister(HandlerRegistry registry, MessageHandler handler) {
+        ReplayBuffer buffer = replayBuffer;
+        if (buffer == null) {
+            registry.remove(handler);
+            return;
+        }
+        synchronized (buffer) {
+            registry.remove(handler);
+            buffer.markSeen(handler);
+        }
+    }
+
+    /**
+     * 
+     * Keeps the most recent messages in memory so handlers registered with
+     * replay, for example by an Activity started by a notification, receive
+     * messages which arrived before they were registered. Each handler
+     * receives a buffered message at most once.
+     * 
+     * Messages leave the buffer once more than maxMessages are kept, once
+     * they are older than maxAgeMs, or once the extras of the kept messages
+     * are estimated to hold more than maxBytes. Error and deleted messages
+     * are not buffered. Replaces the previous buffer and its contents. The
+     * {@link PushMemoryGovernor} empties the buffer under memory pressure.
+     * 
+     * The buffer is off by default.
+     * 
+     * @param maxMessages the most messages kept, 0 to turn the buffer off
+     * @param maxAgeMs the oldest message kept, in milliseconds
+     * @param maxBytes the most memory kept messages may hold
+     */
+    public static void setReplayBuffer(int maxMessages, long maxAgeMs, long maxBytes) {
+        if (maxMessages < 0 || maxAgeMs < 0 || maxBytes < 0) {
+            throw new IllegalArgumentException("Bounds may not be negative");
+        }
+        ReplayBuffer buffer = maxMessages == 0 ? null : new ReplayBuffer(maxMessages, maxAgeMs, maxBytes);
+        synchronized (RegistrarManager.class) {
+            if (replayBuffer != null) {
+                PushMemoryGovernor.getInstance().unregister(replayBuffer);
+            }
+            if (buffer != null) {
+                PushMemoryGovernor.getInstance().register(buffer, PushMemoryGovernor.RANK_BUFFER);
+            }
+            replayBuffer = buffer;
+        }
+    }
+
+    /**
+     * 
+     * Sets the extra whose value orders background deliveries. Each background
+     * handler receives the messages which share a value of this extra in the
+     * order they arrived, while messages with different values are processed
+     * in parallel. Messages without the extra are not ordered.
+     * 
+     * Defaults to {@link #DEFAULT_ORDERING_KEY_EXTRA}.
+     * 
+     * @param extra the name of a String extra of push messages
+     */
+    public static void setOrderingKeyExtra(String extra) {
+        if (extra == null) {
+            throw new IllegalArgumentException("extra may not be null");
+        }
+        orderingKeyExtra = extra;
+    }
+
+    /**
+     * 
+     * Enables coalescing of pending deliveries. A message which arrives while
+     * an older message with the same value of this extra is still waiting for
+     * a handler replaces the older message, so handlers only process the
+     * latest state. Messages without the extra are never coalesced.
+     * 
+     * Coalescing never breaks the order set up by
+     * {@link #setOrderingKeyExtra(java.lang.String) }: a message only replaces
+     * a pending message with the same ordering key, and only if no other
+     * message with that ordering key arrived in between.
+     * 
+     * Coalescing is off by default. {@link #DEFAULT_ORDERING_KEY_EXTRA} is the
+     * usual choice, as GCM collapses messages by this key as well.
+     * 
+     * @param extra the name of a String extra of push messages, or null to
+     *            turn coalescing off
+     */
+    public static void setCoalescingKeyExtra(String extra) {
+        coalescingKeyExtra = extra;
+    }
+
+    /**
+     * 
+     * @return the number of messages which were replaced by a newer message
+     *         before reaching at least one of their handlers
+     */
+    public static long getCoalescedMessageCount() {
+        return coalescedMessages.get();
+    }
+
+    /**
+     * 
+     * Sets the extra whose value is the priority of a message, either
+     * {@link #PRIORITY_HIGH}, {@link #PRIORITY_LOW} or absent for normal
+     * messages.
+     * 
+     * Defaults to {@link #DEFAULT_PRIORITY_EXTRA}.
+     * 
+     * @param extra the name of a String extra of push messages
+     */
+    public static void setPriorityExtra(String extra) {
+        if (extra == null) {
+            throw new IllegalArgumentException("extra may not be null");
+        }
+        priorityExtra = extra;
+    }
+
+    /**
+     * 
+     * Holds messages whose priority is {@link #PRIORITY_LOW} instead of
+     * waking handlers for each of them. Held messages are kept in a file and
+     * delivered together once intervalMs elapsed, when a message of any other
+     * priority arrives, or when an Activity of the application starts.
+     * 
+     * Only the String extras of held messages are delivered. Replaces the
+     * previous setting, delivering its held messages.
+     * 
+     * @param context the application's context
+     * @param intervalMs the longest time a message is held while the device
+     *            is awake
+     */
+    public static synchronized void enableDeferredDelivery(Context context, long intervalMs) {
+        if (intervalMs <= 0) {
+            throw new IllegalArgumentException("intervalMs must be positive");
+        }
+        disableDeferredDelivery();
+        deferredDelivery = new DeferredDeliveryQueue(context, intervalMs);
+    }
+
+    /**
+     * 
+     * Delivers held messages and stops deferring messages.
+     */
+    public static synchronized void disableDeferredDelivery() {
+        DeferredDeliveryQueue previous = deferredDelivery;
+        deferredDelivery = null;
+        if (previous != null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * 
+     * @return counters describing deferred delivery since it was enabled
+     */
+    public static DeferredDeliveryStats getDeferredDeliveryStats() {
+        DeferredDeliveryQueue current = deferredDelivery;
+        return current == null ? new DeferredDeliveryStats(0, 0, 0, 0) : current.getStats();
+    }
+
+    /**
+     * 
+     * Background handlers process {@link #PRIORITY_HIGH} messages on lanes
+     * reserved for them, which run at a higher thread priority than the lanes
+     * of other messages. While a high priority message is waiting for or
+     * being processed by a background handler, other background invocations
+     * wait up to throttleMs before they start.
+     * 
+     * Messages of different priorities are not ordered relative to each
+     * other, even if they share an ordering key. Defaults to 250ms.
+     * 
+     * @param throttleMs the longest time other messages wait for high
+     *            priority messages, 0 to never wait
+     */
+    public static void setBulkThrottle(long throttleMs) {
+        if (throttleMs < 0) {
+            throw new IllegalArgumentException("throttleMs may not be negative");
+        }
+        BackgroundLanes.DISPATCHER.setThrottle(throttleMs);
+    }
+
+    /**
+     * 
+     * @return counters describing background invocations for
+     *         {@link #PRIORITY_HIGH} messages
+     */
+    public static PriorityLaneStats getUrgentLaneStats() {
+        return BackgroundLanes.DISPATCHER.getUrgentStats();
+    }
+
+    /**
+     * 
+     * @return counters describing background invocations for messages which
+     *         are not {@link #PRIORITY_HIGH}
+     */
+    public static PriorityLaneStats getBulkLaneStats() {
+        return BackgroundLanes.DISPATCHER.getBulkStats();
+    }
+
+    /**
+     * 
+     * Appends an interceptor to the chain every message passes before its
+     * handlers are notified. Interceptors run in the order they were added.
+     * 
+     * @param interceptor the interceptor
+     */
+    public static void addInterceptor(PushInterceptor interceptor) {
+        interceptors.add(interceptor);
+    }
+
+    /**
+     * 
+     * @param interceptor an interceptor added with
+     *            {@link #addInterceptor(org.jboss.aerogear.android.unifiedpush.PushInterceptor) }
+     */
+    public static void removeInterceptor(PushInterceptor interceptor) {
+        interceptors.remove(interceptor);
+    }
+
+    /**
+     * 
+     * @return counters describing each interceptor, in chain order
+     */
+    public static List<InterceptorStats> getInterceptorStats() {
+        return interceptors.getStats();
+    }
+
+    /**
+     * 
+     * Main thread handlers are delivered to in batches, each a single Looper
+     * message which runs pending deliveries until it has held the main thread
+     * for this long. Remaining deliveries continue in a later batch, so a
+     * burst of messages does not starve rendering.
+     * 
+     * Defaults to 4ms.
+     * 
+     * @param frameBudgetMs the time a batch may hold the main thread
+     */
+    public static void setMainThreadFrameBudget(long frameBudgetMs) {
+        MainThreadLane.DISPATCHER.setFrameBudget(frameBudgetMs);
+    }
+
+    /**
+     * 
+     * @return counters describing deliveries to main thread handlers, and the
+     *         frames they are estimated to have dropped
+     */
+    public static MainThreadDeliveryStats getMainThreadDeliveryStats() {
+        return MainThreadLane.DISPATCHER.getStats();
     }
 
     /**
@@ -125,10 +720,25 @@ public class RegistrarManager {
      * notified on a non UI thread. This should be used by classes which need to
      * update internal state or preform some action which doesn't change the UI.
      * 
+     * Background handlers run on a fixed pool of lanes, see
+     * {@link #setOrderingKeyExtra(java.lang.String) } for ordering guarantees
+     * and {@link #setBulkThrottle(long) } for priorities.
+     * 
      * @param handler a handler to added to the list of handlers to be notified.
      */
     public static void registerBackgroundThreadHandler(MessageHandler handler) {
-        backgroundThreadHandlers.add(handler);
+        backgroundThreadHandlers.add(handler, false);
+    }
+
+    /**
+     * 
+     * Registers a background thread handler without keeping it in memory. The
+     * handler stops receiving messages once it is garbage collected.
+     * 
+     * @param handler a handler to added to the list of handlers to be notified.
+     */
+    public static void registerWeakBackgroundThreadHandler(MessageHandler handler) {
+        backgroundThreadHandlers.add(handler, true);
     }
 
     /**
@@ -140,7 +750,7 @@ public class RegistrarManager {
      * @param handler a new handler
      */
     public static void unregisterMainThreadHandler(MessageHandler handler) {
-        mainThreadHandlers.remove(handler);
+        unregister(mainThreadHandlers, handler);
     }
 
     /**
@@ -151,69 +761,198 @@ public class RegistrarManager {
      * @param handler a new handler
      */
     public static void unregisterBackgroundThreadHandler(MessageHandler handler) {
-        backgroundThreadHandlers.remove(handler);
+        unregister(backgroundThreadHandlers, handler);
     }
 
     /**
      * 
      * This will deliver an intent to all registered handlers. See {@link PushConstants} for information on how messages will be routed.
      * 
+     * The message passes the interceptors added with
+     * {@link #addInterceptor(org.jboss.aerogear.android.unifiedpush.PushInterceptor) }
+     * first. Without interceptors it is routed directly.
+     * 
      * @param context the application's context
      * @param message the message to pass
      * @param defaultHandler a default handler is a handler which will be called
      *            if there are no other handlers registered. May be null
      */
     public static void notifyHandlers(final Context context, final Intent message, final MessageHandler defaultHandler) {
+        notifyHandlers(context, message, defaultHandler, null);
+    }
 
-        if (backgroundThreadHandlers.isEmpty() && mainThreadHandlers.isEmpty()
-                && defaultHandler != null) {
-            new Thread(new Runnable() {
-                public void run() {
-
-                    if (message.getBooleanExtra(PushConstants.ERROR, false)) {
-                        defaultHandler.onError();
-                    } else if (message.getBooleanExtra(PushConstants.DELETED, false)) {
-                        defaultHandler.onDeleteMessage(context, message.getExtras());
-                    } else {
-                        defaultHandler.onMessage(context, message.getExtras());
-                    }
+    /**
+     * 
+     * Like {@link #notifyHandlers(android.content.Context, android.content.Intent, org.jboss.aerogear.android.unifiedpush.MessageHandler) },
+     * for callers which have to stay alive while interceptors pass the
+     * message on asynchronously, such as a receiver holding its broadcast
+     * open with {@code goAsync()}.
+     * 
+     * @param context the application's context
+     * @param message the message to pass
+     * @param defaultHandler a default handler is a handler which will be called
+     *            if there are no other handlers registered. May be null
+     * @param whenDone runs once every interceptor passed the message on or
+     *            dropped it, at most seven seconds later, on any thread. May
+     *            be null
+     * @return true if interceptors still hold the message, in which case
+     *         whenDone runs exactly once; false if the message left the
+     *         interceptors and whenDone never runs
+     */
+    public static boolean notifyHandlers(final Context context, final Intent message, final MessageHandler defaultHandler, final Runnable whenDone) {
+        if (interceptors.isEmpty()) {
+            route(context, message, defaultHandler);
+            return false;
+        }
+        return interceptors.run(new PushMessage(context, message), defaultHandler, ROUTE, whenDone);
+    }
 
-                }
-            }).start();
+    /**
+     * Defers or dispatches a message which passed the interceptors.
+     */
+    private static void route(Context context, Intent message, MessageHandler defaultHandler) {
+        DeferredDeliveryQueue deferred = deferredDelivery;
+        if (deferred != null) {
+            if (isDeferrable(message)) {
+                deferred.add(message, defaultHandler);
+                return;
+            }
+            deferred.flushWith(defaultHandler);
         }
+        dispatchMessage(context, message, defaultHandler);
+    }
 
-        for (final MessageHandler handler : backgroundThreadHandlers) {
-            new Thread(new Runnable() {
-                public void run() {
+    private static boolean isDeferrable(Intent message) {
+        return PRIORITY_LOW.equals(message.getStringExtra(priorityExtra))
+                && !message.getBooleanExtra(PushConstants.ERROR, false)
+                && !message.getBooleanExtra(PushConstants.DELETED, false);
+    }
 
-                    if (message.getBooleanExtra(PushConstants.ERROR, false)) {
-                        handler.onError();
-                    } else if (message.getBooleanExtra(PushConstants.DELETED, false)) {
-                        handler.onDeleteMessage(context, message.getExtras());
-                    } else {
-                        handler.onMessage(context, message.getExtras());
-                    }
+    /**
+     * Hands a message to every registered handler without deferring it.
+     */
+    static void dispatchMessage(final Context context, final Intent message, final MessageHandler defaultHandler) {
+        final long traceId = message.getLongExtra(PushConstants.TRACE_ID, 0);
+        final long enqueuedAt = traceId == 0 ? 0 : System.nanoTime();
+        String key = message.getStringExtra(orderingKeyExtra);
+        boolean urgent = PRIORITY_HIGH.equals(message.getStringExtra(priorityExtra));
+        String currentCoalescingKeyExtra = coalescingKeyExtra;
+        boolean coalescing = currentCoalescingKeyExtra != null;
+        String coalescingKey = coalescing ? message.getStringExtra(currentCoalescingKeyExtra) : null;
+        boolean coalesced = false;
+        HandlerRegistry.Entry[] background;
+        HandlerRegistry.Entry[] mainThread;
+        ReplayBuffer buffer = replayBuffer;
+        if (buffer != null && !message.getBooleanExtra(PushConstants.ERROR, false)
+                && !message.getBooleanExtra(PushConstants.DELETED, false)) {
+            synchronized (buffer) {
+                buffer.record(context, message);
+                background = backgroundThreadHandlers.snapshot();
+                mainThread = mainThreadHandlers.snapshot();
+            }
+        } else {
+            background = backgroundThreadHandlers.snapshot();
+            mainThread = mainThreadHandlers.snapshot();
+        }
 
+        if (background.length == 0 && mainThread.length == 0
+                && defaultHandler != null) {
+            coalesced |= dispatch(key, coalescing, coalescingKey, urgent, defaultHandler, false, new Runnable() {
+                public void run() {
+                    deliver(defaultHandler, context, message, traceId, enqueuedAt, false);
                 }
-            }).start();
+            });
         }
 
-        Looper main = Looper.getMainLooper();
+        for (HandlerRegistry.Entry entry : background) {
+            final MessageHandler handler = entry.get();
+            if (handler == null) {
+                continue;
+            }
+            coalesced |= dispatch(key, coalescing, coalescingKey, urgent, handler, false, new Runnable() {
+                public void run() {
+                    deliver(handler, context, message, traceId, enqueuedAt, false);
+                }
+            });
+        }
 
-        for (final MessageHandler handler : mainThreadHandlers) {
-            new Handler(main).post(new Runnable() {
+        for (HandlerRegistry.Entry entry : mainThread) {
+            final MessageHandler handler = entry.get();
+            if (handler == null) {
+                continue;
+            }
+            coalesced |= dispatch(key, coalescing, coalescingKey, urgent, handler, true, new Runnable() {
                 @Override
                 public void run() {
-                    if (message.getBooleanExtra(PushConstants.ERROR, false)) {
-                        handler.onError();
-                    } else if (message.getBooleanExtra(PushConstants.DELETED, false)) {
-                        handler.onDeleteMessage(context, message.getExtras());
-                    } else {
-                        handler.onMessage(context, message.getExtras());
-                    }
+                    deliver(handler, context, message, traceId, enqueuedAt, true);
                 }
             });
         }
+
+        if (coalesced) {
+            coalescedMessages.incrementAndGet();
+        }
+    }
+
+    /**
+     * Hands a handler invocation to its lane, or replaces a pending
+     * invocation for the same handler and coalescing key. While coalescing is
+     * on, every invocation passes the coalescer, so it knows which pending
+     * invocations are the latest of their ordering key.
+     * 
+     * @return true if a pending invocation was replaced
+     */
+    private static boolean dispatch(String key, boolean coalescing, String coalescingKey, boolean urgent, MessageHandler handler, boolean mainThread, Runnable invocation) {
+        Executor executor = mainThread ? MainThreadLane.DISPATCHER : BackgroundLanes.DISPATCHER.lane(key, handler, urgent);
+        if (!coalescing) {
+            executor.execute(invocation);
+            return false;
+        }
+        return coalescer.submit(key, coalescingKey, handler, mainThread, urgent, invocation, executor);
+    }
+
+    /**
+     * Routes a message to the matching handler method. The invocation is
+     * watched by the current {@link HandlerWatchdog}, and its queue and
+     * handler spans are recorded if the message is traced.
+     */
+    private static void deliver(MessageHandler handler, Context context, Intent message, long traceId, long enqueuedAt, boolean mainThread) {
+        long start = traceId == 0 ? 0 : System.nanoTime();
+        MessageTracer.record(traceId, TraceSpan.STAGE_QUEUE, null, enqueuedAt, start);
+
+        HandlerWatchdog currentWatchdog = watchdog;
+        HandlerWatchdog.Watch watch = null;
+        int priority = 0;
+        boolean demoted = false;
+        if (currentWatchdog != null) {
+            demoted = !mainThread && currentWatchdog.isDemoted(handler);
+            if (demoted) {
+                priority = Process.getThreadPriority(Process.myTid());
+                Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+            }
+            watch = currentWatchdog.begin(handler, mainThread);
+        }
+
+        try {
+            if (message.getBooleanExtra(PushConstants.ERROR, false)) {
+                handler.onError();
+            } else if (message.getBooleanExtra(PushConstants.DELETED, false)) {
+                handler.onDeleteMessage(context, message.getExtras());
+            } else {
+                handler.onMessage(context, message.getExtras());
+            }
+        } finally {
+            if (watch != null) {
+                currentWatchdog.end(watch);
+            }
+            if (demoted) {
+                Process.setThreadPriority(priority);
+            }
+        }
+
+        if (traceId != 0) {
+            MessageTracer.recordHandler(traceId, handler, start, System.nanoTime());
+        }
     }
 
     /**
@@ -231,4 +970,18 @@ public class RegistrarManager {
         notifyHandlers(context, message, null);
     }
 
+    private static final class MainThreadLane {
+
+        static final MainThreadDispatcher DISPATCHER = new MainThreadDispatcher();
+    }
+
+    /**
+     * Holds the background lanes so their threads are only created when the
+     * first message is dispatched.
+     */
+    private static final class BackgroundLanes {
+
+        static final PriorityLanes DISPATCHER = new PriorityLanes();
+    }
+
 }
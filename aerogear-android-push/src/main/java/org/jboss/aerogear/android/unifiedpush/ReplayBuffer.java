@@ -0,0 +1,175 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The most recent messages, kept so handlers registered after a message
+ * arrived can still receive it, see
+ * {@link RegistrarManager#setReplayBuffer(int, long, long) }.
+ *
+ * The buffer is bounded by a message count, an age and an estimate of the
+ * memory its messages hold. Every handler registered with replay has a
+ * cursor, the sequence number of the newest message it has seen, so a
+ * handler which is unregistered and registered again only receives the
+ * messages it missed in between.
+ *
+ * Callers synchronize on the buffer so recording a message and reading the
+ * handler snapshot it is dispatched to are atomic with registrations.
+ */
+final class ReplayBuffer implements MemoryConsumer {
+
+    /**
+     * Estimated bytes held by a message besides its extras.
+     */
+    private static final int MESSAGE_OVERHEAD = 96;
+
+    private final int maxMessages;
+    private final long maxAgeMs;
+    private final long maxBytes;
+
+    private final ArrayDeque<Entry> entries = new ArrayDeque<Entry>();
+    private final Map<MessageHandler, Long> cursors = new WeakHashMap<MessageHandler, Long>();
+    private long sequence;
+    private long bytes;
+
+    /**
+     * @param maxMessages the most messages kept
+     * @param maxAgeMs the oldest message kept, in milliseconds
+     * @param maxBytes the most memory kept messages are estimated to hold
+     */
+    ReplayBuffer(int maxMessages, long maxAgeMs, long maxBytes) {
+        this.maxMessages = maxMessages;
+        this.maxAgeMs = maxAgeMs;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Keeps a copy of message, evicting the oldest messages beyond the
+     * bounds.
+     *
+     * @param context the context message was delivered with
+     * @param message the message
+     */
+    void record(Context context, Intent message) {
+        Entry entry = new Entry(++sequence, SystemClock.elapsedRealtime(), context.getApplicationContext(),
+                new Intent(message), estimate(message));
+        entries.addLast(entry);
+        bytes += entry.bytes;
+        while (entries.size() > maxMessages || bytes > maxBytes) {
+            bytes -= entries.removeFirst().bytes;
+        }
+    }
+
+    /**
+     * @param handler a handler which is being registered
+     * @return the kept messages handler has not seen, oldest first. Moves the
+     *         cursor of handler past them.
+     */
+    List<Entry> replayFor(MessageHandler handler) {
+        evictExpired();
+        Long cursor = cursors.get(handler);
+        List<Entry> missed = new ArrayList<Entry>();
+        for (Entry entry : entries) {
+            if (cursor == null || entry.sequence > cursor) {
+                missed.add(entry);
+            }
+        }
+        cursors.put(handler, sequence);
+        return missed;
+    }
+
+    /**
+     * Moves the cursor of a handler which is being unregistered past the
+     * messages it received while registered.
+     */
+    void markSeen(MessageHandler handler) {
+        cursors.put(handler, sequence);
+    }
+
+    /**
+     * @return the memory kept messages are estimated to hold
+     */
+    @Override
+    public synchronized long getFootprint() {
+        return bytes;
+    }
+
+    /**
+     * Drops the oldest messages. Cursors stay valid.
+     */
+    @Override
+    public synchronized void trimToSize(long maxBytes) {
+        while (bytes > maxBytes && !entries.isEmpty()) {
+            bytes -= entries.removeFirst().bytes;
+        }
+    }
+
+    private void evictExpired() {
+        long oldest = SystemClock.elapsedRealtime() - maxAgeMs;
+        Iterator<Entry> iterator = entries.iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.receivedAt >= oldest) {
+                break;
+            }
+            bytes -= entry.bytes;
+            iterator.remove();
+        }
+    }
+
+    private static int estimate(Intent message) {
+        int estimate = MESSAGE_OVERHEAD;
+        Bundle extras = message.getExtras();
+        if (extras != null) {
+            for (String key : extras.keySet()) {
+                Object value = extras.get(key);
+                estimate += 2 * key.length() + (value instanceof String ? 2 * ((String) value).length() : 16);
+            }
+        }
+        return estimate;
+    }
+
+    static final class Entry {
+
+        final long sequence;
+        final long receivedAt;
+        final Context context;
+        final Intent message;
+        final int bytes;
+
+        Entry(long sequence, long receivedAt, Context context, Intent message, int bytes) {
+            this.sequence = sequence;
+            this.receivedAt = receivedAt;
+            this.context = context;
+            this.message = message;
+            this.bytes = bytes;
+        }
+    }
+
+}
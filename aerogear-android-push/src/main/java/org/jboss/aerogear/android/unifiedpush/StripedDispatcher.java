@@ -0,0 +1,93 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs background handler invocations on a fixed set of single threaded
+ * lanes.
+ *
+ * Invocations of a handler for messages with the same ordering key always
+ * share a lane, so each handler sees the messages of a key in the order they
+ * were received. Different keys and different handlers spread across lanes
+ * and run in parallel. Messages without a key have no ordering guarantee and
+ * are spread round robin.
+ */
+final class StripedDispatcher {
+
+    private final ExecutorService[] lanes;
+    private final AtomicInteger nextUnkeyedLane = new AtomicInteger();
+
+    /**
+     * @param name the prefix of the lane thread names
+     * @param laneCount the number of lanes
+     * @param threadPriority the {@link Process} priority of the lane threads
+     */
+    StripedDispatcher(String name, int laneCount, int threadPriority) {
+        lanes = new ExecutorService[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = Executors.newSingleThreadExecutor(new PushThreadFactory(name + "-" + i, threadPriority));
+        }
+    }
+
+    /**
+     * @return a dispatcher with one lane per processor, and at least two
+     */
+    static StripedDispatcher withDefaultLanes(String name, int threadPriority) {
+        return new StripedDispatcher(name, Math.max(2, Runtime.getRuntime().availableProcessors()), threadPriority);
+    }
+
+    /**
+     * @param key the ordering key of the message, may be null
+     * @param handler the handler which will process the message
+     * @param invocation the handler invocation
+     */
+    void dispatch(String key, MessageHandler handler, Runnable invocation) {
+        lane(key, handler).execute(invocation);
+    }
+
+    /**
+     * @param key the ordering key of a message, may be null
+     * @param handler the handler which will process the message
+     * @return the lane which processes the message for handler
+     */
+    Executor lane(String key, MessageHandler handler) {
+        return lanes[laneFor(key, handler)];
+    }
+
+    int laneCount() {
+        return lanes.length;
+    }
+
+    private int laneFor(String key, MessageHandler handler) {
+        int hash;
+        if (key == null) {
+            hash = nextUnkeyedLane.getAndIncrement();
+        } else {
+            hash = key.hashCode() * 31 + System.identityHashCode(handler);
+            hash ^= (hash >>> 16);
+        }
+        return (hash & Integer.MAX_VALUE) % lanes.length;
+    }
+
+}
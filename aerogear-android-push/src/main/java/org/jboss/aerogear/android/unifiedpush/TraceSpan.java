@@ -0,0 +1,138 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush;
+
+/**
+ * A timed stage in the delivery of a traced push message, recorded by
+ * {@link MessageTracer}.
+ */
+public final class TraceSpan {
+
+    /**
+     * Time between the push server sending the message and the device
+     * receiving it, as reported by GCM.
+     */
+    public static final String STAGE_TRANSPORT = "transport";
+
+    /**
+     * Time spent in the BroadcastReceiver before the handlers were notified.
+     */
+    public static final String STAGE_RECEIVE = "receive";
+
+    /**
+     * Time spent in a {@link PushInterceptor}, including the later stages it
+     * called synchronously.
+     */
+    public static final String STAGE_INTERCEPT = "intercept";
+
+    /**
+     * Time a message waited before a handler started processing it.
+     */
+    public static final String STAGE_QUEUE = "queue";
+
+    /**
+     * Time a handler spent processing a message.
+     */
+    public static final String STAGE_HANDLER = "handler";
+
+    private final long sequence;
+    private final long traceId;
+    private final String stage;
+    private final String detail;
+    private final long startNanos;
+    private final long endNanos;
+    private final String threadName;
+
+    TraceSpan(long sequence, long traceId, String stage, String detail, long startNanos, long endNanos, String threadName) {
+        this.sequence = sequence;
+        this.traceId = traceId;
+        this.stage = stage;
+        this.detail = detail;
+        this.startNanos = startNanos;
+        this.endNanos = endNanos;
+        this.threadName = threadName;
+    }
+
+    /**
+     * @return the position of this span in the order spans were recorded
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the id shared by all spans of a message
+     */
+    public long getTraceId() {
+        return traceId;
+    }
+
+    /**
+     * @return one of the STAGE constants
+     */
+    public String getStage() {
+        return stage;
+    }
+
+    /**
+     * @return additional information such as the handler class, may be null
+     */
+    public String getDetail() {
+        return detail;
+    }
+
+    /**
+     * @return the start of the span, in {@link System#nanoTime() } units
+     */
+    public long getStartNanos() {
+        return startNanos;
+    }
+
+    /**
+     * @return the end of the span, in {@link System#nanoTime() } units
+     */
+    public long getEndNanos() {
+        return endNanos;
+    }
+
+    /**
+     * @return the duration of the span in nanoseconds
+     */
+    public long getDurationNanos() {
+        return endNanos - startNanos;
+    }
+
+    /**
+     * @return the name of the thread which recorded the span
+     */
+    public String getThreadName() {
+        return threadName;
+    }
+
+    @Override
+    public String toString() {
+        return new StringBuilder()
+                .append(traceId).append('\t')
+                .append(stage).append('\t')
+                .append(detail == null ? "-" : detail).append('\t')
+                .append(startNanos).append('\t')
+                .append(getDurationNanos()).append('\t')
+                .append(threadName)
+                .toString();
+    }
+
+}
@@ -0,0 +1,175 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.gcm;
+
+import android.content.Context;
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The alias and categories the push server last acknowledged for a device
+ * token. Registrars compare pending edits against this state so unchanged
+ * values are never sent again.
+ *
+ * The state lives in a {@link SharedFileStore}, so a registration
+ * acknowledged in one process of the application is visible to the others.
+ */
+final class AcknowledgedRegistration {
+
+    private static final String STORE_NAME = "aerogear-push-registrations.properties";
+    private static final String PROPERTY_DEVICE_TOKEN = "deviceToken";
+    private static final String PROPERTY_ALIAS = "alias";
+    private static final String PROPERTY_CATEGORIES = "categories";
+    private static final String PROPERTY_ACKNOWLEDGED_AT = "acknowledgedAt";
+
+    final String deviceToken;
+    final String alias;
+    final Set<String> categories;
+    final long acknowledgedAt;
+
+    AcknowledgedRegistration(String deviceToken, String alias, Collection<String> categories) {
+        this(deviceToken, alias, categories, System.currentTimeMillis());
+    }
+
+    private AcknowledgedRegistration(String deviceToken, String alias, Collection<String> categories, long acknowledgedAt) {
+        this.deviceToken = deviceToken;
+        this.alias = alias;
+        this.categories = categories == null
+                ? Collections.<String>emptySet()
+                : Collections.unmodifiableSet(new HashSet<String>(categories));
+        this.acknowledgedAt = acknowledgedAt;
+    }
+
+    /**
+     * @param alias a pending alias
+     * @return true if the server does not know alias yet
+     */
+    boolean isAliasChanged(String alias) {
+        return this.alias == null ? alias != null : !this.alias.equals(alias);
+    }
+
+    /**
+     * @param categories pending categories
+     * @return true if the server does not know categories yet
+     */
+    boolean isCategoriesChanged(List<String> categories) {
+        return !this.categories.equals(new HashSet<String>(categories));
+    }
+
+    /**
+     * @param deviceToken a device token
+     * @param alias a pending alias
+     * @param categories pending categories
+     * @return true if the server knows exactly this registration
+     */
+    boolean matches(String deviceToken, String alias, List<String> categories) {
+        return this.deviceToken.equals(deviceToken)
+                && !isAliasChanged(alias)
+                && !isCategoriesChanged(categories);
+    }
+
+    /**
+     * Loads the state acknowledged for a variant. The store is re-read, so
+     * the result includes acknowledgements made by other processes.
+     *
+     * @param context the application context
+     * @param variantId the variant the device is registered with
+     * @return the acknowledged state or null if nothing was acknowledged yet
+     */
+    static AcknowledgedRegistration load(Context context, String variantId) {
+        SharedFileStore store = getStore(context);
+        store.reload();
+        String deviceToken = store.get(variantId + ':' + PROPERTY_DEVICE_TOKEN);
+        if (deviceToken == null) {
+            return null;
+        }
+        try {
+            String acknowledgedAt = store.get(variantId + ':' + PROPERTY_ACKNOWLEDGED_AT);
+            return new AcknowledgedRegistration(deviceToken,
+                    store.get(variantId + ':' + PROPERTY_ALIAS),
+                    parseCategories(store.get(variantId + ':' + PROPERTY_CATEGORIES)),
+                    acknowledgedAt == null ? 0 : Long.parseLong(acknowledgedAt));
+        } catch (JSONException ex) {
+            return null;
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Persists the state acknowledged for a variant.
+     *
+     * @param context the application context
+     * @param variantId the variant the device is registered with
+     * @throws IOException if the state can not be stored
+     */
+    void save(Context context, String variantId) throws IOException {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put(variantId + ':' + PROPERTY_DEVICE_TOKEN, deviceToken);
+        values.put(variantId + ':' + PROPERTY_CATEGORIES, new JSONArray(categories).toString());
+        values.put(variantId + ':' + PROPERTY_ACKNOWLEDGED_AT, String.valueOf(acknowledgedAt));
+        List<String> removals = null;
+        if (alias == null) {
+            removals = Collections.singletonList(variantId + ':' + PROPERTY_ALIAS);
+        } else {
+            values.put(variantId + ':' + PROPERTY_ALIAS, alias);
+        }
+        getStore(context).edit(values, removals);
+    }
+
+    /**
+     * Forgets the state acknowledged for a variant.
+     *
+     * @param context the application context
+     * @param variantId the variant the device was registered with
+     * @throws IOException if the state can not be removed
+     */
+    static void clear(Context context, String variantId) throws IOException {
+        getStore(context).edit(Collections.<String, String>emptyMap(), Arrays.asList(
+                variantId + ':' + PROPERTY_DEVICE_TOKEN,
+                variantId + ':' + PROPERTY_ALIAS,
+                variantId + ':' + PROPERTY_CATEGORIES,
+                variantId + ':' + PROPERTY_ACKNOWLEDGED_AT));
+    }
+
+    private static List<String> parseCategories(String json) throws JSONException {
+        List<String> categories = new ArrayList<String>();
+        if (json != null) {
+            JSONArray array = new JSONArray(json);
+            for (int i = 0; i < array.length(); i++) {
+                categories.add(array.getString(i));
+            }
+        }
+        return categories;
+    }
+
+    private static SharedFileStore getStore(Context context) {
+        return SharedFileStore.get(context, STORE_NAME);
+    }
+
+}
@@ -22,11 +22,15 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
-import android.util.Log;
 import com.google.android.gms.gcm.GoogleCloudMessaging;
 import org.jboss.aerogear.android.unifiedpush.MessageHandler;
+import org.jboss.aerogear.android.unifiedpush.MessageTracer;
+import org.jboss.aerogear.android.unifiedpush.PayloadDecryptor;
+import org.jboss.aerogear.android.unifiedpush.PushLog;
 import org.jboss.aerogear.android.unifiedpush.RegistrarManager;
+import org.jboss.aerogear.android.unifiedpush.TraceSpan;
 
 import static org.jboss.aerogear.android.unifiedpush.PushConstants.*;
 
@@ -42,9 +46,12 @@ public class AeroGearGCMMessageReceiver extends BroadcastReceiver {
     public static final int NOTIFICATION_ID = 1;
 
     private static MessageHandler defaultHandler;
+    private static volatile PayloadDecryptor payloadDecryptor;
+    private static volatile PayloadPuller payloadPuller;
     private static boolean checkDefaultHandler = true;
     private static final String TAG = AeroGearGCMMessageReceiver.class.getSimpleName();
     public static final String DEFAULT_MESSAGE_HANDLER_KEY = "DEFAULT_MESSAGE_HANDLER_KEY";
+    private static final String GCM_SENT_TIME = "google.sent_time";
 
     /**
      * When a GCM message is received, the attached implementations of our <code>MessageHandler</code> interface
@@ -53,6 +60,13 @@ public class AeroGearGCMMessageReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(Context context, Intent intent) {
 
+        long receivedAt = System.nanoTime();
+        long traceId = MessageTracer.startTrace();
+        if (traceId != 0) {
+            intent.putExtra(TRACE_ID, traceId);
+            recordTransport(intent, traceId, receivedAt);
+        }
+
         if (checkDefaultHandler) {
             checkDefaultHandler = false;
             Bundle metaData = getMetadata(context);
@@ -64,7 +78,7 @@ public class AeroGearGCMMessageReceiver extends BroadcastReceiver {
                         Class<? extends MessageHandler> defaultHandlerClass = (Class<? extends MessageHandler>) Class.forName(defaultHandlerClassName);
                         defaultHandler = defaultHandlerClass.newInstance();
                     } catch (Exception ex) {
-                        Log.e(TAG, ex.getMessage(), ex);
+                        PushLog.e(TAG, ex.getMessage(), ex);
                     }
 
                 }
@@ -81,8 +95,97 @@ public class AeroGearGCMMessageReceiver extends BroadcastReceiver {
             intent.putExtra(MESSAGE, true);
         }
 
+        final PayloadDecryptor decryptor = payloadDecryptor;
+        if (decryptor != null && decryptor.requiresKeyDerivation(intent)) {
+            // deriving a key takes too long for the main thread
+            final Context appContext = context.getApplicationContext();
+            final Intent message = intent;
+            final long messageTraceId = traceId;
+            final long messageReceivedAt = receivedAt;
+            final PendingResult result = goAsync();
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    boolean handedOff = false;
+                    try {
+                        decryptor.decrypt(message);
+                        handedOff = deliver(appContext, message, messageTraceId, messageReceivedAt, result);
+                    } finally {
+                        if (!handedOff) {
+                            result.finish();
+                        }
+                    }
+                }
+            });
+            return;
+        }
+        if (decryptor != null) {
+            decryptor.decrypt(intent);
+        }
+
+        deliver(context, intent, traceId, receivedAt, null);
+    }
+
+    /**
+     * Notifies the handlers of a decrypted message, or hands it to the
+     * payload puller. Interceptors which pass the message on asynchronously
+     * keep the broadcast open until they are done.
+     * 
+     * @param result the pending result of a message which already left
+     *            onReceive, or null on the main thread within onReceive
+     * @return true if the puller or the interceptors took result over
+     */
+    private boolean deliver(Context context, Intent intent, long traceId, long receivedAt, PendingResult result) {
+        MessageTracer.record(traceId, TraceSpan.STAGE_RECEIVE, null, receivedAt, System.nanoTime());
+
+        PayloadPuller puller = payloadPuller;
+        if (puller != null && !puller.applyCached(intent)) {
+            // handlers are notified once the payload has been fetched
+            puller.enqueue(context.getApplicationContext(), intent, result == null ? goAsync() : result, defaultHandler);
+            return true;
+        }
+
         // notity all attached MessageHandler implementations:
-        RegistrarManager.notifyHandlers(context, intent, defaultHandler);
+        PendingResultHandoff handoff = new PendingResultHandoff();
+        if (!RegistrarManager.notifyHandlers(context, intent, defaultHandler, handoff)) {
+            return false;
+        }
+        handoff.attach(result == null ? goAsync() : result);
+        return true;
+    }
+
+    /**
+     * Installs a stage which decrypts encrypted payloads once per message,
+     * before any handler is notified.
+     * 
+     * @param decryptor the decryptor, or null to deliver payloads as received
+     */
+    public static void setPayloadDecryptor(PayloadDecryptor decryptor) {
+        payloadDecryptor = decryptor;
+    }
+
+    /**
+     * Installs a stage which fetches the content of messages which only carry
+     * a {@link PayloadPuller#EXTRA_MESSAGE_ID}, in batches, before their
+     * handlers are notified.
+     * 
+     * @param puller the puller, or null to deliver messages as received
+     */
+    public static void setPayloadPuller(PayloadPuller puller) {
+        payloadPuller = puller;
+    }
+
+    /**
+     * GCM adds the time the message was sent to the intent, which makes the
+     * time spent in transport visible in the trace.
+     */
+    private void recordTransport(Intent intent, long traceId, long receivedAt) {
+        long sentTime = intent.getLongExtra(GCM_SENT_TIME, 0);
+        if (sentTime > 0) {
+            long transportNanos = (System.currentTimeMillis() - sentTime) * 1000000L;
+            MessageTracer.record(traceId, TraceSpan.STAGE_TRANSPORT, null, receivedAt - transportNanos, receivedAt);
+        }
     }
 
     private Bundle getMetadata(Context context) {
@@ -91,12 +194,12 @@ public class AeroGearGCMMessageReceiver extends BroadcastReceiver {
             ActivityInfo ai = context.getPackageManager().getReceiverInfo(componentName, PackageManager.GET_ACTIVITIES | PackageManager.GET_META_DATA);
             Bundle metaData = ai.metaData;
             if (metaData == null) {
-                Log.d(TAG, "metaData is null. Unable to get meta data for " + componentName);
+                PushLog.d(TAG, "metaData is null. Unable to get meta data for {}", componentName);
             } else {
                 return metaData;
             }
         } catch (PackageManager.NameNotFoundException ex) {
-            Log.e(TAG, ex.getMessage(), ex);
+            PushLog.e(TAG, ex.getMessage(), ex);
         }
         return null;
 
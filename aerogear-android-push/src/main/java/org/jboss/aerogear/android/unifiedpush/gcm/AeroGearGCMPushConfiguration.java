@@ -39,7 +39,7 @@ public class AeroGearGCMPushConfiguration extends PushConfiguration<AeroGearGCMP
     private String osVersion = android.os.Build.VERSION.RELEASE;
     private String alias;
     private List<String> categories = new ArrayList<String>();
-    private URI pushServerURI;
+    private List<URI> pushServerURIs = new ArrayList<URI>();
     private Set<String> senderIds = new HashSet<String>();
 
     /**
@@ -255,10 +255,10 @@ public class AeroGearGCMPushConfiguration extends PushConfiguration<AeroGearGCMP
     /**
      * RegistryURL is the URL of the 3rd party application server
      * 
-     * @return the current pushServerURI
+     * @return the first of the current pushServerURIs or null
      */
     public URI getPushServerURI() {
-        return pushServerURI;
+        return pushServerURIs.isEmpty() ? null : pushServerURIs.get(0);
     }
 
     /**
@@ -269,7 +269,52 @@ public class AeroGearGCMPushConfiguration extends PushConfiguration<AeroGearGCMP
      * 
      */
     public AeroGearGCMPushConfiguration setPushServerURI(URI pushServerURI) {
-        this.pushServerURI = pushServerURI;
+        List<URI> newPushServerURIs = new ArrayList<URI>(1);
+        if (pushServerURI != null) {
+            newPushServerURIs.add(pushServerURI);
+        }
+        this.pushServerURIs = newPushServerURIs;
+        return this;
+    }
+
+    /**
+     * PushServerURIs are the URLs of equivalent 3rd party application servers
+     * in order of preference. Registrars send requests to the fastest healthy
+     * server and fail over to the others when it does not answer.
+     * 
+     * @return a copy of the current pushServerURIs
+     */
+    public List<URI> getPushServerURIs() {
+        return new ArrayList<URI>(pushServerURIs);
+    }
+
+    /**
+     * PushServerURIs are the URLs of equivalent 3rd party application servers
+     * in order of preference. Registrars send requests to the fastest healthy
+     * server and fail over to the others when it does not answer.
+     * 
+     * @param pushServerURIs the new URIs
+     * @return the current configuration
+     * 
+     */
+    public AeroGearGCMPushConfiguration setPushServerURIs(URI... pushServerURIs) {
+        List<URI> newPushServerURIs = new ArrayList<URI>(pushServerURIs.length);
+        Collections.addAll(newPushServerURIs, pushServerURIs);
+        this.pushServerURIs = newPushServerURIs;
+        return this;
+    }
+
+    /**
+     * PushServerURIs are the URLs of equivalent 3rd party application servers
+     * in order of preference. Registrars send requests to the fastest healthy
+     * server and fail over to the others when it does not answer.
+     * 
+     * @param pushServerURI a new URI to add after the current pushServerURIs
+     * @return the current configuration
+     * 
+     */
+    public AeroGearGCMPushConfiguration addPushServerURI(URI pushServerURI) {
+        this.pushServerURIs.add(pushServerURI);
         return this;
     }
 
@@ -316,7 +361,8 @@ public class AeroGearGCMPushConfiguration extends PushConfiguration<AeroGearGCMP
      * 
      * @return A configured AeroGearGCMPushRegistrar
      * 
-     * @throws IllegalStateException if pushServerURI is null or if senderIds is null or empty.
+     * @throws IllegalStateException if there is no pushServerURI, if one of
+     *             them is null or if senderIds is null or empty.
      */
     @Override
     protected final AeroGearGCMPushRegistrar buildRegistrar() {
@@ -325,7 +371,7 @@ public class AeroGearGCMPushConfiguration extends PushConfiguration<AeroGearGCMP
             throw new IllegalStateException("SenderIds can't be null or empty");
         }
 
-        if (pushServerURI == null) {
+        if (pushServerURIs == null || pushServerURIs.isEmpty() || pushServerURIs.contains(null)) {
             throw new IllegalStateException("PushServerURI can't be null");
         }
 
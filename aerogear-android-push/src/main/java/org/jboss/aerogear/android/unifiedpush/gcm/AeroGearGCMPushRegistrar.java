@@ -17,26 +17,29 @@
 package org.jboss.aerogear.android.unifiedpush.gcm;
 
 import android.content.Context;
-import android.content.SharedPreferences;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Base64;
-import android.util.Log;
 import com.google.android.gms.gcm.GoogleCloudMessaging;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
-import org.apache.http.HttpStatus;
 import org.jboss.aerogear.android.pipe.util.UrlUtils;
+import org.jboss.aerogear.android.unifiedpush.PushLog;
 import org.jboss.aerogear.android.unifiedpush.PushRegistrar;
 
+import java.io.IOException;
 import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URL;
-import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 import org.jboss.aerogear.android.core.Callback;
 import org.jboss.aerogear.android.core.Provider;
 import org.jboss.aerogear.android.pipe.http.HttpException;
@@ -48,31 +51,65 @@ public class AeroGearGCMPushRegistrar implements PushRegistrar {
     private final static String BASIC_HEADER = "Authorization";
     private final static String AUTHORIZATION_METHOD = "Basic";
 
-    private static final Integer TIMEOUT = 30000;// 30 seconds
+    private static final int TIMEOUT = 30000;// 30 seconds
     /**
      * Default lifespan (7 days) of a registration until it is considered
      * expired.
      */
     public static final long REGISTRATION_EXPIRY_TIME_MS = 1000 * 3600 * 24 * 7;
 
+    /**
+     * Alias and category updates made within this window (half a second) are
+     * sent to the push server as a single request.
+     */
+    public static final long UPDATE_COALESCING_WINDOW_MS = 500;
+
     private static final String TAG = AeroGearGCMPushRegistrar.class.getSimpleName();
     public static final String PROPERTY_REG_ID = "registration_id";
-    private static final String PROPERTY_APP_VERSION = "appVersion";
-    private static final String PROPERTY_ON_SERVER_EXPIRATION_TIME = "onServerExpirationTimeMs";
     private static final String registryDeviceEndpoint = "/rest/registry/device";
 
     private final Set<String> senderIds;
+    private final String senderIdsKey;
+    private final GCMTokenCache tokenCache = GCMTokenCache.getInstance();
 
-    private GoogleCloudMessaging gcm;
-    private URL deviceRegistryURL;
-    private String deviceToken = "";
+    private final List<URI> pushServerURIs;
+    private final PushServerEndpoints endpoints;
+    private final AtomicReference<Snapshot> snapshot;
     private final String secret;
     private final String variantId;
     private final String deviceType;
-    private final String alias;
     private final String operatingSystem;
     private final String osVersion;
-    private final List<String> categories;
+
+    private final RegistrationState initialState = RegistrationState.of(RegistrationState.Status.UNREGISTERED);
+    private final AtomicReference<RegistrationState> state = new AtomicReference<RegistrationState>(initialState);
+    private volatile boolean stateRestored;
+    private final List<OnRegistrationStateChangedListener> stateListeners = new CopyOnWriteArrayList<OnRegistrationStateChangedListener>();
+
+    private final Object updateLock = new Object();
+    private final Handler updateHandler = new Handler(Looper.getMainLooper());
+    private PendingUpdate pendingUpdate;
+
+    private final Runnable flushUpdate = new Runnable() {
+
+        @Override
+        public void run() {
+            PendingUpdate update;
+            synchronized (updateLock) {
+                update = pendingUpdate;
+                pendingUpdate = null;
+            }
+            if (update != null) {
+                sendUpdate(update);
+            }
+        }
+    };
+
+    /**
+     * Runs the background part of every operation. The serial executor keeps
+     * operations in the order they were started.
+     */
+    private Executor taskExecutor = AsyncTask.SERIAL_EXECUTOR;
 
     private Provider<HttpProvider> httpProviderProvider = new Provider<HttpProvider>() {
 
@@ -92,20 +129,16 @@ public class AeroGearGCMPushRegistrar implements PushRegistrar {
 
     public AeroGearGCMPushRegistrar(AeroGearGCMPushConfiguration config) {
         this.senderIds = config.getSenderIds();
-        this.deviceToken = config.getDeviceToken();
+        this.senderIdsKey = GCMTokenCache.keyFor(senderIds);
         this.variantId = config.getVariantID();
         this.secret = config.getSecret();
         this.deviceType = config.getDeviceType();
-        this.alias = config.getAlias();
         this.operatingSystem = config.getOperatingSystem();
         this.osVersion = config.getOsVersion();
-        this.categories = new ArrayList<String>(config.getCategories());
-        try {
-            this.deviceRegistryURL = UrlUtils.appendToBaseURL(config.getPushServerURI().toURL(), registryDeviceEndpoint);
-        } catch (MalformedURLException ex) {
-            Log.e(TAG, ex.getMessage());
-            throw new IllegalStateException("pushserverUrl was not a valid URL");
-        }
+        this.snapshot = new AtomicReference<Snapshot>(
+                new Snapshot(config.getDeviceToken(), config.getAlias(), config.getCategories(), null));
+        this.pushServerURIs = new ArrayList<URI>(config.getPushServerURIs());
+        this.endpoints = endpointsFor(registryDeviceEndpoint);
     }
 
     @Override
@@ -117,44 +150,38 @@ public class AeroGearGCMPushRegistrar implements PushRegistrar {
 
                 try {
 
-                    if (gcm == null) {
-                        gcm = gcmProvider.get(context);
-                    }
-                    String regid = getRegistrationId(context);
-
-                    if (regid.length() == 0) {
-                        regid = gcm.register(senderIds
-                                .toArray(new String[] {}));
-                        AeroGearGCMPushRegistrar.this.setRegistrationId(context, regid);
-                    }
-
-                    deviceToken = regid;
-
-                    HttpProvider httpProvider = httpProviderProvider.get(deviceRegistryURL, TIMEOUT);
-                    setPasswordAuthentication(variantId, secret, httpProvider);
-
+                    long requestedAt = System.currentTimeMillis();
+                    CrossProcessLease lease = registrationLease(context);
                     try {
-                        JsonObject postData = new JsonObject();
-                        postData.addProperty("deviceType", deviceType);
-                        postData.addProperty("deviceToken", deviceToken);
-                        postData.addProperty("alias", alias);
-                        postData.addProperty("operatingSystem", operatingSystem);
-                        postData.addProperty("osVersion", osVersion);
-                        if (categories != null && !categories.isEmpty()) {
-                            JsonArray jsonCategories = new JsonArray();
-                            for (String category : categories) {
-                                jsonCategories.add(new JsonPrimitive(category));
-                            }
-                            postData.add("categories", jsonCategories);
+                        String token = obtainDeviceToken(context);
+                        Snapshot current = publishDeviceToken(token);
+
+                        // another process completed the same registration while we waited
+                        AcknowledgedRegistration acknowledged = AcknowledgedRegistration.load(context, variantId);
+                        if (acknowledged != null
+                                && acknowledged.acknowledgedAt > requestedAt
+                                && acknowledged.matches(token, current.alias, current.categories)) {
+                            transition(RegistrationState.registered(tokenCache.getExpirationTime(context, senderIdsKey)));
+                            return null;
                         }
 
-                        httpProvider.post(postData.toString());
-                        return null;
-                    } catch (HttpException ex) {
-                        return ex;
+                        try {
+                            transition(RegistrationState.of(RegistrationState.Status.REGISTERING));
+                            postDevice(token, current.alias, current.categories);
+                            new AcknowledgedRegistration(token, current.alias, current.categories)
+                                    .save(context, variantId);
+                            transition(RegistrationState.registered(tokenCache.getExpirationTime(context, senderIdsKey)));
+                            return null;
+                        } catch (HttpException ex) {
+                            transition(RegistrationState.failed(ex));
+                            return ex;
+                        }
+                    } finally {
+                        lease.release();
                     }
 
                 } catch (Exception ex) {
+                    transition(RegistrationState.failed(ex));
                     return ex;
                 }
 
@@ -166,35 +193,46 @@ public class AeroGearGCMPushRegistrar implements PushRegistrar {
                 if (result == null) {
                     callback.onSuccess(null);
                 } else {
-                    if (result instanceof HttpException) {
-                        HttpException httpException = (HttpException) result;
-                        switch (httpException.getStatusCode()) {
-                        case HttpStatus.SC_MOVED_PERMANENTLY:
-                        case HttpStatus.SC_MOVED_TEMPORARILY:
-                        case HttpStatus.SC_TEMPORARY_REDIRECT:
-                            Log.w(TAG, httpException.getMessage());
-                            try {
-                                URL redirectURL = new URL(httpException.getHeaders().get("Location"));
-                                AeroGearGCMPushRegistrar.this.deviceRegistryURL = redirectURL;
-                                register(context, callback);
-                            } catch (MalformedURLException e) {
-                                callback.onFailure(e);
-                            }
-                            break;
-                        default:
-                            callback.onFailure(result);
-                        }
-                    } else {
-                        callback.onFailure(result);
-                    }
-
+                    callback.onFailure(result);
                 }
             }
 
-        }.execute((Void) null);
+        }.executeOnExecutor(taskExecutor, (Void) null);
 
     }
 
+    /**
+     * Changes the alias of a registered device.
+     * 
+     * Unlike {@link #register(android.content.Context, org.jboss.aerogear.android.core.Callback) }
+     * this never refreshes a valid GCM token. Edits made within
+     * {@link #UPDATE_COALESCING_WINDOW_MS} are sent as one request, and nothing
+     * is sent if the push server already acknowledged the resulting state.
+     * 
+     * @param context Android application context
+     * @param alias the new alias
+     * @param callback a callback.
+     */
+    public void updateAlias(final Context context, final String alias, final Callback<Void> callback) {
+        scheduleUpdate(context, true, alias, null, callback);
+    }
+
+    /**
+     * Changes the categories of a registered device.
+     * 
+     * Unlike {@link #register(android.content.Context, org.jboss.aerogear.android.core.Callback) }
+     * this never refreshes a valid GCM token. Edits made within
+     * {@link #UPDATE_COALESCING_WINDOW_MS} are sent as one request, and nothing
+     * is sent if the push server already acknowledged the resulting state.
+     * 
+     * @param context Android application context
+     * @param categories the new categories
+     * @param callback a callback.
+     */
+    public void updateCategories(final Context context, final List<String> categories, final Callback<Void> callback) {
+        scheduleUpdate(context, false, null, new ArrayList<String>(categories), callback);
+    }
+
     @Override
     public void unregister(final Context context, final Callback<Void> callback) {
         new AsyncTask<Void, Void, Exception>() {
@@ -203,24 +241,43 @@ public class AeroGearGCMPushRegistrar implements PushRegistrar {
 
                 try {
 
-                    if (gcm == null) {
-                        gcm = gcmProvider.get(context);
+                    String token = snapshot.get().deviceToken;
+                    if (token.length() == 0) {
+                        token = getRegistrationId(context);
                     }
+                    if (token.length() == 0) {
+                        throw new IllegalStateException("This device is not registered");
+                    }
+                    final String registeredToken = token;
 
-                    gcm.unregister();
-
-                    HttpProvider provider = httpProviderProvider.get(deviceRegistryURL, TIMEOUT);
-                    setPasswordAuthentication(variantId, secret, provider);
-
+                    CrossProcessLease lease = registrationLease(context);
                     try {
-                        provider.delete(deviceToken);
-                        deviceToken = "";
-                        return null;
-                    } catch (HttpException ex) {
-                        return ex;
+                        gcm(context).unregister();
+                        tokenCache.clear(context);
+                        AcknowledgedRegistration.clear(context, variantId);
+
+                        try {
+                            endpoints.execute(new PushServerEndpoints.Request() {
+
+                                @Override
+                                public void execute(URL deviceRegistryURL, Integer timeout) {
+                                    HttpProvider provider = authenticatedProvider(deviceRegistryURL, timeout);
+                                    provider.delete(registeredToken);
+                                }
+                            });
+                            clearDeviceToken(registeredToken);
+                            transition(RegistrationState.UNREGISTERED);
+                            return null;
+                        } catch (HttpException ex) {
+                            transition(RegistrationState.failed(ex));
+                            return ex;
+                        }
+                    } finally {
+                        lease.release();
                     }
 
                 } catch (Exception ex) {
+                    transition(RegistrationState.failed(ex));
                     return ex;
                 }
 
@@ -236,7 +293,7 @@ public class AeroGearGCMPushRegistrar implements PushRegistrar {
                 }
             }
 
-        }.execute((Void) null);
+        }.executeOnExecutor(taskExecutor, (Void) null);
     }
 
     /**
@@ -250,81 +307,304 @@ public class AeroGearGCMPushRegistrar implements PushRegistrar {
      *         complete.
      */
     public String getRegistrationId(Context context) {
-        final SharedPreferences prefs = getGCMPreferences(context);
-        String registrationId = prefs.getString(PROPERTY_REG_ID, "");
-        if (registrationId.length() == 0) {
-            Log.v(TAG, "Registration not found.");
-            return "";
+        return tokenCache.getToken(context, senderIdsKey);
+    }
+
+    /**
+     * Returns the state of this registrar without touching storage, so it is
+     * cheap enough to call from the UI thread as often as needed.
+     * 
+     * The state reflects operations of this registrar in this process and is
+     * {@link RegistrationState.Status#UNREGISTERED} until the first of them,
+     * unless {@link #getRegistrationState(android.content.Context) } restored
+     * it. A {@link RegistrationState.Status#REGISTERED} state whose token has
+     * expired is reported as {@link RegistrationState.Status#EXPIRED}.
+     * 
+     * @return the current state
+     */
+    public RegistrationState getRegistrationState() {
+        RegistrationState current = state.get();
+        if (current.getStatus() == RegistrationState.Status.REGISTERED
+                && System.currentTimeMillis() > current.getExpirationTime()) {
+            RegistrationState expired = RegistrationState.of(RegistrationState.Status.EXPIRED);
+            if (state.compareAndSet(current, expired)) {
+                publish(current, expired);
+            }
+            return state.get();
+        }
+        return current;
+    }
+
+    /**
+     * Returns the state of this registrar, restoring it from storage on the
+     * first call if this registrar has not run an operation yet. A registrar
+     * built after a cold start therefore reports a device registered by an
+     * earlier process as {@link RegistrationState.Status#REGISTERED}, and
+     * listeners are notified of the restored state.
+     * 
+     * The first call reads the token cache and the acknowledged registration,
+     * so make it off the UI thread. Later calls are as cheap as
+     * {@link #getRegistrationState() }.
+     * 
+     * @param context the application context
+     * @return the current state
+     */
+    public RegistrationState getRegistrationState(Context context) {
+        if (!stateRestored) {
+            stateRestored = true;
+            if (state.get() == initialState) {
+                RegistrationState restored = restoreState(context);
+                if (restored != null && state.compareAndSet(initialState, restored)) {
+                    publish(initialState, restored);
+                }
+            }
+        }
+        return getRegistrationState();
+    }
+
+    /**
+     * @return the state left by an earlier process, or null if the device is
+     *         not registered
+     */
+    private RegistrationState restoreState(Context context) {
+        AcknowledgedRegistration acknowledged = AcknowledgedRegistration.load(context, variantId);
+        if (acknowledged == null) {
+            return null;
         }
-        // check if app was updated; if so, it must clear registration id to
-        // avoid a race condition if GCM sends a message
-        int registeredVersion = prefs.getInt(PROPERTY_APP_VERSION, Integer.MIN_VALUE);
-        int currentVersion = getAppVersion(context);
-        if (registeredVersion != currentVersion
-                || isRegistrationExpired(context)) {
-            Log.v(TAG, "App version changed or registration expired.");
-            return "";
+        long expirationTime = tokenCache.getExpirationTime(context, senderIdsKey);
+        String token = getRegistrationId(context);
+        if (token.length() == 0) {
+            return expirationTime == 0 ? null : RegistrationState.of(RegistrationState.Status.EXPIRED);
         }
-        return registrationId;
+        if (!acknowledged.deviceToken.equals(token)) {
+            return null;
+        }
+        return RegistrationState.registered(expirationTime);
     }
 
     /**
-     * @return Application's {@code SharedPreferences}.
+     * @param listener a listener notified of every state change
      */
-    private SharedPreferences getGCMPreferences(Context context) {
-        return context.getSharedPreferences(AeroGearGCMPushRegistrar.class.getSimpleName(), Context.MODE_PRIVATE);
+    public void addOnRegistrationStateChangedListener(OnRegistrationStateChangedListener listener) {
+        stateListeners.add(listener);
     }
 
     /**
-     * @return Application's version code from the {@code PackageManager}.
+     * @param listener a listener to remove
      */
-    private static int getAppVersion(Context context) {
-        try {
-            PackageInfo packageInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
-            return packageInfo.versionCode;
-        } catch (NameNotFoundException e) {
-            // should never happen
-            throw new RuntimeException("Could not get package name: " + e);
+    public void removeOnRegistrationStateChangedListener(OnRegistrationStateChangedListener listener) {
+        stateListeners.remove(listener);
+    }
+
+    private void scheduleUpdate(Context context, boolean aliasChanged, String alias, List<String> categories, Callback<Void> callback) {
+        synchronized (updateLock) {
+            if (pendingUpdate == null) {
+                pendingUpdate = new PendingUpdate(context.getApplicationContext());
+                updateHandler.postDelayed(flushUpdate, UPDATE_COALESCING_WINDOW_MS);
+            }
+            pendingUpdate.merge(aliasChanged, alias, categories, callback);
         }
     }
 
+    private void sendUpdate(final PendingUpdate update) {
+        new AsyncTask<Void, Void, Exception>() {
+
+            @Override
+            protected Exception doInBackground(Void... params) {
+
+                try {
+
+                    Snapshot current = snapshot.get();
+                    String newAlias = update.aliasChanged ? update.alias : current.alias;
+                    List<String> newCategories = update.categories != null ? update.categories : current.categories;
+                    String token;
+                    CrossProcessLease lease = registrationLease(update.context);
+                    try {
+                        token = obtainDeviceToken(update.context);
+
+                        AcknowledgedRegistration acknowledged = AcknowledgedRegistration.load(update.context, variantId);
+                        if (acknowledged == null || !acknowledged.matches(token, newAlias, newCategories)) {
+                            try {
+                                transition(RegistrationState.of(RegistrationState.Status.REGISTERING));
+                                postDevice(token, newAlias, newCategories);
+                            } catch (HttpException ex) {
+                                transition(RegistrationState.failed(ex));
+                                return ex;
+                            }
+                            new AcknowledgedRegistration(token, newAlias, newCategories)
+                                    .save(update.context, variantId);
+                            transition(RegistrationState.registered(tokenCache.getExpirationTime(update.context, senderIdsKey)));
+                        } else if (state.get().getStatus() != RegistrationState.Status.REGISTERED) {
+                            // nothing to send, the server already knows this registration
+                            transition(RegistrationState.registered(tokenCache.getExpirationTime(update.context, senderIdsKey)));
+                        }
+                    } finally {
+                        lease.release();
+                    }
+
+                    publishRegistration(token, newAlias, newCategories);
+                    return null;
+
+                } catch (Exception ex) {
+                    transition(RegistrationState.failed(ex));
+                    return ex;
+                }
+
+            }
+
+            @Override
+            protected void onPostExecute(Exception result) {
+                for (Callback<Void> callback : update.callbacks) {
+                    if (result == null) {
+                        callback.onSuccess(null);
+                    } else {
+                        callback.onFailure(result);
+                    }
+                }
+            }
+
+        }.executeOnExecutor(taskExecutor, (Void) null);
+    }
+
     /**
-     * Checks if the registration has expired.
-     * 
-     * To avoid the scenario where the device sends the registration to the
-     * server but the server loses it, the app developer may choose to
-     * re-register after REGISTRATION_EXPIRY_TIME_MS.
-     * 
-     * @return true if the registration has expired.
+     * Registrations, updates and unregistrations of a variant run under one
+     * lease, so processes of the application never interleave their requests
+     * to the push server.
      */
-    private boolean isRegistrationExpired(Context context) {
-        final SharedPreferences prefs = getGCMPreferences(context);
-        // checks if the information is not stale
-        long expirationTime = prefs.getLong(PROPERTY_ON_SERVER_EXPIRATION_TIME, -1);
-        return System.currentTimeMillis() > expirationTime;
+    private CrossProcessLease registrationLease(Context context) throws IOException {
+        return CrossProcessLease.acquire(context, "gcm-registration-" + variantId);
     }
 
     /**
-     * Stores the registration id, app versionCode, and expiration time in the
-     * application's {@code SharedPreferences}.
-     * 
-     * @param context application's context.
-     * @param regId registration id
+     * Returns the cached GCM token of this registrar's sender ids, registering
+     * with GCM if there is none.
+     */
+    private String obtainDeviceToken(Context context) throws IOException {
+        GoogleCloudMessaging gcm = gcm(context);
+        String regid = getRegistrationId(context);
+
+        if (regid.length() == 0) {
+            if (tokenCache.getExpirationTime(context, senderIdsKey) != 0) {
+                transition(RegistrationState.of(RegistrationState.Status.EXPIRED));
+            }
+            transition(RegistrationState.of(RegistrationState.Status.TOKEN_FETCHING));
+            regid = tokenCache.fetchToken(context, senderIds, gcm);
+        }
+        return regid;
+    }
+
+    /**
+     * Returns the GCM instance, creating it on first use. Racing creators
+     * agree on whichever instance is published first.
+     */
+    private GoogleCloudMessaging gcm(Context context) {
+        Snapshot current = snapshot.get();
+        if (current.gcm != null) {
+            return current.gcm;
+        }
+        GoogleCloudMessaging created = gcmProvider.get(context);
+        while (!snapshot.compareAndSet(current, current.withGcm(created))) {
+            current = snapshot.get();
+            if (current.gcm != null) {
+                return current.gcm;
+            }
+        }
+        return created;
+    }
+
+    private Snapshot publishDeviceToken(String token) {
+        Snapshot current;
+        Snapshot next;
+        do {
+            current = snapshot.get();
+            next = current.withRegistration(token, current.alias, current.categories);
+        } while (!snapshot.compareAndSet(current, next));
+        return next;
+    }
+
+    private void publishRegistration(String token, String alias, List<String> categories) {
+        Snapshot current;
+        do {
+            current = snapshot.get();
+        } while (!snapshot.compareAndSet(current, current.withRegistration(token, alias, categories)));
+    }
+
+    /**
+     * Forgets the device token unless a concurrent registration has already
+     * replaced it with a newer one.
+     */
+    private void clearDeviceToken(String unregisteredToken) {
+        Snapshot current;
+        do {
+            current = snapshot.get();
+            if (!current.deviceToken.equals(unregisteredToken)) {
+                return;
+            }
+        } while (!snapshot.compareAndSet(current, current.withRegistration("", current.alias, current.categories)));
+    }
+
+    private void transition(RegistrationState next) {
+        RegistrationState previous = state.getAndSet(next);
+        publish(previous, next);
+    }
+
+    private void publish(RegistrationState previous, RegistrationState current) {
+        for (OnRegistrationStateChangedListener listener : stateListeners) {
+            listener.onRegistrationStateChanged(this, previous, current);
+        }
+    }
+
+    private void postDevice(String deviceToken, String alias, List<String> categories) {
+        JsonObject postData = new JsonObject();
+        postData.addProperty("deviceType", deviceType);
+        postData.addProperty("deviceToken", deviceToken);
+        postData.addProperty("alias", alias);
+        postData.addProperty("operatingSystem", operatingSystem);
+        postData.addProperty("osVersion", osVersion);
+        if (categories != null && !categories.isEmpty()) {
+            JsonArray jsonCategories = new JsonArray();
+            for (String category : categories) {
+                jsonCategories.add(new JsonPrimitive(category));
+            }
+            postData.add("categories", jsonCategories);
+        }
+
+        final String body = postData.toString();
+        endpoints.execute(new PushServerEndpoints.Request() {
+
+            @Override
+            public void execute(URL deviceRegistryURL, Integer timeout) {
+                HttpProvider httpProvider = authenticatedProvider(deviceRegistryURL, timeout);
+                httpProvider.post(body);
+            }
+        });
+    }
+
+    /**
+     * Builds the endpoints of a path on every push server of this registrar,
+     * in order of preference.
+     */
+    PushServerEndpoints endpointsFor(String path) {
+        List<URL> urls = new ArrayList<URL>();
+        try {
+            for (URI pushServerURI : pushServerURIs) {
+                urls.add(UrlUtils.appendToBaseURL(pushServerURI.toURL(), path));
+            }
+        } catch (MalformedURLException ex) {
+            PushLog.e(TAG, ex.getMessage());
+            throw new IllegalStateException("pushserverUrl was not a valid URL");
+        }
+        return new PushServerEndpoints(urls, TIMEOUT);
+    }
+
+    /**
+     * @return a provider for url which authenticates as this registrar's
+     *         variant
      */
-    private void setRegistrationId(Context context, String regId) {
-        final SharedPreferences prefs = getGCMPreferences(context);
-        int appVersion = getAppVersion(context);
-        Log.v(TAG, "Saving regId on app version " + appVersion);
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putString(PROPERTY_REG_ID, regId);
-        editor.putInt(PROPERTY_APP_VERSION, appVersion);
-        long expirationTime = System.currentTimeMillis()
-                + REGISTRATION_EXPIRY_TIME_MS;
-
-        Log.v(TAG, "Setting registration expiry time to "
-                + new Timestamp(expirationTime));
-        editor.putLong(PROPERTY_ON_SERVER_EXPIRATION_TIME, expirationTime);
-        editor.commit();
+    HttpProvider authenticatedProvider(URL url, Integer timeout) {
+        HttpProvider provider = httpProviderProvider.get(url, timeout);
+        setPasswordAuthentication(variantId, secret, provider);
+        return provider;
     }
 
     public void setPasswordAuthentication(final String username, final String password, final HttpProvider provider) {
@@ -338,4 +618,59 @@ public class AeroGearGCMPushRegistrar implements PushRegistrar {
         return headerValueBuilder.append(hashedCrentials).toString();
     }
 
+    /**
+     * The mutable state of a registrar. Operations read a single snapshot and
+     * publish a new one with compareAndSet, so they never combine the token
+     * of one operation with the alias or categories of another.
+     */
+    private static final class Snapshot {
+
+        final String deviceToken;
+        final String alias;
+        final List<String> categories;
+        final GoogleCloudMessaging gcm;
+
+        Snapshot(String deviceToken, String alias, List<String> categories, GoogleCloudMessaging gcm) {
+            this.deviceToken = deviceToken == null ? "" : deviceToken;
+            this.alias = alias;
+            this.categories = Collections.unmodifiableList(new ArrayList<String>(categories));
+            this.gcm = gcm;
+        }
+
+        Snapshot withRegistration(String deviceToken, String alias, List<String> categories) {
+            return new Snapshot(deviceToken, alias, categories, gcm);
+        }
+
+        Snapshot withGcm(GoogleCloudMessaging gcm) {
+            return new Snapshot(deviceToken, alias, categories, gcm);
+        }
+    }
+
+    /**
+     * Alias and category edits waiting for the coalescing window to close.
+     */
+    private static final class PendingUpdate {
+
+        final Context context;
+        final List<Callback<Void>> callbacks = new ArrayList<Callback<Void>>();
+        boolean aliasChanged;
+        String alias;
+        List<String> categories;
+
+        PendingUpdate(Context context) {
+            this.context = context;
+        }
+
+        void merge(boolean aliasChanged, String alias, List<String> categories, Callback<Void> callback) {
+            if (aliasChanged) {
+                this.aliasChanged = true;
+                this.alias = alias;
+            }
+            if (categories != null) {
+                this.categories = categories;
+            }
+            callbacks.add(callback);
+        }
+    }
+
 }
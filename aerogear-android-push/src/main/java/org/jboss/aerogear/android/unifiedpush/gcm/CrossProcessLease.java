@@ -0,0 +1,176 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.gcm;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Exclusive ownership of a named operation across the processes of the
+ * application, for example the GCM registration of a sender set.
+ *
+ * A lease is a lock on a file in the application's files directory, so
+ * the operating system releases it if its process dies. File locks are held
+ * per process, so threads of one process are serialized by an in process
+ * lock first. Leases are reentrant for the thread which holds them.
+ */
+final class CrossProcessLease {
+
+    /**
+     * The longest time to wait for another owner, which is longer than a GCM
+     * registration and a push server request with their timeouts.
+     */
+    static final long DEFAULT_TIMEOUT_MS = 120000;
+
+    private static final String DIRECTORY = "aerogear-push-leases";
+    private static final long POLL_INTERVAL_MS = 20;
+    private static final ConcurrentMap<String, ReentrantLock> processLocks = new ConcurrentHashMap<String, ReentrantLock>();
+
+    private final ReentrantLock processLock;
+    private final RandomAccessFile file;
+    private final FileLock fileLock;
+
+    private CrossProcessLease(ReentrantLock processLock, RandomAccessFile file, FileLock fileLock) {
+        this.processLock = processLock;
+        this.file = file;
+        this.fileLock = fileLock;
+    }
+
+    /**
+     * @param context the application context
+     * @param name the name of the operation
+     * @return the lease, which must be released
+     * @throws IOException if the lease could not be acquired within
+     *             {@link #DEFAULT_TIMEOUT_MS}
+     */
+    static CrossProcessLease acquire(Context context, String name) throws IOException {
+        File directory = new File(context.getFilesDir(), DIRECTORY);
+        directory.mkdirs();
+        return acquire(new File(directory, name.replaceAll("[^A-Za-z0-9._-]", "_")), DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * @param lockFile the file which represents the operation
+     * @param timeoutMs the longest time to wait
+     * @return the lease, which must be released
+     * @throws IOException if the lease could not be acquired in time
+     */
+    static CrossProcessLease acquire(File lockFile, long timeoutMs) throws IOException {
+        ReentrantLock processLock = lockFor(lockFile.getPath());
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        try {
+            if (!processLock.tryLock(timeoutMs, TimeUnit.MILLISECONDS)) {
+                throw new IOException("Timed out waiting for " + lockFile.getName());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for " + lockFile.getName());
+        }
+
+        if (processLock.getHoldCount() > 1) {
+            // this thread holds the file lock already
+            return new CrossProcessLease(processLock, null, null);
+        }
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(lockFile, "rw");
+            FileLock fileLock = tryLock(file);
+            while (fileLock == null) {
+                if (System.currentTimeMillis() > deadline) {
+                    throw new IOException("Timed out waiting for " + lockFile.getName());
+                }
+                Thread.sleep(POLL_INTERVAL_MS);
+                fileLock = tryLock(file);
+            }
+            return new CrossProcessLease(processLock, file, fileLock);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            close(file);
+            processLock.unlock();
+            throw new IOException("Interrupted waiting for " + lockFile.getName());
+        } catch (IOException ex) {
+            close(file);
+            processLock.unlock();
+            throw ex;
+        } catch (RuntimeException ex) {
+            close(file);
+            processLock.unlock();
+            throw ex;
+        }
+    }
+
+    /**
+     * Gives the operation up for other threads and processes.
+     */
+    void release() {
+        try {
+            if (fileLock != null) {
+                fileLock.release();
+            }
+        } catch (IOException ignore) {
+            // closing the file below releases the lock as well
+        } finally {
+            close(file);
+            processLock.unlock();
+        }
+    }
+
+    /**
+     * @return the file lock, or null if another process or another channel
+     *         of this process holds it
+     */
+    private static FileLock tryLock(RandomAccessFile file) throws IOException {
+        try {
+            return file.getChannel().tryLock();
+        } catch (OverlappingFileLockException ex) {
+            return null;
+        }
+    }
+
+    private static ReentrantLock lockFor(String path) {
+        ReentrantLock lock = processLocks.get(path);
+        if (lock == null) {
+            lock = new ReentrantLock();
+            ReentrantLock current = processLocks.putIfAbsent(path, lock);
+            if (current != null) {
+                lock = current;
+            }
+        }
+        return lock;
+    }
+
+    private static void close(RandomAccessFile file) {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException ignore) {
+                // nothing left to release
+            }
+        }
+    }
+
+}
@@ -0,0 +1,298 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.gcm;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager.NameNotFoundException;
+import com.google.android.gms.gcm.GoogleCloudMessaging;
+import org.jboss.aerogear.android.unifiedpush.PushLog;
+
+import java.io.IOException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Process wide cache of GCM tokens.
+ *
+ * Tokens are keyed by the sorted set of sender ids they were issued for, so
+ * registrars with different sender ids no longer overwrite each other and
+ * registrars sharing a sender set share a single token. Each entry keeps the
+ * app version and expiration time it was stored with.
+ *
+ * Entries live in a {@link SharedFileStore}, so every process of the
+ * application sees the same tokens, and GCM registrations run under a
+ * {@link CrossProcessLease} of their sender set: when two processes need a
+ * token at once, one registers and the other reads its result.
+ *
+ * Earlier versions kept a single token in the {@code SharedPreferences} of
+ * {@link AeroGearGCMPushRegistrar}. It is imported on first read, so
+ * upgraded devices neither register with GCM nor with the push server again.
+ */
+final class GCMTokenCache {
+
+    private static final String TAG = GCMTokenCache.class.getSimpleName();
+    private static final String LEGACY_PREFERENCES_NAME = AeroGearGCMPushRegistrar.class.getSimpleName();
+    private static final String STORE_NAME = "aerogear-push-tokens.properties";
+    private static final String PROPERTY_APP_VERSION = "appVersion";
+    private static final String PROPERTY_ON_SERVER_EXPIRATION_TIME = "onServerExpirationTimeMs";
+
+    private static final GCMTokenCache INSTANCE = new GCMTokenCache();
+
+    private volatile int appVersion = Integer.MIN_VALUE;
+
+    private GCMTokenCache() {
+    }
+
+    static GCMTokenCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Builds the cache key of a sender set. The key does not depend on the
+     * iteration order of the set.
+     *
+     * @param senderIds the GCM sender ids
+     * @return a stable key for senderIds
+     */
+    static String keyFor(Set<String> senderIds) {
+        List<String> sorted = new ArrayList<String>(senderIds);
+        Collections.sort(sorted);
+        StringBuilder key = new StringBuilder();
+        for (String senderId : sorted) {
+            if (key.length() > 0) {
+                key.append(',');
+            }
+            key.append(senderId);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Returns the cached token for a sender set.
+     *
+     * @param context the application context
+     * @param key a key built by {@link #keyFor(java.util.Set) }
+     *
+     * @return the token or an empty string if there is no token, it was stored
+     *         by a different app version or it has expired.
+     */
+    String getToken(Context context, String key) {
+        Entry entry = entry(context, key);
+        if (entry == null) {
+            PushLog.v(TAG, "Registration not found.");
+            return "";
+        }
+
+        // check if app was updated; if so, it must clear registration id to
+        // avoid a race condition if GCM sends a message
+        if (entry.appVersion != getAppVersion(context)
+                || System.currentTimeMillis() > entry.expirationTime) {
+            PushLog.v(TAG, "App version changed or registration expired.");
+            return "";
+        }
+        return entry.token;
+    }
+
+    /**
+     * @param context the application context
+     * @param key a key built by {@link #keyFor(java.util.Set) }
+     *
+     * @return when the cached token of a sender set expires, or 0 if there is
+     *         none
+     */
+    long getExpirationTime(Context context, String key) {
+        Entry entry = entry(context, key);
+        return entry == null ? 0 : entry.expirationTime;
+    }
+
+    private Entry entry(Context context, String key) {
+        Entry entry = load(context, key);
+        if (entry == null) {
+            entry = migrate(context, key);
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the cached token for a sender set, registering with GCM if there
+     * is no valid token. Concurrent callers for the same sender set, in this or
+     * any other process of the application, wait for a single GCM
+     * registration.
+     *
+     * @param context the application context
+     * @param senderIds the GCM sender ids
+     * @param gcm the GCM instance to register with
+     *
+     * @return a valid token
+     *
+     * @throws IOException if GCM registration fails
+     */
+    String fetchToken(Context context, Set<String> senderIds, GoogleCloudMessaging gcm) throws IOException {
+        String key = keyFor(senderIds);
+        CrossProcessLease lease = CrossProcessLease.acquire(context, "gcm-token-" + key);
+        try {
+            // the previous owner of the lease may have stored a token
+            getStore(context).reload();
+            String token = getToken(context, key);
+            if (token.length() == 0) {
+                token = gcm.register(senderIds.toArray(new String[senderIds.size()]));
+                putToken(context, key, token);
+            }
+            return token;
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Stores the token, app versionCode, and expiration time of a sender set.
+     *
+     * @param context the application context
+     * @param key a key built by {@link #keyFor(java.util.Set) }
+     * @param token the GCM token
+     * @throws IOException if the token can not be stored
+     */
+    void putToken(Context context, String key, String token) throws IOException {
+        int version = getAppVersion(context);
+        long expirationTime = System.currentTimeMillis()
+                + AeroGearGCMPushRegistrar.REGISTRATION_EXPIRY_TIME_MS;
+
+        if (PushLog.isLoggable(PushLog.VERBOSE)) {
+            PushLog.v(TAG, "Saving regId on app version {}", version);
+            PushLog.v(TAG, "Setting registration expiry time to {}", new Timestamp(expirationTime));
+        }
+
+        store(context, key, new Entry(token, version, expirationTime));
+    }
+
+    /**
+     * Removes every cached token. GCM unregistration invalidates all tokens of
+     * the application, not only the ones of a single sender set.
+     *
+     * @param context the application context
+     * @throws IOException if the tokens can not be removed
+     */
+    void clear(Context context) throws IOException {
+        getStore(context).clear();
+        clearLegacyToken(getLegacyPreferences(context));
+    }
+
+    private Entry load(Context context, String key) {
+        SharedFileStore store = getStore(context);
+        String token = store.get(key + ':' + AeroGearGCMPushRegistrar.PROPERTY_REG_ID);
+        if (token == null || token.length() == 0) {
+            return null;
+        }
+        try {
+            return new Entry(token,
+                    Integer.parseInt(store.get(key + ':' + PROPERTY_APP_VERSION)),
+                    Long.parseLong(store.get(key + ':' + PROPERTY_ON_SERVER_EXPIRATION_TIME)));
+        } catch (NumberFormatException ex) {
+            PushLog.w(TAG, "Ignoring a damaged token entry", ex);
+            return null;
+        }
+    }
+
+    private void store(Context context, String key, Entry entry) throws IOException {
+        Map<String, String> values = new HashMap<String, String>();
+        values.put(key + ':' + AeroGearGCMPushRegistrar.PROPERTY_REG_ID, entry.token);
+        values.put(key + ':' + PROPERTY_APP_VERSION, String.valueOf(entry.appVersion));
+        values.put(key + ':' + PROPERTY_ON_SERVER_EXPIRATION_TIME, String.valueOf(entry.expirationTime));
+        getStore(context).edit(values, null);
+    }
+
+    /**
+     * Moves the token of an earlier version into the shared store. That
+     * version kept one token for the sender ids of the app, so it goes to the
+     * first sender set which asks for a token.
+     */
+    private Entry migrate(Context context, String key) {
+        SharedPreferences prefs = getLegacyPreferences(context);
+        String token = prefs.getString(AeroGearGCMPushRegistrar.PROPERTY_REG_ID, "");
+        if (token.length() == 0) {
+            return null;
+        }
+        Entry entry = new Entry(token,
+                prefs.getInt(PROPERTY_APP_VERSION, Integer.MIN_VALUE),
+                prefs.getLong(PROPERTY_ON_SERVER_EXPIRATION_TIME, -1));
+        try {
+            store(context, key, entry);
+            clearLegacyToken(prefs);
+        } catch (IOException ex) {
+            PushLog.w(TAG, "Could not migrate the token of " + key, ex);
+        }
+        return entry;
+    }
+
+    private static void clearLegacyToken(SharedPreferences prefs) {
+        prefs.edit()
+                .remove(AeroGearGCMPushRegistrar.PROPERTY_REG_ID)
+                .remove(PROPERTY_APP_VERSION)
+                .remove(PROPERTY_ON_SERVER_EXPIRATION_TIME)
+                .commit();
+    }
+
+    private SharedFileStore getStore(Context context) {
+        return SharedFileStore.get(context, STORE_NAME);
+    }
+
+    private SharedPreferences getLegacyPreferences(Context context) {
+        return context.getSharedPreferences(LEGACY_PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * The version code can not change while the process is alive, so it is
+     * only read from the {@code PackageManager} once.
+     *
+     * @return Application's version code.
+     */
+    private int getAppVersion(Context context) {
+        int version = appVersion;
+        if (version == Integer.MIN_VALUE) {
+            try {
+                PackageInfo packageInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+                version = packageInfo.versionCode;
+                appVersion = version;
+            } catch (NameNotFoundException e) {
+                // should never happen
+                throw new RuntimeException("Could not get package name: " + e);
+            }
+        }
+        return version;
+    }
+
+    private static final class Entry {
+
+        final String token;
+        final int appVersion;
+        final long expirationTime;
+
+        Entry(String token, int appVersion, long expirationTime) {
+            this.token = token;
+            this.appVersion = appVersion;
+            this.expirationTime = expirationTime;
+        }
+    }
+
+}
@@ -0,0 +1,35 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.gcm;
+
+/**
+ * Observes the {@link RegistrationState} of an
+ * {@link AeroGearGCMPushRegistrar}.
+ */
+public interface OnRegistrationStateChangedListener {
+
+    /**
+     * Called on the thread which changed the state, usually a background
+     * thread.
+     *
+     * @param registrar the registrar whose state changed
+     * @param previous the previous state
+     * @param current the new state
+     */
+    void onRegistrationStateChanged(AeroGearGCMPushRegistrar registrar, RegistrationState previous, RegistrationState current);
+
+}
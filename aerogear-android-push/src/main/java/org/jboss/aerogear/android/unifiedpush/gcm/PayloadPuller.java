@@ -0,0 +1,366 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.gcm;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
+import org.jboss.aerogear.android.unifiedpush.MemoryConsumer;
+import org.jboss.aerogear.android.unifiedpush.MessageHandler;
+import org.jboss.aerogear.android.unifiedpush.PushLog;
+import org.jboss.aerogear.android.unifiedpush.PushMemoryGovernor;
+import org.jboss.aerogear.android.unifiedpush.RegistrarManager;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Fetches the content of push messages which only carry a message id.
+ *
+ * Messages with a {@link #EXTRA_MESSAGE_ID} are held for a short window.
+ * The ids collected during the window are fetched from the push server in a
+ * single POST of {"ids": [...]} to the configured path, which answers with an
+ * object mapping each id to an object of String fields. The fields are added
+ * to their message as extras before the handlers are notified. Fetched
+ * payloads are cached, so a repeated id is delivered without a request.
+ *
+ * Requests go to the push servers of a registrar and authenticate like it.
+ * A message whose payload could not be fetched is delivered with
+ * {@link #EXTRA_PULL_FAILED} set.
+ *
+ * The receiver of a message stays open until its handlers were notified, and
+ * Android kills broadcasts which take about ten seconds. A fetch therefore
+ * gives up {@link #MAX_HOLD_MS} after the oldest message of its batch was
+ * queued, however many push servers it still could try.
+ *
+ * The payload cache registers with the {@link PushMemoryGovernor} until the
+ * puller is shut down.
+ */
+public final class PayloadPuller implements MemoryConsumer {
+
+    public static final String EXTRA_MESSAGE_ID = "aerogear-message-id";
+    public static final String EXTRA_PULL_FAILED = "org.jboss.aerogear.android.unifiedpush.PULL_FAILED";
+
+    /**
+     * The default time ids are collected for before they are fetched.
+     */
+    public static final long DEFAULT_WINDOW_MS = 250;
+
+    /**
+     * The longest time a message is held, from being queued until its
+     * handlers are notified, including the window.
+     */
+    public static final long MAX_HOLD_MS = 7000;
+
+    static final int MAX_BATCH_SIZE = 100;
+    static final int CACHE_SIZE = 64;
+
+    private static final String TAG = PayloadPuller.class.getSimpleName();
+
+    private final AeroGearGCMPushRegistrar registrar;
+    private final PushServerEndpoints endpoints;
+    private final long windowMs;
+    private final HandlerThread fetchThread;
+    private final Handler fetchHandler;
+
+    private final List<PendingMessage> pending = new ArrayList<PendingMessage>();
+    private boolean shutdown;
+
+    private final Map<String, JsonObject> cache = new LinkedHashMap<String, JsonObject>(CACHE_SIZE, 0.75f, true) {
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, JsonObject> eldest) {
+            return size() > CACHE_SIZE;
+        }
+    };
+
+    private final Runnable flush = new Runnable() {
+
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param registrar the registrar whose push servers and credentials are
+     *            used
+     * @param path the path of the batch endpoint, relative to the push server
+     *            URI
+     */
+    public PayloadPuller(AeroGearGCMPushRegistrar registrar, String path) {
+        this(registrar, path, DEFAULT_WINDOW_MS);
+    }
+
+    /**
+     * @param registrar the registrar whose push servers and credentials are
+     *            used
+     * @param path the path of the batch endpoint, relative to the push server
+     *            URI
+     * @param windowMs how long ids are collected before they are fetched
+     */
+    public PayloadPuller(AeroGearGCMPushRegistrar registrar, String path, long windowMs) {
+        this.registrar = registrar;
+        this.endpoints = registrar.endpointsFor(path);
+        this.windowMs = windowMs;
+        this.fetchThread = new HandlerThread("AeroGearPayloadPuller", Process.THREAD_PRIORITY_BACKGROUND);
+        fetchThread.start();
+        this.fetchHandler = new Handler(fetchThread.getLooper());
+        PushMemoryGovernor.getInstance().register(this, PushMemoryGovernor.RANK_CACHE);
+    }
+
+    /**
+     * Adds the cached payload of a message to it.
+     *
+     * @param message a push message
+     * @return true if the message needs no fetch, because it has no message id
+     *         or its payload is cached
+     */
+    public boolean applyCached(Intent message) {
+        String id = message.getStringExtra(EXTRA_MESSAGE_ID);
+        if (id == null) {
+            return true;
+        }
+        JsonObject payload;
+        synchronized (cache) {
+            payload = cache.get(id);
+        }
+        if (payload == null) {
+            return false;
+        }
+        apply(payload, message);
+        return true;
+    }
+
+    /**
+     * Queues a message for the next batch. Its handlers are notified once the
+     * batch has been fetched. After {@link #shutdown() } the message is
+     * delivered right away, without its payload.
+     *
+     * @param context the application context
+     * @param message a push message with a {@link #EXTRA_MESSAGE_ID}
+     * @param result the result of the receiver which received the message,
+     *            finished after the handlers were notified. May be null
+     * @param defaultHandler the handler to notify if no other handlers are
+     *            registered. May be null
+     */
+    public void enqueue(Context context, Intent message, BroadcastReceiver.PendingResult result, MessageHandler defaultHandler) {
+        PendingMessage pendingMessage = new PendingMessage(context, message, result, defaultHandler, SystemClock.elapsedRealtime());
+        synchronized (pending) {
+            if (!shutdown) {
+                if (pending.isEmpty()) {
+                    fetchHandler.postDelayed(flush, windowMs);
+                }
+                pending.add(pendingMessage);
+                if (pending.size() >= MAX_BATCH_SIZE) {
+                    fetchHandler.removeCallbacks(flush);
+                    fetchHandler.post(flush);
+                }
+                return;
+            }
+        }
+        // the fetch thread is gone
+        deliver(Collections.singletonList(pendingMessage));
+    }
+
+    /**
+     * Stops the fetch thread. Messages still waiting are delivered without
+     * their payload.
+     */
+    public void shutdown() {
+        PushMemoryGovernor.getInstance().unregister(this);
+        fetchThread.quit();
+        List<PendingMessage> batch;
+        synchronized (pending) {
+            shutdown = true;
+            batch = new ArrayList<PendingMessage>(pending);
+            pending.clear();
+        }
+        deliver(batch);
+    }
+
+    /**
+     * @return an estimate of the memory held by cached payloads
+     */
+    @Override
+    public long getFootprint() {
+        long footprint = 0;
+        synchronized (cache) {
+            for (Map.Entry<String, JsonObject> entry : cache.entrySet()) {
+                footprint += estimate(entry);
+            }
+        }
+        return footprint;
+    }
+
+    /**
+     * Drops the least recently used payloads.
+     */
+    @Override
+    public void trimToSize(long maxBytes) {
+        synchronized (cache) {
+            long footprint = getFootprint();
+            Iterator<Map.Entry<String, JsonObject>> iterator = cache.entrySet().iterator();
+            while (footprint > maxBytes && iterator.hasNext()) {
+                footprint -= estimate(iterator.next());
+                iterator.remove();
+            }
+        }
+    }
+
+    private static long estimate(Map.Entry<String, JsonObject> entry) {
+        return 2 * (entry.getKey().length() + entry.getValue().toString().length());
+    }
+
+    private void flush() {
+        List<PendingMessage> batch;
+        synchronized (pending) {
+            batch = new ArrayList<PendingMessage>(pending);
+            pending.clear();
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        long deadline = Long.MAX_VALUE;
+        Set<String> ids = new LinkedHashSet<String>();
+        for (PendingMessage message : batch) {
+            deadline = Math.min(deadline, message.enqueuedAt + MAX_HOLD_MS);
+            if (!applyCached(message.intent)) {
+                ids.add(message.intent.getStringExtra(EXTRA_MESSAGE_ID));
+            }
+        }
+
+        if (!ids.isEmpty()) {
+            try {
+                JsonObject payloads = fetch(ids, deadline);
+                synchronized (cache) {
+                    for (Map.Entry<String, JsonElement> entry : payloads.entrySet()) {
+                        if (entry.getValue().isJsonObject()) {
+                            cache.put(entry.getKey(), entry.getValue().getAsJsonObject());
+                        }
+                    }
+                }
+            } catch (RuntimeException ex) {
+                PushLog.w(TAG, "Could not fetch push payloads", ex);
+            }
+        }
+
+        deliver(batch);
+    }
+
+    private JsonObject fetch(Set<String> ids, long deadline) {
+        JsonArray jsonIds = new JsonArray();
+        for (String id : ids) {
+            jsonIds.add(new JsonPrimitive(id));
+        }
+        JsonObject request = new JsonObject();
+        request.add("ids", jsonIds);
+        final String body = request.toString();
+
+        final HeaderAndBody[] response = new HeaderAndBody[1];
+        endpoints.execute(new PushServerEndpoints.Request() {
+
+            @Override
+            public void execute(URL url, Integer timeout) {
+                response[0] = registrar.authenticatedProvider(url, timeout).post(body);
+            }
+        }, deadline);
+
+        try {
+            return new JsonParser().parse(new String(response[0].getBody(), "UTF-8")).getAsJsonObject();
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Notifies the handlers of every message. A failing message does not keep
+     * the others from being delivered, and every receiver result is finished,
+     * once the interceptors are done with its message.
+     */
+    private void deliver(List<PendingMessage> batch) {
+        for (PendingMessage message : batch) {
+            boolean handedOff = false;
+            try {
+                if (!applyCached(message.intent)) {
+                    message.intent.putExtra(EXTRA_PULL_FAILED, true);
+                }
+                PendingResultHandoff handoff = new PendingResultHandoff();
+                if (RegistrarManager.notifyHandlers(message.context, message.intent, message.defaultHandler, handoff)
+                        && message.result != null) {
+                    // interceptors pass the message on asynchronously
+                    handoff.attach(message.result);
+                    handedOff = true;
+                }
+            } catch (RuntimeException ex) {
+                PushLog.e(TAG, "Could not deliver a pulled message", ex);
+            } finally {
+                if (message.result != null && !handedOff) {
+                    message.result.finish();
+                }
+            }
+        }
+    }
+
+    private static void apply(JsonObject payload, Intent message) {
+        for (Map.Entry<String, JsonElement> field : payload.entrySet()) {
+            JsonElement value = field.getValue();
+            if (value.isJsonPrimitive()) {
+                message.putExtra(field.getKey(), value.getAsString());
+            } else if (!value.isJsonNull()) {
+                message.putExtra(field.getKey(), value.toString());
+            }
+        }
+    }
+
+    private static final class PendingMessage {
+
+        final Context context;
+        final Intent intent;
+        final BroadcastReceiver.PendingResult result;
+        final MessageHandler defaultHandler;
+        final long enqueuedAt;
+
+        PendingMessage(Context context, Intent intent, BroadcastReceiver.PendingResult result, MessageHandler defaultHandler, long enqueuedAt) {
+            this.context = context;
+            this.intent = intent;
+            this.result = result;
+            this.defaultHandler = defaultHandler;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+}
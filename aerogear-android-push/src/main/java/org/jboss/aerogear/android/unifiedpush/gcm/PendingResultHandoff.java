@@ -0,0 +1,59 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.gcm;
+
+import android.content.BroadcastReceiver.PendingResult;
+
+/**
+ * Finishes a receiver's {@link PendingResult} once interceptors which pass a
+ * message on asynchronously are done, see
+ * {@link org.jboss.aerogear.android.unifiedpush.RegistrarManager#notifyHandlers(android.content.Context, android.content.Intent, org.jboss.aerogear.android.unifiedpush.MessageHandler, java.lang.Runnable) }.
+ *
+ * The interceptors may be done before the result is attached, in which case
+ * it is finished on attach.
+ */
+final class PendingResultHandoff implements Runnable {
+
+    private PendingResult result;
+    private boolean done;
+
+    /**
+     * @param pendingResult the result to finish when the interceptors are done
+     */
+    void attach(PendingResult pendingResult) {
+        synchronized (this) {
+            if (!done) {
+                result = pendingResult;
+                return;
+            }
+        }
+        pendingResult.finish();
+    }
+
+    @Override
+    public void run() {
+        PendingResult pendingResult;
+        synchronized (this) {
+            done = true;
+            pendingResult = result;
+        }
+        if (pendingResult != null) {
+            pendingResult.finish();
+        }
+    }
+
+}
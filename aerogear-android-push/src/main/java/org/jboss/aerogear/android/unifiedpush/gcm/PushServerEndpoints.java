@@ -0,0 +1,304 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.gcm;
+
+import android.os.SystemClock;
+import org.apache.http.HttpStatus;
+import org.jboss.aerogear.android.pipe.http.HttpException;
+import org.jboss.aerogear.android.unifiedpush.PushLog;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * The endpoints of one path, usually the device registry, on the push
+ * servers a registrar can talk to, in order of preference.
+ *
+ * Every endpoint keeps a window of recent latencies and failures. Requests go
+ * to the fastest healthy endpoint and fail over to the next one on transport
+ * errors and server errors. Timeouts adapt to the observed latency
+ * percentiles, and an endpoint which keeps failing has its circuit opened so
+ * it is skipped until {@link #CIRCUIT_OPEN_TIME_MS} has passed.
+ */
+final class PushServerEndpoints {
+
+    private static final String TAG = PushServerEndpoints.class.getSimpleName();
+
+    static final int SAMPLE_WINDOW = 32;
+    static final int MIN_SAMPLES_FOR_ADAPTIVE_TIMEOUT = 8;
+    static final int MIN_TIMEOUT_MS = 2000;
+    static final int TIMEOUT_PERCENTILE_MULTIPLIER = 3;
+    static final int CONSECUTIVE_FAILURES_TO_OPEN = 3;
+    static final long CIRCUIT_OPEN_TIME_MS = 30000;
+    static final int MAX_REDIRECTS = 5;
+
+    /**
+     * 308 Permanent Redirect, which {@link HttpStatus} predates.
+     */
+    private static final int SC_PERMANENT_REDIRECT = 308;
+
+    /**
+     * A call against a single endpoint.
+     */
+    interface Request {
+
+        /**
+         * @param deviceRegistryURL the URL of the endpoint
+         * @param timeout the timeout to use, in milliseconds
+         */
+        void execute(URL deviceRegistryURL, Integer timeout);
+    }
+
+    private static final Comparator<Endpoint> BY_LATENCY = new Comparator<Endpoint>() {
+
+        @Override
+        public int compare(Endpoint lhs, Endpoint rhs) {
+            long left = lhs.expectedLatency();
+            long right = rhs.expectedLatency();
+            return left < right ? -1 : (left == right ? 0 : 1);
+        }
+    };
+
+    private final List<Endpoint> endpoints;
+    private final int maxTimeout;
+
+    PushServerEndpoints(List<URL> deviceRegistryURLs, int maxTimeout) {
+        List<Endpoint> newEndpoints = new ArrayList<Endpoint>(deviceRegistryURLs.size());
+        for (URL url : deviceRegistryURLs) {
+            newEndpoints.add(new Endpoint(url));
+        }
+        this.endpoints = Collections.unmodifiableList(newEndpoints);
+        this.maxTimeout = maxTimeout;
+    }
+
+    /**
+     * Executes a request against the healthy endpoints until one of them
+     * answers. Client errors are not retried on other endpoints because every
+     * endpoint would reject the request the same way.
+     *
+     * @param request the request to execute
+     *
+     * @throws HttpException if an endpoint rejects the request or every
+     *             endpoint failed with a server error
+     * @throws IllegalStateException if the circuit of every endpoint is open
+     * @throws RuntimeException the transport error of the last endpoint tried
+     */
+    void execute(Request request) {
+        execute(request, Long.MAX_VALUE);
+    }
+
+    /**
+     * Like {@link #execute(Request) }, but gives up once deadline has passed.
+     * The timeout of every attempt is cut to the time left.
+     *
+     * @param request the request to execute
+     * @param deadline the {@link SystemClock#elapsedRealtime() } by which the
+     *            request must be done
+     *
+     * @throws IllegalStateException if the deadline passed before an endpoint
+     *             could be tried
+     */
+    void execute(Request request, long deadline) {
+        long now = SystemClock.elapsedRealtime();
+        RuntimeException lastFailure = null;
+
+        for (Endpoint endpoint : orderedCandidates(now)) {
+            int redirects = 0;
+            URL url = endpoint.url;
+            while (SystemClock.elapsedRealtime() < deadline && endpoint.tryAcquire(SystemClock.elapsedRealtime())) {
+                long start = SystemClock.elapsedRealtime();
+                int timeout = (int) Math.max(1, Math.min(endpoint.timeout(maxTimeout), deadline - start));
+                try {
+                    request.execute(url, timeout);
+                    endpoint.onSuccess(SystemClock.elapsedRealtime() - start);
+                    return;
+                } catch (HttpException ex) {
+                    int status = ex.getStatusCode();
+                    if (isRedirect(status) && redirects++ < MAX_REDIRECTS) {
+                        endpoint.onSuccess(SystemClock.elapsedRealtime() - start);
+                        url = followRedirect(endpoint, ex);
+                        continue;
+                    }
+                    if (status < HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                        endpoint.onSuccess(SystemClock.elapsedRealtime() - start);
+                        throw ex;
+                    }
+                    endpoint.onFailure(SystemClock.elapsedRealtime());
+                    lastFailure = ex;
+                } catch (RuntimeException ex) {
+                    endpoint.onFailure(SystemClock.elapsedRealtime());
+                    lastFailure = ex;
+                }
+                PushLog.w(TAG, "Push server {} failed, trying the next one", endpoint.url);
+                break;
+            }
+        }
+
+        if (lastFailure == null) {
+            if (SystemClock.elapsedRealtime() >= deadline) {
+                throw new IllegalStateException("No push server answered in time");
+            }
+            throw new IllegalStateException("No push server is currently available");
+        }
+        throw lastFailure;
+    }
+
+    /**
+     * @return the endpoints which may currently take requests, fastest first.
+     *         Endpoints without latency samples keep their configured order
+     *         behind the measured ones.
+     */
+    List<Endpoint> orderedCandidates(long now) {
+        List<Endpoint> candidates = new ArrayList<Endpoint>(endpoints.size());
+        for (Endpoint endpoint : endpoints) {
+            if (endpoint.isAvailable(now)) {
+                candidates.add(endpoint);
+            }
+        }
+        Collections.sort(candidates, BY_LATENCY);
+        return candidates;
+    }
+
+    private static boolean isRedirect(int status) {
+        return isPermanentRedirect(status)
+                || status == HttpStatus.SC_MOVED_TEMPORARILY
+                || status == HttpStatus.SC_TEMPORARY_REDIRECT;
+    }
+
+    private static boolean isPermanentRedirect(int status) {
+        return status == HttpStatus.SC_MOVED_PERMANENTLY || status == SC_PERMANENT_REDIRECT;
+    }
+
+    /**
+     * Only permanent redirects move the endpoint, temporary ones are followed
+     * for the current request.
+     *
+     * @return the URL to retry the request with
+     */
+    private static URL followRedirect(Endpoint endpoint, HttpException httpException) {
+        PushLog.w(TAG, httpException.getMessage());
+        URL location;
+        try {
+            location = new URL(httpException.getHeaders().get("Location"));
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException("Push server sent an invalid redirect", e);
+        }
+        if (isPermanentRedirect(httpException.getStatusCode())) {
+            endpoint.url = location;
+        }
+        return location;
+    }
+
+    /**
+     * Health and latency statistics of a single endpoint.
+     */
+    static final class Endpoint {
+
+        private enum Circuit {
+            CLOSED, OPEN, HALF_OPEN
+        }
+
+        volatile URL url;
+
+        private final long[] latencies = new long[SAMPLE_WINDOW];
+        private int latencyCount;
+        private int latencyIndex;
+        private long smoothedLatency = -1;
+        private int consecutiveFailures;
+        private Circuit circuit = Circuit.CLOSED;
+        private long openUntil;
+        private boolean trialInFlight;
+
+        Endpoint(URL url) {
+            this.url = url;
+        }
+
+        synchronized boolean isAvailable(long now) {
+            return circuit != Circuit.OPEN || now >= openUntil;
+        }
+
+        /**
+         * Lets a request through a closed circuit, or a single trial request
+         * through a circuit whose open period is over.
+         */
+        synchronized boolean tryAcquire(long now) {
+            switch (circuit) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now < openUntil) {
+                    return false;
+                }
+                circuit = Circuit.HALF_OPEN;
+                trialInFlight = true;
+                return true;
+            default:
+                if (trialInFlight) {
+                    return false;
+                }
+                trialInFlight = true;
+                return true;
+            }
+        }
+
+        synchronized void onSuccess(long latency) {
+            latencies[latencyIndex] = latency;
+            latencyIndex = (latencyIndex + 1) % SAMPLE_WINDOW;
+            latencyCount = Math.min(latencyCount + 1, SAMPLE_WINDOW);
+            smoothedLatency = smoothedLatency < 0 ? latency : (smoothedLatency * 3 + latency) / 4;
+            consecutiveFailures = 0;
+            trialInFlight = false;
+            circuit = Circuit.CLOSED;
+        }
+
+        synchronized void onFailure(long now) {
+            consecutiveFailures++;
+            trialInFlight = false;
+            if (circuit == Circuit.HALF_OPEN || consecutiveFailures >= CONSECUTIVE_FAILURES_TO_OPEN) {
+                PushLog.w(TAG, "Opening circuit of push server {}", url);
+                circuit = Circuit.OPEN;
+                openUntil = now + CIRCUIT_OPEN_TIME_MS;
+            }
+        }
+
+        synchronized long expectedLatency() {
+            return smoothedLatency < 0 ? Long.MAX_VALUE : smoothedLatency;
+        }
+
+        /**
+         * @return a multiple of the 99th latency percentile, bounded by
+         *         {@link #MIN_TIMEOUT_MS} and maxTimeout, or maxTimeout while
+         *         there are not enough samples.
+         */
+        synchronized Integer timeout(int maxTimeout) {
+            if (latencyCount < MIN_SAMPLES_FOR_ADAPTIVE_TIMEOUT) {
+                return maxTimeout;
+            }
+            long[] sorted = Arrays.copyOf(latencies, latencyCount);
+            Arrays.sort(sorted);
+            long p99 = sorted[(int) Math.ceil(latencyCount * 0.99) - 1];
+            long timeout = p99 * TIMEOUT_PERCENTILE_MULTIPLIER;
+            return (int) Math.max(MIN_TIMEOUT_MS, Math.min(maxTimeout, timeout));
+        }
+    }
+
+}
@@ -0,0 +1,384 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.gcm;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import org.jboss.aerogear.android.unifiedpush.PushInterceptor;
+import org.jboss.aerogear.android.unifiedpush.PushLog;
+import org.jboss.aerogear.android.unifiedpush.PushMessage;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records delivery receipts and opens of push messages and uploads them in
+ * batches.
+ *
+ * Events are appended to a journal in the application's files directory,
+ * one line of type, time and message id each, by a background thread. The
+ * journal is uploaded as a single POST of {"events": [{"type", "id",
+ * "time"}, ...]} to the configured path once it holds a batch of events, or
+ * once the interval has passed since the first event was recorded. Failed
+ * uploads are retried with exponential backoff. Once the journal holds the
+ * maximum number of events the oldest quarter is dropped.
+ *
+ * Requests go to the push servers of a registrar and authenticate like it.
+ * Add the uploader with
+ * {@link org.jboss.aerogear.android.unifiedpush.RegistrarManager#addInterceptor(org.jboss.aerogear.android.unifiedpush.PushInterceptor) }
+ * to record a receipt for every message with a
+ * {@link PayloadPuller#EXTRA_MESSAGE_ID}, and call
+ * {@link #recordOpen(java.lang.String) } when the user opens one.
+ */
+public final class ReceiptUploader implements PushInterceptor {
+
+    public static final String EVENT_RECEIVED = "received";
+    public static final String EVENT_OPENED = "opened";
+
+    public static final int DEFAULT_BATCH_SIZE = 50;
+    public static final long DEFAULT_INTERVAL_MS = 15 * 60 * 1000;
+    public static final int DEFAULT_MAX_EVENTS = 1000;
+
+    static final String JOURNAL_FILE = "aerogear-push-receipts";
+    static final int MAX_BACKOFF_MULTIPLIER = 16;
+
+    private static final String TAG = ReceiptUploader.class.getSimpleName();
+    private static final char RECEIVED = 'r';
+    private static final char OPENED = 'o';
+
+    private final AeroGearGCMPushRegistrar registrar;
+    private final PushServerEndpoints endpoints;
+    private final File journal;
+    private final int batchSize;
+    private final long intervalMs;
+    private final int maxEvents;
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    private final AtomicLong uploadedEvents = new AtomicLong();
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private volatile int pendingEvents;
+
+    // confined to the upload thread
+    private boolean scheduled;
+    private long backoffMs;
+
+    private final Runnable upload = new Runnable() {
+
+        @Override
+        public void run() {
+            scheduled = false;
+            upload();
+        }
+    };
+
+    /**
+     * @param context the application's context
+     * @param registrar the registrar whose push servers and credentials are
+     *            used
+     * @param path the path of the receipt endpoint, relative to the push
+     *            server URI
+     */
+    public ReceiptUploader(Context context, AeroGearGCMPushRegistrar registrar, String path) {
+        this(context, registrar, path, DEFAULT_BATCH_SIZE, DEFAULT_INTERVAL_MS, DEFAULT_MAX_EVENTS);
+    }
+
+    /**
+     * @param context the application's context
+     * @param registrar the registrar whose push servers and credentials are
+     *            used
+     * @param path the path of the receipt endpoint, relative to the push
+     *            server URI
+     * @param batchSize the number of events which triggers an upload
+     * @param intervalMs the longest time an event waits for an upload
+     * @param maxEvents the most events kept while uploads fail
+     */
+    public ReceiptUploader(Context context, AeroGearGCMPushRegistrar registrar, String path,
+            int batchSize, long intervalMs, int maxEvents) {
+        if (batchSize <= 0 || intervalMs <= 0 || maxEvents < batchSize) {
+            throw new IllegalArgumentException("Invalid batch size, interval or journal size");
+        }
+        this.registrar = registrar;
+        this.endpoints = registrar.endpointsFor(path);
+        this.journal = new File(context.getApplicationContext().getFilesDir(), JOURNAL_FILE);
+        this.batchSize = batchSize;
+        this.intervalMs = intervalMs;
+        this.maxEvents = maxEvents;
+        this.backoffMs = intervalMs;
+        this.thread = new HandlerThread("AeroGearReceiptUploader", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        this.handler = new Handler(thread.getLooper());
+
+        handler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                pendingEvents = readJournal().size();
+                if (pendingEvents > 0) {
+                    schedule(ReceiptUploader.this.intervalMs);
+                }
+            }
+        });
+    }
+
+    /**
+     * Records a receipt for messages with a
+     * {@link PayloadPuller#EXTRA_MESSAGE_ID} and passes every message on.
+     */
+    @Override
+    public void intercept(PushMessage message, Chain chain) {
+        String id = message.getString(PayloadPuller.EXTRA_MESSAGE_ID);
+        if (id != null && message.isMessage()) {
+            recordReceipt(id);
+        }
+        chain.proceed(message);
+    }
+
+    /**
+     * @param messageId the id of a message which was delivered
+     */
+    public void recordReceipt(String messageId) {
+        record(RECEIVED, messageId);
+    }
+
+    /**
+     * @param messageId the id of a message which the user opened
+     */
+    public void recordOpen(String messageId) {
+        record(OPENED, messageId);
+    }
+
+    /**
+     * Uploads the journal now, for example before the application goes to
+     * the background.
+     */
+    public void flush() {
+        handler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                handler.removeCallbacks(upload);
+                scheduled = false;
+                upload();
+            }
+        });
+    }
+
+    /**
+     * @return the number of events waiting for an upload
+     */
+    public int getPendingEvents() {
+        return pendingEvents;
+    }
+
+    /**
+     * @return the number of events uploaded by this uploader
+     */
+    public long getUploadedEvents() {
+        return uploadedEvents.get();
+    }
+
+    /**
+     * @return the number of events dropped because the journal was full
+     */
+    public long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    /**
+     * Stops the upload thread. Events not uploaded yet stay in the journal
+     * for the next uploader.
+     */
+    public void shutdown() {
+        thread.quit();
+    }
+
+    private void record(char type, String messageId) {
+        if (messageId.indexOf('\n') >= 0) {
+            throw new IllegalArgumentException("Message ids may not contain line breaks");
+        }
+        final String line = type + "\t" + System.currentTimeMillis() + "\t" + messageId;
+        handler.post(new Runnable() {
+
+            @Override
+            public void run() {
+                append(line);
+            }
+        });
+    }
+
+    private void append(String line) {
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(journal, true), "UTF-8");
+            try {
+                out.write(line);
+                out.write('\n');
+            } finally {
+                out.close();
+            }
+        } catch (IOException ex) {
+            PushLog.e(TAG, "Could not record push event", ex);
+            return;
+        }
+
+        int pending = pendingEvents + 1;
+        if (pending > maxEvents) {
+            List<String> lines = readJournal();
+            int drop = lines.size() - maxEvents * 3 / 4;
+            writeJournal(lines.subList(drop, lines.size()));
+            droppedEvents.addAndGet(drop);
+            pending = lines.size() - drop;
+        }
+        pendingEvents = pending;
+
+        if (pending >= batchSize && backoffMs == intervalMs) {
+            handler.removeCallbacks(upload);
+            scheduled = false;
+            upload();
+        } else {
+            schedule(backoffMs);
+        }
+    }
+
+    private void upload() {
+        List<String> lines = readJournal();
+        pendingEvents = lines.size();
+        if (lines.isEmpty()) {
+            return;
+        }
+
+        JsonArray events = new JsonArray();
+        for (String line : lines) {
+            String[] fields = line.split("\t", 3);
+            if (fields.length < 3 || fields[0].length() == 0) {
+                continue;
+            }
+            long time;
+            try {
+                time = Long.parseLong(fields[1]);
+            } catch (NumberFormatException ex) {
+                // a line damaged by a crash, it leaves the journal with this batch
+                PushLog.w(TAG, "Skipping a damaged push event", ex);
+                continue;
+            }
+            JsonObject event = new JsonObject();
+            event.addProperty("type", fields[0].charAt(0) == OPENED ? EVENT_OPENED : EVENT_RECEIVED);
+            event.addProperty("id", fields[2]);
+            event.addProperty("time", time);
+            events.add(event);
+        }
+        JsonObject request = new JsonObject();
+        request.add("events", events);
+        final String body = request.toString();
+
+        if (events.size() > 0) {
+            try {
+                endpoints.execute(new PushServerEndpoints.Request() {
+
+                    @Override
+                    public void execute(URL url, Integer timeout) {
+                        registrar.authenticatedProvider(url, timeout).post(body);
+                    }
+                });
+            } catch (RuntimeException ex) {
+                backoffMs = Math.min(backoffMs * 2, intervalMs * MAX_BACKOFF_MULTIPLIER);
+                PushLog.w(TAG, "Could not upload push events, retrying in {}ms", backoffMs);
+                schedule(backoffMs);
+                return;
+            }
+        }
+
+        backoffMs = intervalMs;
+        uploadedEvents.addAndGet(events.size());
+        // events recorded during the upload were appended behind the batch
+        List<String> remaining = readJournal();
+        writeJournal(remaining.subList(Math.min(lines.size(), remaining.size()), remaining.size()));
+        pendingEvents = remaining.size() - Math.min(lines.size(), remaining.size());
+        if (pendingEvents > 0) {
+            schedule(intervalMs);
+        }
+    }
+
+    private void schedule(long delayMs) {
+        if (!scheduled) {
+            scheduled = true;
+            handler.postDelayed(upload, delayMs);
+        }
+    }
+
+    private List<String> readJournal() {
+        List<String> lines = new ArrayList<String>();
+        if (!journal.exists()) {
+            return lines;
+        }
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(journal), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    if (line.length() > 0) {
+                        lines.add(line);
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            PushLog.e(TAG, "Could not read push events", ex);
+        }
+        return lines;
+    }
+
+    private void writeJournal(List<String> lines) {
+        if (lines.isEmpty()) {
+            journal.delete();
+            return;
+        }
+        File temp = new File(journal.getPath() + ".tmp");
+        try {
+            Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            try {
+                for (String line : lines) {
+                    out.write(line);
+                    out.write('\n');
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(journal)) {
+                PushLog.e(TAG, "Could not replace the push event journal");
+            }
+        } catch (IOException ex) {
+            PushLog.e(TAG, "Could not write push events", ex);
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.gcm;
+
+/**
+ * An immutable snapshot of the registration of an
+ * {@link AeroGearGCMPushRegistrar}.
+ */
+public final class RegistrationState {
+
+    public enum Status {
+
+        /**
+         * Not registered, or unregistered successfully.
+         */
+        UNREGISTERED,
+        /**
+         * Obtaining a token from GCM.
+         */
+        TOKEN_FETCHING,
+        /**
+         * Sending the device to the push server.
+         */
+        REGISTERING,
+        /**
+         * Acknowledged by the push server.
+         */
+        REGISTERED,
+        /**
+         * The last operation failed, see {@link RegistrationState#getCause() }.
+         */
+        FAILED,
+        /**
+         * The GCM token has outlived
+         * {@link AeroGearGCMPushRegistrar#REGISTRATION_EXPIRY_TIME_MS} and
+         * will be refreshed by the next registration.
+         */
+        EXPIRED
+    }
+
+    static final RegistrationState UNREGISTERED = new RegistrationState(Status.UNREGISTERED, null, 0);
+
+    private final Status status;
+    private final Exception cause;
+    private final long expirationTime;
+
+    private RegistrationState(Status status, Exception cause, long expirationTime) {
+        this.status = status;
+        this.cause = cause;
+        this.expirationTime = expirationTime;
+    }
+
+    static RegistrationState of(Status status) {
+        return new RegistrationState(status, null, 0);
+    }
+
+    static RegistrationState registered(long expirationTime) {
+        return new RegistrationState(Status.REGISTERED, null, expirationTime);
+    }
+
+    static RegistrationState failed(Exception cause) {
+        return new RegistrationState(Status.FAILED, cause, 0);
+    }
+
+    /**
+     * @return the current status
+     */
+    public Status getStatus() {
+        return status;
+    }
+
+    /**
+     * @return why the registrar is {@link Status#FAILED}, otherwise null
+     */
+    public Exception getCause() {
+        return cause;
+    }
+
+    /**
+     * @return when a {@link Status#REGISTERED} token expires, in
+     *         {@link System#currentTimeMillis() } units, otherwise 0
+     */
+    public long getExpirationTime() {
+        return expirationTime;
+    }
+
+    @Override
+    public String toString() {
+        return cause == null ? status.name() : status.name() + ": " + cause;
+    }
+
+}
@@ -0,0 +1,192 @@
+/**
+ * JBoss, Home of Professional Open Source Copyright Red Hat, Inc., and
+ * individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.jboss.aerogear.android.unifiedpush.gcm;
+
+import android.content.Context;
+import org.jboss.aerogear.android.unifiedpush.PushLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * String properties in a file which every process of the application may
+ * read and write.
+ *
+ * Unlike {@code SharedPreferences}, a store notices changes made by other
+ * processes. Writers replace the file atomically while holding the
+ * {@link CrossProcessLease} of the store, so readers never see a partial
+ * file and need no lock: a read compares the size and modification time of
+ * the file with the copy it has in memory and reloads it only if it changed.
+ * Modification times may only have a resolution of a second, so a copy loaded
+ * within a second of the last change is always reloaded.
+ */
+final class SharedFileStore {
+
+    private static final String TAG = SharedFileStore.class.getSimpleName();
+    private static final long MODIFIED_RESOLUTION_MS = 1000;
+    private static final ConcurrentMap<String, SharedFileStore> stores = new ConcurrentHashMap<String, SharedFileStore>();
+
+    private final Context context;
+    private final String name;
+    private final File file;
+
+    private Properties values = new Properties();
+    private long loadedModified = -1;
+    private long loadedLength = -1;
+    private long loadedAt;
+
+    private SharedFileStore(Context context, String name) {
+        this.context = context;
+        this.name = name;
+        this.file = new File(context.getFilesDir(), name);
+    }
+
+    /**
+     * @param context the application context
+     * @param name the file name of the store
+     * @return the store of this process for name
+     */
+    static SharedFileStore get(Context context, String name) {
+        SharedFileStore store = stores.get(name);
+        if (store == null) {
+            store = new SharedFileStore(context.getApplicationContext(), name);
+            SharedFileStore current = stores.putIfAbsent(name, store);
+            if (current != null) {
+                store = current;
+            }
+        }
+        return store;
+    }
+
+    /**
+     * @param key a key
+     * @return the value of key, or null
+     */
+    synchronized String get(String key) {
+        refresh(false);
+        return values.getProperty(key);
+    }
+
+    /**
+     * Reloads the file even if its size and modification time did not change.
+     * Call this under a lease before decisions other processes may have
+     * changed the outcome of.
+     */
+    synchronized void reload() {
+        refresh(true);
+    }
+
+    /**
+     * Sets and removes values in one atomic replacement of the file.
+     *
+     * @param updates the values to set
+     * @param removals the keys to remove, may be null
+     * @throws IOException if the file can not be written
+     */
+    void edit(Map<String, String> updates, Collection<String> removals) throws IOException {
+        CrossProcessLease lease = CrossProcessLease.acquire(context, name);
+        try {
+            synchronized (this) {
+                refresh(true);
+                Properties next = new Properties();
+                next.putAll(values);
+                next.putAll(updates);
+                if (removals != null) {
+                    for (String key : removals) {
+                        next.remove(key);
+                    }
+                }
+                write(next);
+            }
+        } finally {
+            lease.release();
+        }
+    }
+
+    /**
+     * Removes every value.
+     *
+     * @throws IOException if the file can not be written
+     */
+    void clear() throws IOException {
+        CrossProcessLease lease = CrossProcessLease.acquire(context, name);
+        try {
+            synchronized (this) {
+                write(new Properties());
+            }
+        } finally {
+            lease.release();
+        }
+    }
+
+    private void write(Properties next) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+        try {
+            next.store(out, null);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            throw new IOException("Could not replace " + file);
+        }
+        values = next;
+        loadedAt = System.currentTimeMillis();
+        loadedModified = file.lastModified();
+        loadedLength = file.length();
+    }
+
+    private void refresh(boolean force) {
+        long now = System.currentTimeMillis();
+        long modified = file.lastModified();
+        long length = file.length();
+        // a rewrite in the same second as the copy keeps both modified and length
+        if (!force && modified == loadedModified && length == loadedLength
+                && loadedAt - modified >= MODIFIED_RESOLUTION_MS) {
+            return;
+        }
+        Properties loaded = new Properties();
+        if (modified != 0) {
+            try {
+                InputStream in = new BufferedInputStream(new FileInputStream(file));
+                try {
+                    loaded.load(in);
+                } finally {
+                    in.close();
+                }
+            } catch (IOException ex) {
+                PushLog.e(TAG, "Could not read " + file, ex);
+            }
+        }
+        values = loaded;
+        loadedAt = now;
+        loadedModified = modified;
+        loadedLength = length;
+    }
+
+}